@@ -2,3 +2,4 @@ javac -classpath . com/botbox/util/*.java
 javac -classpath . se/sics/tac/util/*.java
 javac -classpath . se/sics/tac/aw/*.java
 jar cfm tacagent.jar AWManifest.txt com/botbox/util/*.class se/sics/tac/aw/*.class se/sics/tac/util/*.class
+java -classpath . se.sics.tac.aw.FlightPolicy flightpolicy.dat
@@ -129,7 +129,6 @@ package se.sics.tac.aw;
 import se.sics.tac.util.ArgEnumerator;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.logging.*;
 
 public class AbsMTreeAgent extends AgentImpl {
@@ -158,26 +157,45 @@ public class AbsMTreeAgent extends AgentImpl {
   //Flight
   private float[][] ownFlight = new float[8][2];
 
-  private float maxFlightPrice = Integer.MIN_VALUE;
-  private float minFlightPrice = Integer.MAX_VALUE;
+  // Estimates the price trend of each flight auction
+  private FlightPriceTracker flightTracker = new FlightPriceTracker();
+  // When to buy flights given the trend estimate
+  private FlightPolicy flightPolicy;
 
 //  private static final long First_Flight_Time = 2 * 60 * 1000;
   private static final long Second_Flight_Time = 4 * 60 * 1000;
   private static final long Last_Flight_Time = 8 * 60 * 1000;
-  
-  private static final long FLIGHT_TIME1 = 1 * 60 *1000;
-  private static final long FLIGHT_TIME2 = 2 * 60 *1000;
-  private static final long FLIGHT_TIME3 = 3 * 60 *1000;
-  private static final long FLIGHT_TIME4 = 4 * 60 *1000;
-  private static final long FLIGHT_TIME5 = 5 * 60 *1000;
-  private static final long FLIGHT_TIME6 = 6 * 60 *1000;
-  private static final long FLIGHT_TIME7 = 7 * 60 *1000;
-  private static final long FLIGHT_TIME8 = 8 * 60 *1000;
 
   
   //Hotel
-
-
+  // The predicted closing price quantile bid in open hotel auctions
+  private static final float HOTEL_BID_QUANTILE = 0.8f;
+
+  private HotelPricePredictor hotelPredictor;
+  // The hotel prices the last prediction was made for
+  private float[] hotelAsk = new float[8];
+  private boolean[] hotelClosed = new boolean[8];
+  private boolean isHotelPredicted = false;
+
+  //Allocation
+  private static final float DEFAULT_FLIGHT_PRICE = 325f;
+  private static final float DEFAULT_CHEAP_HOTEL_PRICE = 80f;
+  private static final float DEFAULT_GOOD_HOTEL_PRICE = 150f;
+
+  private AllocationSolver solver = new AllocationSolver();
+  private int[] owned;
+  private int[] allocation;
+  private float[] buyPrices;
+  private float[] sellPrices;
+  // Incremented each time the packages are set
+  private int allocationVersion;
+
+  // The number of clients whose hotel nights are all owned for each
+  // flight auction, and the allocation version and owned hotels they
+  // were counted for
+  private int[] coveredFlights = new int[8];
+  private int[] coveredHotels = new int[8];
+  private int coveredVersion = -1;
   
   
   private class Price{
@@ -193,127 +211,41 @@ public class AbsMTreeAgent extends AgentImpl {
   
   protected void init(ArgEnumerator args) {
     prices = new float[agent.getAuctionNo()];
+    owned = new int[agent.getAuctionNo()];
+    allocation = new int[agent.getAuctionNo()];
+    buyPrices = new float[agent.getAuctionNo()];
+    sellPrices = new float[agent.getAuctionNo()];
+    flightPolicy =
+      FlightPolicy.load(agent.getConfig("flightPolicy", "flightpolicy.dat"));
+    hotelPredictor =
+      new HotelPricePredictor(agent.getConfig("hotelSamples", 10000),
+			      agent.getConfig("hotelPredictionTime", 200));
   }
  
 
   public void quoteUpdated(Quote quote) {
     int auction = quote.getAuction();
     int auctionCategory = agent.getAuctionCategory(auction);
+
+    // The price estimates must include this quote before the next solve
+    if (auctionCategory == TACAgent.CAT_FLIGHT) {
+      flightTracker.addQuote(auction, quote.getAskPrice(),
+			     agent.getGameTime());
+    } else if (auctionCategory == TACAgent.CAT_HOTEL
+	       && !quote.isAuctionClosed() && !isStale(quote)) {
+      hotelPredictor.addQuote(auction, quote.getAskPrice(),
+			      agent.getGameTime());
+    }
+
     
     if (auctionCategory == TACAgent.CAT_FLIGHT) {
     	ownFlight[auction][0] = agent.getOwn(auction);
     	ownFlight[auction][1] = quote.getBidPrice();
 		
     	
-    	
-    	if ( maxFlightPrice < quote.getAskPrice()){
-    		maxFlightPrice = quote.getAskPrice();
-    	}
-    	
-    	if ( minFlightPrice > quote.getAskPrice()){
-    		minFlightPrice = quote.getAskPrice();
-    	}
-    	
-    	
-    	int[] ownedHotelDay = new int[8];
-    	
-    	HashMap<Integer, Integer> canBuyInFlight = new HashMap<Integer, Integer>();
-    	HashMap<Integer, Integer> canBuyOutFlight = new HashMap<Integer, Integer>();
-    	for ( int i =0; i < 8; i++){
-    		ownedHotelDay[i] += agent.getOwn(i + 8);
-    	}
-    	
-    	boolean canBuy = true;
-    	
-    	for ( int i = 0 ; i < 8 ; i ++){
-    		
-    		
-    		int in = packages[i][0] - 1 ;
-    		int out = packages[i][1] - 1;
-    		int hotelType = packages[i][6];
-    		//int dayStay = in - out;
-    		
-    		
-    		if ( hotelType == TACAgent.TYPE_GOOD_HOTEL){
-    			//Good hotel.
-    			canBuy = true;
-    			for ( int j = in + 4; j < out + 4; j++){
-        			if (ownedHotelDay[j] <= 0){
-        				canBuy = false;
-        			}
-        		}
-    			if ( canBuy){
-        			for ( int j = in + 4; j < out + 4 ; j++){
-        				ownedHotelDay[j]--;
-        				}
-        			if (canBuyInFlight.containsKey(in)){
-        				canBuyInFlight.put(in, canBuyInFlight.get(in) + 1);
-        			}else{
-        				canBuyInFlight.put(in, 1);
-        			}
-        			if (canBuyOutFlight.containsKey(out)){
-        				canBuyOutFlight.put(out, canBuyOutFlight.get(out) + 1);
-        			}else{
-        				canBuyOutFlight.put(out, 1);
-        			}
-        			
-        			continue;
-        		}
-    		}
-    		
-    		
-    		else{
-    			//Cheap hotel.
-        		
-    			canBuy = true;
-    			for ( int j = in; j < out ; j++){
-        			if (ownedHotelDay[j] <= 0){
-        				canBuy = false;
-        			}
-        		}
-        		
-        		if ( canBuy){
-        			for ( int j = in; j < out ; j++){
-        				ownedHotelDay[j]--;
-        				}
-        			if (canBuyInFlight.containsKey(in)){
-        				canBuyInFlight.put(in, canBuyInFlight.get(in) + 1);
-        			}else{
-        				canBuyInFlight.put(in, 1);
-        			}
-        			if (canBuyOutFlight.containsKey(out)){
-        				canBuyOutFlight.put(out, canBuyOutFlight.get(out) + 1);
-        			}else{
-        				canBuyOutFlight.put(out, 1);
-        			}
-        			
-        			
-        		}
-        		
-    		}
-
-    	}
-    
-    	int maxFlightBuy = 0;
-    	if (auction <=3 ){
-    		if (!canBuyInFlight.containsKey(auction)){
-    			canBuy = false;
-    		}
-    		else {
-    			maxFlightBuy = canBuyInFlight.get(auction);
-    			canBuy = true;
-    		}
-    	}
-    	else{
-    		int x = auction -3;
-    		if (!canBuyOutFlight.containsKey(x)){
-    			canBuy = false;
-    		}
-    		else{
-    			maxFlightBuy = canBuyOutFlight.get(x);
-    			canBuy = true;
-    		}
-    	}
+    	updateCoveredFlights();
+    	int maxFlightBuy = coveredFlights[auction];
+    	boolean canBuy = maxFlightBuy > 0;
     
 		 
     	if (canBuy){
@@ -325,92 +257,18 @@ public class AbsMTreeAgent extends AgentImpl {
     		
     		 if ( alloc > 0 && maxFlightBuy > 0){
     			
-//    			 float averageLevel = (maxFlightPrice + minFlightPrice) / 2;
-//        		 float highLevel = (maxFlightPrice + minFlightPrice) * ( 2f / 3f) ; //Can change rate make it cheaper or not.
-//        		 float lowLevel = (maxFlightPrice + minFlightPrice ) * ( 1f / 3f) ; //Can chage rate make it cheaper or not.
         		 float askPrice = quote.getAskPrice();
     			 
-//    			 float level1 = (maxFlightPrice ) * (9f/10f);
-    			 float level2 = (maxFlightPrice ) * (8f/10f);
-    			 float level3 = (maxFlightPrice ) * (7f/10f);
-    			 float level4 = (maxFlightPrice ) * (6f/10f);
-//    			 float level5 = (maxFlightPrice ) * (5f/10f);
-//    			 float level6 = (maxFlightPrice ) * (4f/10f);
-//    			 float level7 = (maxFlightPrice ) * (3f/10f);
-//    			 float level8 = (maxFlightPrice ) * (2f/10f);
-    			 
-    			 
-    			 Bid bid = new Bid(auction);
-    			 
-    			 if ( agent.getGameTime() <= FLIGHT_TIME1 && askPrice <= level4){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    				 
-    			 }
-    			 
-    			 else if ( agent.getGameTime() <= FLIGHT_TIME2 && askPrice <= level4){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    				 
-    			 }
-    			 
-    			 else if ( agent.getGameTime() <= FLIGHT_TIME3 && askPrice <= level4){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    				 
-    			 }
-    			 else if ( agent.getGameTime() <= FLIGHT_TIME4 && askPrice <= level3){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    				 
-    			 }
-    			 else if ( agent.getGameTime() <= FLIGHT_TIME5 && askPrice <= level3){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    				 
-    			 }
-    			 else if ( agent.getGameTime() <= FLIGHT_TIME6 && askPrice <= level3){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    				 
-    			 }
-    			 else if ( agent.getGameTime() <= FLIGHT_TIME7 && askPrice <= level2){
+    			 // Buy when waiting is not expected to give a lower price
+    			 long gameTime = agent.getGameTime();
+    			 if (flightPolicy.isBuy(FlightPriceTracker.getStep(gameTime),
+    						flightTracker.getProbability(auction),
+    						askPrice)
+    			     || gameTime >= Last_Flight_Time) {
+    				 Bid bid = new Bid(auction);
     				 bid.addBidPoint(alloc, askPrice);
     				 agent.submitBid(bid);
-    				 
     			 }
-    			 else if ( agent.getGameTime() <= FLIGHT_TIME8 && askPrice <= level2){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    				 
-    			 }
-    			 else if ( agent.getGameTime() >= Last_Flight_Time){
-    				 bid.addBidPoint(alloc, askPrice);
-    				 agent.submitBid(bid);
-    			 }
-    			 
-    			 
-    			 
-//        		 if (askPrice < minFlightPrice || askPrice < lowLevel){
-//        			 bid.addBidPoint(alloc, askPrice);
-//            		 
-//            		 agent.submitBid(bid);
-//        		 }
-////        		 else if ( askPrice <= averageLevel && agent.getGameTime() >= First_Flight_Time){                		 
-////            		 bid.addBidPoint(alloc, askPrice);
-////            		
-////            		 agent.submitBid(bid);
-////        		 }
-//        		 else if ( askPrice <= averageLevel  && agent.getGameTime() >= Second_Flight_Time){                		 
-//            		 bid.addBidPoint(alloc, askPrice);
-//            		
-//            		 agent.submitBid(bid);
-//        		 }
-//        		 else if (agent.getGameTime() >= Last_Flight_Time ){    //If it is the last minutes.
-//        			 bid.addBidPoint(alloc, askPrice);
-//        			
-//        			 agent.submitBid(bid);
-//        		 }
     		
     		 }	 
     		 
@@ -434,7 +292,13 @@ public class AbsMTreeAgent extends AgentImpl {
             	
             	Bid bid = new Bid(auction);
             	
-            	if (bidPrice > 0)
+            	if (hotelPredictor.getSampleCount() > 0) {
+            		prices[auction] = hotelPredictor.getQuantile(auction, HOTEL_BID_QUANTILE);
+            		if (prices[auction] <= askPrice) {
+            			prices[auction] = askPrice + 1;
+            		}
+            	}
+            	else if (bidPrice > 0)
             		prices[auction] = 70 + (bidPrice / askPrice ) * 100f   + askPrice; // Plus a number can be changed for successfully bid.
             	else
             		prices[auction] = 70 + askPrice;
@@ -614,23 +478,50 @@ public class AbsMTreeAgent extends AgentImpl {
   
 
 
+  // Returns true if the hotel quote is from before the last hotel
+  // auction close (the fresh quote is requested by TACAgent)
+  private boolean isStale(Quote quote) {
+    long nextQuoteTime = quote.getNextQuoteTime();
+    return nextQuoteTime > 0 && nextQuoteTime <= agent.getServerTime();
+  }
+
   public void quoteUpdated(int auctionCategory) {
     log.fine("All quotes for "
 	     + agent.auctionCategoryToString(auctionCategory)
 	     + " has been updated");
+    // Re-solve once per quote sweep: unchanged states are remembered by
+    // the solver and only the clients affected by new prices are updated
+    if (agent.getGameID() >= 0) {
+      if (auctionCategory == TACAgent.CAT_HOTEL) {
+	predictHotelPrices();
+      }
+      calculateAllocation();
+    }
+  }
+
+  public void transaction(Transaction transaction) {
+    // The owned goods have changed
+    if (agent.getGameID() >= 0) {
+      calculateAllocation();
+    }
   }
 
   public void bidUpdated(Bid bid) {
-    log.fine("Bid Updated: id=" + bid.getID() + " auction="
-	     + bid.getAuction() + " state="
-	     + bid.getProcessingStateAsString());
-    log.fine("       Hash: " + bid.getBidHash());
+    // The bid might be updated by the reply thread at the same time
+    synchronized (bid) {
+      log.fine("Bid Updated: id=" + bid.getID() + " auction="
+	       + bid.getAuction() + " state="
+	       + bid.getProcessingStateAsString());
+      log.fine("       Hash: " + bid.getBidHash());
+    }
   }
 
   public void bidRejected(Bid bid) {
-    log.warning("Bid Rejected: " + bid.getID());
-    log.warning("      Reason: " + bid.getRejectReason()
-		+ " (" + bid.getRejectReasonAsString() + ')');
+    synchronized (bid) {
+      log.warning("Bid Rejected: " + bid.getID());
+      log.warning("      Reason: " + bid.getRejectReason()
+		  + " (" + bid.getRejectReasonAsString() + ')');
+    }
   }
 
   public void bidError(Bid bid, int status) {
@@ -641,6 +532,10 @@ public class AbsMTreeAgent extends AgentImpl {
   public void gameStarted() {
     log.fine("Game " + agent.getGameID() + " started!");
 
+    flightTracker.gameStarted();
+    hotelPredictor.gameStarted();
+    isHotelPredicted = false;
+    predictHotelPrices();
     calculateAllocation();
     sendBids();
   }
@@ -758,99 +653,168 @@ public class AbsMTreeAgent extends AgentImpl {
 	  return 0;
   }
 
+  // Finds the allocation with the highest utility minus cost given the
+  // owned goods and the current prices, and sets the allocation and
+  // the packages of the clients.
   private void calculateAllocation() {
-	  int totalHotelNeeds = 0;
-	  for (int i = 0; i < 8; i++) {
-	      int hotel = agent.getClientPreference(i, TACAgent.HOTEL_VALUE);
-	      totalHotelNeeds += hotel;
-	  }
-	  float goodHotelDoor = (totalHotelNeeds / 8 );
-	  
-	  
     for (int i = 0; i < 8; i++) {
-    
       int inFlight = agent.getClientPreference(i, TACAgent.ARRIVAL);
       int outFlight = agent.getClientPreference(i, TACAgent.DEPARTURE);
       int hotel = agent.getClientPreference(i, TACAgent.HOTEL_VALUE);
-      packages[i][0] = inFlight;
-      packages[i][1] = outFlight;
+      int e1 = agent.getClientPreference(i, TACAgent.E1);
+      int e2 = agent.getClientPreference(i, TACAgent.E2);
+      int e3 = agent.getClientPreference(i, TACAgent.E3);
+      solver.setClient(i, inFlight, outFlight, hotel, e1, e2, e3);
       packages[i][2] = hotel;
-      
-      
-      int type;
-
-      // Get the flight preferences auction and remember that we are
-      // going to buy tickets for these days. (inflight=1, outflight=0)
-      int auction = agent.getAuctionFor(TACAgent.CAT_FLIGHT,
-					TACAgent.TYPE_INFLIGHT, inFlight);
-      agent.setAllocation(auction, agent.getAllocation(auction) + 1);
-      auction = agent.getAuctionFor(TACAgent.CAT_FLIGHT,
-				    TACAgent.TYPE_OUTFLIGHT, outFlight);
-      agent.setAllocation(auction, agent.getAllocation(auction) + 1);
-
-      // if the hotel value is greater than 70 we will select the
-      // expensive hotel (type = 1)
-      if (hotel >= goodHotelDoor ) {
-    	  type = TACAgent.TYPE_GOOD_HOTEL;
-      } else {
-    	  type = TACAgent.TYPE_CHEAP_HOTEL;
+      packages[i][3] = e1;
+      packages[i][4] = e2;
+      packages[i][5] = e3;
+    }
+
+    for (int i = 0, n = agent.getAuctionNo(); i < n; i++) {
+      owned[i] = agent.getOwn(i);
+      buyPrices[i] = getBuyPrice(i);
+      sellPrices[i] = getSellPrice(i);
+    }
+    float value = solver.solve(owned, buyPrices, sellPrices);
+    // A search stopped by the time limit gives the best allocation found
+    // so far (at least the incumbent)
+    log.fine("Allocation value " + value + " found in "
+	     + solver.getSolveTime() + " us (" + solver.getNodeCount()
+	     + " nodes" + (solver.isOptimal() ? ")" : ", stopped)"));
+
+    solver.getAllocation(allocation);
+    for (int i = 0, n = agent.getAuctionNo(); i < n; i++) {
+      agent.setAllocation(i, allocation[i]);
+    }
+    for (int i = 0; i < 8; i++) {
+      // Clients staying home get the days 0 (no flights or hotels)
+      packages[i][0] = solver.getArrival(i);
+      packages[i][1] = solver.getDeparture(i);
+      packages[i][6] = solver.getHotelType(i);
+      if (DEBUG) {
+	log.finest("Client " + i + ": " + packages[i][0] + " - "
+		   + packages[i][1] + " hotel " + packages[i][6]
+		   + " utility " + solver.getUtility(i));
       }
-      //type = TACAgent.TYPE_CHEAP_HOTEL;
-      packages[i][6] = type;
-      // allocate a hotel night for each day that the agent stays
-      for (int d = inFlight; d < outFlight; d++) {
-	auction = agent.getAuctionFor(TACAgent.CAT_HOTEL, type, d);
-	log.finer("Adding hotel for day: " + d + " on " + auction);
-	agent.setAllocation(auction, agent.getAllocation(auction) + 1);
+    }
+    allocationVersion++;
+  }
+
+  // Counts the traveling clients whose hotel nights are all owned for
+  // each flight auction. The owned hotels are given to the clients in
+  // order. Only counted again when the packages or the owned hotels
+  // have changed.
+  private void updateCoveredFlights() {
+    boolean changed = coveredVersion != allocationVersion;
+    for (int i = 0; i < 8; i++) {
+      int own = agent.getOwn(TACAgent.MIN_HOTEL + i);
+      if (coveredHotels[i] != own) {
+	coveredHotels[i] = own;
+	changed = true;
       }
+    }
+    if (!changed) {
+      return;
+    }
+    coveredVersion = allocationVersion;
 
-      int eType = -1;
-      while((eType = nextEntType(i, eType)) > 0) {
-	auction = bestEntDay(inFlight, outFlight, eType);
-	log.finer("Adding entertainment " + eType + " on " + auction);
-	agent.setAllocation(auction, agent.getAllocation(auction) + 1);
+    int[] ownedHotelDay = new int[8];
+    System.arraycopy(coveredHotels, 0, ownedHotelDay, 0, 8);
+    for (int i = 0; i < 8; i++) {
+      coveredFlights[i] = 0;
+    }
+    for (int i = 0; i < 8; i++) {
+      int in = packages[i][0];
+      int out = packages[i][1];
+      if (in == 0) {
+	// Stays home
+	continue;
+      }
+      int hotelType = packages[i][6];
+      boolean covered = true;
+      for (int d = in; d < out; d++) {
+	int auction = TACAgent.getAuctionFor(TACAgent.CAT_HOTEL, hotelType, d);
+	if (ownedHotelDay[auction - TACAgent.MIN_HOTEL] <= 0) {
+	  covered = false;
+	  break;
+	}
+      }
+      if (covered) {
+	for (int d = in; d < out; d++) {
+	  ownedHotelDay[TACAgent.getAuctionFor(TACAgent.CAT_HOTEL, hotelType, d)
+			- TACAgent.MIN_HOTEL]--;
+	}
+	coveredFlights[TACAgent.getAuctionFor(TACAgent.CAT_FLIGHT,
+					      TACAgent.TYPE_INFLIGHT, in)]++;
+	coveredFlights[TACAgent.getAuctionFor(TACAgent.CAT_FLIGHT,
+					      TACAgent.TYPE_OUTFLIGHT, out)]++;
       }
     }
   }
 
-  private int bestEntDay(int inFlight, int outFlight, int type) {
-    for (int i = inFlight; i < outFlight; i++) {
-      int auction = agent.getAuctionFor(TACAgent.CAT_ENTERTAINMENT,
-					type, i);
-      if (agent.getAllocation(auction) < agent.getOwn(auction)) {
-	return auction;
+  // Predicts the closing prices of the hotel auctions if any hotel
+  // price has changed since the last prediction
+  private void predictHotelPrices() {
+    boolean changed = !isHotelPredicted;
+    for (int i = 0; i < 8; i++) {
+      Quote quote = agent.getQuote(TACAgent.MIN_HOTEL + i);
+      float askPrice = quote.getAskPrice();
+      boolean closed = quote.isAuctionClosed();
+      if (hotelAsk[i] != askPrice || hotelClosed[i] != closed) {
+	hotelAsk[i] = askPrice;
+	hotelClosed[i] = closed;
+	changed = true;
       }
     }
-    // If no left, just take the first...
-    return agent.getAuctionFor(TACAgent.CAT_ENTERTAINMENT,
-			       type, inFlight);
+    if (!changed) {
+      return;
+    }
+    isHotelPredicted = true;
+    int samples = hotelPredictor.predict(hotelAsk, hotelClosed);
+    log.fine("Hotel prices predicted from " + samples + " scenarios in "
+	     + hotelPredictor.getPredictionTime() + " us");
   }
 
-  private int nextEntType(int client, int lastType) {
-    int e1 = agent.getClientPreference(client, TACAgent.E1);
-    int e2 = agent.getClientPreference(client, TACAgent.E2);
-    int e3 = agent.getClientPreference(client, TACAgent.E3);
-    packages[client][3] = e1;
-    packages[client][4] = e2;
-    packages[client][5] = e3;
-    
-    // At least buy what each agent wants the most!!!
-    //Make client's needs in order. Descent.
-    if ((e1 > e2) && (e1 > e3) && lastType == -1){
-    	
-    	return TACAgent.TYPE_ALLIGATOR_WRESTLING;
-    }
-      
-    if ((e2 > e1) && (e2 > e3) && lastType == -1){
-    	
-    	return TACAgent.TYPE_AMUSEMENT;
+  // The estimated price of buying one more good in the auction
+  private float getBuyPrice(int auction) {
+    Quote quote = agent.getQuote(auction);
+    float askPrice = quote.getAskPrice();
+    switch (agent.getAuctionCategory(auction)) {
+    case TACAgent.CAT_FLIGHT:
+      if (askPrice > 0) {
+	// The price the flight is expected to be bought for
+	float price = flightTracker.getExpectedMinimum(auction);
+	return price > 0 && price < askPrice ? price : askPrice;
+      }
+      return DEFAULT_FLIGHT_PRICE;
+    case TACAgent.CAT_HOTEL:
+      if (quote.isAuctionClosed()) {
+	return Float.POSITIVE_INFINITY;
+      }
+      if (hotelPredictor.getSampleCount() > 0) {
+	float price = hotelPredictor.getMean(auction);
+	return price > askPrice ? price : askPrice;
+      }
+      if (askPrice > 0) {
+	return askPrice;
+      }
+      return agent.getAuctionType(auction) == TACAgent.TYPE_GOOD_HOTEL
+	? DEFAULT_GOOD_HOTEL_PRICE
+	: DEFAULT_CHEAP_HOTEL_PRICE;
+    default:
+      // Entertainment is only sold
+      return Float.POSITIVE_INFINITY;
     }
-      
-    if ((e3 > e1) && (e3 > e2) && lastType == -1){
-    	return TACAgent.TYPE_MUSEUM;
+  }
+
+  // The estimated price of selling an owned good in the auction
+  private float getSellPrice(int auction) {
+    if (agent.getAuctionCategory(auction) == TACAgent.CAT_ENTERTAINMENT) {
+      float bidPrice = agent.getQuote(auction).getBidPrice();
+      return bidPrice > 0 ? bidPrice : 0f;
     }
-      
-    return -1;
+    return 0f;
   }
 
 
@@ -0,0 +1,411 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * AgentCallbacks
+ *
+ * Purpose :
+ *   Calls the agent implementation, either directly in the calling
+ *   thread or, when "agentCallbacks" is set in the configuration
+ *   file, in a dedicated callback thread so that a slow strategy
+ *   never holds up the handling of the replies from the server.
+ *
+ *   The callbacks are performed in the order they were made. A quote
+ *   update for an auction that already has a quote update waiting is
+ *   conflated with the waiting update (the agent is always given the
+ *   latest quote). A per-category quote update is conflated with a
+ *   waiting one unless quote updates have been queued after it, in
+ *   which case it is moved to the end of the queue so that the agent
+ *   always sees the category update after the quotes. The game start
+ *   and stop callbacks wait until they have been performed so that the
+ *   agent sees the game start and end before the state is changed.
+ *
+ *   The quotes are still changed by the reply thread while the
+ *   callbacks wait, so the callback thread is given copies of the
+ *   quotes taken when the callbacks were made. Bids keep their
+ *   identity (the agent replaces them) and are given as they are: the
+ *   state set by the server is only read and written through the
+ *   synchronized accessors of the bid, and an agent that reads several
+ *   values of a bid together should hold the lock of the bid.
+ */
+
+package se.sics.tac.aw;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class AgentCallbacks {
+
+  private static final Logger log =
+    Logger.getLogger(AgentCallbacks.class.getName());
+
+  private final AgentImpl agent;
+  // The callback thread (null when the agent is called directly)
+  private ExecutorService executor;
+  private volatile Thread callbackThread;
+
+  // Quote updates waiting for each auction and the queue position of
+  // the update waiting for each category (0 if none)
+  private final Quote[] pendingQuotes;
+  private final long[] pendingCategories;
+  // The position of the last queued quote or category update and of
+  // the last queued quote update
+  private long lastPosition = 0L;
+  private long lastQuotePosition = 0L;
+
+  private int quoteUpdates = 0;
+  private int conflatedQuotes = 0;
+  private int categoryUpdates = 0;
+  private int conflatedCategories = 0;
+  private int lateFinalBids = 0;
+
+  private final LatencyHistogram callbackDelay =
+    new LatencyHistogram("callback delay");
+
+  AgentCallbacks(AgentImpl agent, int auctions, int categories) {
+    this.agent = agent;
+    this.pendingQuotes = new Quote[auctions];
+    this.pendingCategories = new long[categories];
+  }
+
+  /**
+   * Makes the callbacks in a dedicated thread. Can only be called once.
+   */
+  synchronized void start() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+	  public Thread newThread(Runnable r) {
+	    Thread thread = new Thread(r, "agent-callbacks");
+	    callbackThread = thread;
+	    return thread;
+	  }
+	});
+    }
+  }
+
+  boolean isAsynchronous() {
+    return executor != null;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Callbacks
+  // -------------------------------------------------------------------
+
+  void quoteUpdated(Quote quote) {
+    if (executor == null) {
+      agent.quoteUpdated(quote);
+      return;
+    }
+
+    final int auction = quote.getAuction();
+    Quote copy = new Quote(quote);
+    synchronized (this) {
+      quoteUpdates++;
+      if (pendingQuotes[auction] != null) {
+	conflatedQuotes++;
+	pendingQuotes[auction] = copy;
+	return;
+      }
+      pendingQuotes[auction] = copy;
+      lastQuotePosition = ++lastPosition;
+    }
+    execute(new Callback("quoteUpdated") {
+	protected void perform() {
+	  Quote quote;
+	  synchronized (AgentCallbacks.this) {
+	    quote = pendingQuotes[auction];
+	    pendingQuotes[auction] = null;
+	  }
+	  if (quote != null) {
+	    agent.quoteUpdated(quote);
+	  }
+	}
+      });
+  }
+
+  void quoteUpdated(final int category) {
+    if (executor == null) {
+      agent.quoteUpdated(category);
+      return;
+    }
+
+    final long position;
+    synchronized (this) {
+      categoryUpdates++;
+      long pending = pendingCategories[category];
+      if (pending > lastQuotePosition) {
+	conflatedCategories++;
+	return;
+      }
+      if (pending > 0L) {
+	// A waiting update before the last quote update is replaced by
+	// this one at the end of the queue
+	conflatedCategories++;
+      }
+      pendingCategories[category] = position = ++lastPosition;
+    }
+    execute(new Callback("quoteUpdated") {
+	protected void perform() {
+	  synchronized (AgentCallbacks.this) {
+	    if (pendingCategories[category] != position) {
+	      // Moved to the end of the queue
+	      return;
+	    }
+	    pendingCategories[category] = 0L;
+	  }
+	  agent.quoteUpdated(category);
+	}
+      });
+  }
+
+  void quotesUpdated(final QuoteBatch batch) {
+    if (executor == null) {
+      agent.quotesUpdated(batch);
+    } else {
+      execute(new Callback("quotesUpdated") {
+	  protected void perform() {
+	    agent.quotesUpdated(batch);
+	  }
+	});
+    }
+  }
+
+  void finalBid(final FinalBidCallback callback, Quote quote,
+		final boolean isStale, final long budget) {
+    if (executor == null) {
+      callback.finalBid(quote, isStale, budget);
+    } else {
+      final Quote copy = new Quote(quote);
+      execute(new Callback("finalBid") {
+	  protected void perform() {
+	    // The time spent waiting in the queue is taken from the budget
+	    long delay = getDelay() / 1000;
+	    if (budget > delay) {
+	      callback.finalBid(copy, isStale, budget - delay);
+	    } else {
+	      synchronized (AgentCallbacks.this) {
+		lateFinalBids++;
+	      }
+	      log.warning("no time left for final bid in auction "
+			  + copy.getAuction() + " (callback delayed "
+			  + delay + " ms)");
+	    }
+	  }
+	});
+    }
+  }
+
+  void bidUpdated(final Bid bid) {
+    if (executor == null) {
+      agent.bidUpdated(bid);
+    } else {
+      execute(new Callback("bidUpdated") {
+	  protected void perform() {
+	    agent.bidUpdated(bid);
+	  }
+	});
+    }
+  }
+
+  void bidRejected(final Bid bid) {
+    if (executor == null) {
+      agent.bidRejected(bid);
+    } else {
+      execute(new Callback("bidRejected") {
+	  protected void perform() {
+	    agent.bidRejected(bid);
+	  }
+	});
+    }
+  }
+
+  void bidError(final Bid bid, final int error) {
+    if (executor == null) {
+      agent.bidError(bid, error);
+    } else {
+      execute(new Callback("bidError") {
+	  protected void perform() {
+	    agent.bidError(bid, error);
+	  }
+	});
+    }
+  }
+
+  void transaction(final Transaction transaction) {
+    if (executor == null) {
+      agent.transaction(transaction);
+    } else {
+      execute(new Callback("transaction") {
+	  protected void perform() {
+	    agent.transaction(transaction);
+	  }
+	});
+    }
+  }
+
+  void auctionClosed(final int auction) {
+    if (executor == null) {
+      agent.auctionClosed(auction);
+    } else {
+      execute(new Callback("auctionClosed") {
+	  protected void perform() {
+	    agent.auctionClosed(auction);
+	  }
+	});
+    }
+  }
+
+  void tacerrorReceived(final TACMessage msg) {
+    if (executor == null) {
+      agent.tacerrorReceived(msg);
+    } else {
+      execute(new Callback("tacerrorReceived") {
+	  protected void perform() {
+	    agent.tacerrorReceived(msg);
+	  }
+	});
+    }
+  }
+
+  void gameStarted() {
+    if (executor == null || Thread.currentThread() == callbackThread) {
+      agent.gameStarted();
+    } else {
+      executeAndWait(new Callback("gameStarted") {
+	  protected void perform() {
+	    agent.gameStarted();
+	  }
+	});
+    }
+  }
+
+  void gameStopped() {
+    if (executor == null || Thread.currentThread() == callbackThread) {
+      agent.gameStopped();
+    } else {
+      executeAndWait(new Callback("gameStopped") {
+	  protected void perform() {
+	    agent.gameStopped();
+	  }
+	});
+    }
+  }
+
+  private void execute(Callback callback) {
+    try {
+      executor.execute(callback);
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "could not queue callback " + callback.name, e);
+    }
+  }
+
+  private void executeAndWait(Callback callback) {
+    try {
+      Future future = executor.submit(callback);
+      future.get();
+    } catch (InterruptedException e) {
+      log.log(Level.WARNING, "interrupted while waiting for callback "
+	      + callback.name, e);
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "could not perform callback " + callback.name, e);
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // Statistics
+  // -------------------------------------------------------------------
+
+  synchronized void resetStats() {
+    quoteUpdates = 0;
+    conflatedQuotes = 0;
+    categoryUpdates = 0;
+    conflatedCategories = 0;
+    lateFinalBids = 0;
+    callbackDelay.reset();
+  }
+
+  /**
+   * Returns the number of quote updates (for single auctions) that
+   * were conflated with a later update before the agent was called.
+   */
+  synchronized int getConflatedQuotes() {
+    return conflatedQuotes;
+  }
+
+  synchronized int getConflatedCategories() {
+    return conflatedCategories;
+  }
+
+  /**
+   * Returns the number of final bid callbacks that were not performed
+   * because their time budget ran out while waiting in the queue.
+   */
+  synchronized int getLateFinalBids() {
+    return lateFinalBids;
+  }
+
+  LatencyHistogram getCallbackDelay() {
+    return callbackDelay;
+  }
+
+  synchronized String getReport() {
+    return "Agent callbacks: " + conflatedQuotes + " of " + quoteUpdates
+      + " quote updates and " + conflatedCategories + " of "
+      + categoryUpdates + " category updates conflated";
+  }
+
+
+  // -------------------------------------------------------------------
+  // Callback runnable
+  // -------------------------------------------------------------------
+
+  private abstract class Callback implements Runnable {
+
+    final String name;
+    private final long queued = System.nanoTime();
+
+    Callback(String name) {
+      this.name = name;
+    }
+
+    public final void run() {
+      callbackDelay.record(getDelay());
+      try {
+	perform();
+      } catch (ThreadDeath e) {
+	log.log(Level.SEVERE, "agent callback thread killed", e);
+	throw e;
+      } catch (Throwable e) {
+	log.log(Level.SEVERE, "agent could not handle " + name, e);
+      }
+    }
+
+    // Returns the time in microseconds since the callback was queued
+    protected long getDelay() {
+      return (System.nanoTime() - queued) / 1000;
+    }
+
+    protected abstract void perform();
+  }
+
+} // AgentCallbacks
@@ -67,6 +67,19 @@ public abstract class AgentImpl {
   public void quoteUpdated(int auctionCategory) {
   }
 
+  /**
+   * Called once for each quote sweep in an auction category when all
+   * quotes requested in the sweep have been received. The batch holds
+   * the values before and after the sweep for each updated auction
+   * which allows the agent to update its strategy once per sweep
+   * instead of for each quote. The default implementation does
+   * nothing.
+   *
+   * @param batch the quotes received in the sweep
+   */
+  public void quotesUpdated(QuoteBatch batch) {
+  }
+
   public abstract void bidUpdated(Bid bid);
   public abstract void bidRejected(Bid bid);
   public abstract void bidError(Bid bid, int error);
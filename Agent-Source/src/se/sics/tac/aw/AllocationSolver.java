@@ -0,0 +1,1193 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * AllocationSolver
+ *
+ * Purpose :
+ *   Finds the allocation of goods to the eight clients that maximizes
+ *   the total TAC utility minus the cost of the goods used.
+ *
+ *   Each client either stays home or gets a package of an inflight,
+ *   an outflight, one hotel type for all nights and at most one
+ *   entertainment ticket of each type on different days of the stay.
+ *   A good that is owned costs its sell price (what would be earned by
+ *   selling it instead) and any other good costs its buy price. An
+ *   infinite buy price means that the good can not be bought (for
+ *   example in a closed auction).
+ *
+ *   The clients are searched depth first with branch-and-bound. The
+ *   search starts from an incumbent: the last best allocation improved
+ *   one client at a time. The upper bound is the lowest of a
+ *   Lagrangian bound, where each client gets its best package when
+ *   paying prices for the owned goods, and a bound where each client
+ *   gets its best travel package and each owned entertainment ticket
+ *   is only used once. The prices are found with subgradient steps
+ *   aimed at the value of the incumbent before the search and are all
+ *   zero when no owned good is wanted by more clients than there are
+ *   goods. A solve is limited to MAX_SOLVE_TIME and a stopped search
+ *   returns the best allocation found so far.
+ *
+ *   The solver is incremental. Prices are rounded to PRICE_BUCKET and
+ *   the optimal solutions of the last MEMO_SIZE states (owned goods
+ *   and rounded prices) are remembered. Each client keeps its packages
+ *   sorted between solves: they are only generated again when the set
+ *   of goods the client can use changes, and when the cost of a good
+ *   changes only the packages containing that good are moved.
+ */
+
+package se.sics.tac.aw;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+final class AllocationSolver {
+
+  static final int CLIENTS = 8;
+
+  /** Maximal solve time in nanoseconds: the search is stopped and the
+   * best allocation found so far returned when it has run out (see
+   * isOptimal) */
+  private static final long MAX_SOLVE_TIME = 1000000;
+  /** The search time is checked every CHECK_NODES search nodes */
+  private static final int CHECK_NODES = 64;
+
+  /** Number of passes improving the incumbent one client at a time */
+  private static final int INCUMBENT_PASSES = 4;
+
+  /** Number of subgradient steps for the prices of the owned goods */
+  private static final int PRICE_ITERATIONS = 60;
+  /** The step is halved when the bound has not improved for this many
+   * steps */
+  private static final int STALL_ITERATIONS = 3;
+
+  /** Prices are rounded to multiples of this */
+  private static final float PRICE_BUCKET = 5f;
+  /** Number of solved states remembered */
+  private static final int MEMO_SIZE = 32;
+  /** The options of a client are sorted from scratch when more goods
+   * than this have changed cost */
+  private static final int MAX_MOVES = 4;
+
+  private static final int NO_AUCTIONS = 28;
+  private static final int TRAVEL_PENALTY = 100;
+  private static final int BASE_UTILITY = 1000;
+
+  // Option info: in day (3 bits), out day (3 bits), hotel type (1
+  // bit) and the day of each entertainment type (3 bits each)
+  private static final int OUT_SHIFT = 3;
+  private static final int HOTEL_SHIFT = 6;
+  private static final int ENT_SHIFT = 7;
+
+  private final Client[] clients = new Client[CLIENTS];
+
+  // The rounded prices and the cost of each good when all owned goods
+  // are available, without (boundCost) and with (keyCost) the prices
+  // of the owned goods
+  private final int[] owned = new int[NO_AUCTIONS];
+  private final float[] buyPrice = new float[NO_AUCTIONS];
+  private final float[] sellPrice = new float[NO_AUCTIONS];
+  private final float[] boundCost = new float[NO_AUCTIONS];
+  private final float[] keyCost = new float[NO_AUCTIONS];
+
+  // Search state
+  private final int[] order = new int[CLIENTS];
+  private final int[] depthOf = new int[CLIENTS];
+  private final int[][] bonusOrder = new int[3][CLIENTS];
+  private final float[] unitCost = new float[CLIENTS];
+  // The prices of the owned goods (Lagrange multipliers)
+  private final float[] lambda = new float[NO_AUCTIONS];
+  private final float[] bestLambda = new float[NO_AUCTIONS];
+  private final float[] priceCost = new float[NO_AUCTIONS];
+  private final int[] usage = new int[NO_AUCTIONS];
+  private final int[] remaining = new int[NO_AUCTIONS];
+  private final int[] choice = new int[CLIENTS];
+  private float bestValue;
+  // A better allocation must have a value above this (the values are
+  // whole numbers since the prices are rounded to PRICE_BUCKET)
+  private float cutoff;
+  private int nodes;
+  private long deadline;
+  private boolean isOptimal;
+
+  // The best allocation
+  private final int[] bestInfo = new int[CLIENTS];
+  private final int[] bestUtility = new int[CLIENTS];
+  private long solveTime;
+  private boolean isCached;
+  private int updatedClients;
+
+  private final LinkedHashMap memo =
+    new LinkedHashMap(MEMO_SIZE * 2, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+	return size() > MEMO_SIZE;
+      }
+    };
+
+  // Buffers for generation and sorting
+  private final int[] entDay = new int[3];
+  private final int[] packageGoods = new int[9];
+  private long[] sortKeys = new long[1024];
+  private int[] moved = new int[1024];
+  private int[] kept = new int[1024];
+
+  AllocationSolver() {
+    for (int i = 0; i < CLIENTS; i++) {
+      clients[i] = new Client();
+    }
+  }
+
+  /**
+   * Sets the preferences of a client.
+   *
+   * @param client the client (0 - 7)
+   * @param arrival the preferred arrival day (1 - 4)
+   * @param departure the preferred departure day (2 - 5)
+   * @param hotelValue the hotel bonus for the good hotel
+   * @param e1 the bonus for alligator wrestling
+   * @param e2 the bonus for the amusement park
+   * @param e3 the bonus for the museum
+   */
+  void setClient(int client, int arrival, int departure, int hotelValue,
+		 int e1, int e2, int e3) {
+    Client c = clients[client];
+    int[] p = c.preferences;
+    if (p[0] != arrival || p[1] != departure || p[2] != hotelValue
+	|| p[3] != e1 || p[4] != e2 || p[5] != e3) {
+      p[0] = arrival;
+      p[1] = departure;
+      p[2] = hotelValue;
+      p[3] = e1;
+      p[4] = e2;
+      p[5] = e3;
+      c.structure = -1L;
+      memo.clear();
+    }
+  }
+
+  /**
+   * Finds the best allocation.
+   *
+   * @param owned the number of owned goods for each auction
+   * @param buyPrice the estimated price of buying one more good for
+   *	each auction (infinite if the good can not be bought)
+   * @param sellPrice the estimated price of selling an owned good for
+   *	each auction (0 if owned goods can not be sold)
+   * @return the total utility minus the cost of the best allocation
+   */
+  float solve(int[] owned, float[] buyPrice, float[] sellPrice) {
+    long startTime = System.nanoTime();
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      this.owned[a] = owned[a];
+      this.buyPrice[a] = round(buyPrice[a]);
+      this.sellPrice[a] = round(sellPrice[a]);
+    }
+
+    // Looked up without copying the arrays (copied only when remembered)
+    State state = new State(this.owned, this.buyPrice, this.sellPrice);
+    Solution solution = (Solution) memo.get(state);
+    if (solution != null) {
+      System.arraycopy(solution.info, 0, bestInfo, 0, CLIENTS);
+      System.arraycopy(solution.utility, 0, bestUtility, 0, CLIENTS);
+      bestValue = solution.value;
+      nodes = solution.nodes;
+      isOptimal = true;
+      isCached = true;
+      updatedClients = 0;
+      solveTime = System.nanoTime() - startTime;
+      return bestValue;
+    }
+    isCached = false;
+
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      remaining[a] = owned[a];
+      lambda[a] = 0f;
+    }
+    setCosts(boundCost);
+    updatedClients = 0;
+    for (int i = 0; i < CLIENTS; i++) {
+      if (updateBounds(clients[i])) {
+	updatedClients++;
+      }
+    }
+    findIncumbent();
+    updatePrices();
+    setCosts(keyCost);
+    for (int i = 0; i < CLIENTS; i++) {
+      Client c = clients[i];
+      updateValues(c, keyCost, c.keyCost, c.key, c.byKey);
+    }
+
+    for (int t = 0; t < 3; t++) {
+      int[] clientOrder = bonusOrder[t];
+      for (int i = 0; i < CLIENTS; i++) {
+	int bonus = clients[i].preferences[3 + t];
+	int j = i;
+	while (j > 0 && clients[clientOrder[j - 1]].preferences[3 + t]
+	       < bonus) {
+	  clientOrder[j] = clientOrder[j - 1];
+	  j--;
+	}
+	clientOrder[j] = i;
+      }
+    }
+
+    // Search the clients with the most valuable packages first
+    for (int i = 0; i < CLIENTS; i++) {
+      float key = clients[i].getBestKey();
+      int j = i;
+      while (j > 0 && clients[order[j - 1]].getBestKey() < key) {
+	order[j] = order[j - 1];
+	j--;
+      }
+      order[j] = i;
+    }
+    for (int k = 0; k < CLIENTS; k++) {
+      depthOf[order[k]] = k;
+    }
+    nodes = 0;
+    isOptimal = true;
+    deadline = startTime + MAX_SOLVE_TIME;
+    search(0, 0f);
+
+    // A stopped search is done again the next time (starting from the
+    // allocation it found)
+    if (isOptimal) {
+      memo.put(state.copy(),
+	       new Solution(bestInfo, bestUtility, bestValue, nodes));
+    }
+    solveTime = System.nanoTime() - startTime;
+    return bestValue;
+  }
+
+  /**
+   * Returns true if the last solve searched all allocations and false
+   * if it was stopped after the maximal solve time.
+   */
+  boolean isOptimal() {
+    return isOptimal;
+  }
+
+  /**
+   * Returns true if the last solve found the state among the
+   * remembered solutions.
+   */
+  boolean isCached() {
+    return isCached;
+  }
+
+  /**
+   * Returns the number of clients whose options were generated again
+   * or changed value in the last solve.
+   */
+  int getUpdatedClients() {
+    return updatedClients;
+  }
+
+  int getNodeCount() {
+    return nodes;
+  }
+
+  /**
+   * Returns the time of the last solve in microseconds.
+   */
+  long getSolveTime() {
+    return solveTime / 1000;
+  }
+
+  /**
+   * Returns true if the client travels in the best allocation.
+   */
+  boolean isTraveling(int client) {
+    return getArrival(client) > 0;
+  }
+
+  /**
+   * Returns the arrival day of the client or 0 if the client stays home.
+   */
+  int getArrival(int client) {
+    return bestInfo[client] & 7;
+  }
+
+  /**
+   * Returns the departure day of the client or 0 if the client stays home.
+   */
+  int getDeparture(int client) {
+    return (bestInfo[client] >> OUT_SHIFT) & 7;
+  }
+
+  /**
+   * Returns the hotel type of the client (TACAgent.TYPE_GOOD_HOTEL or
+   * TACAgent.TYPE_CHEAP_HOTEL).
+   */
+  int getHotelType(int client) {
+    return (bestInfo[client] >> HOTEL_SHIFT) & 1;
+  }
+
+  /**
+   * Returns the day the client uses the specified entertainment type
+   * (TACAgent.TYPE_ALLIGATOR_WRESTLING etc) or 0 if not used.
+   */
+  int getEntertainmentDay(int client, int type) {
+    return (bestInfo[client] >> (ENT_SHIFT + 3 * (type - 1))) & 7;
+  }
+
+  /**
+   * Returns the TAC utility of the client in the best allocation.
+   */
+  int getUtility(int client) {
+    return bestUtility[client];
+  }
+
+  /**
+   * Sets the number of goods used by the best allocation for each
+   * auction.
+   */
+  void getAllocation(int[] allocation) {
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      allocation[a] = 0;
+    }
+    for (int i = 0; i < CLIENTS; i++) {
+      int in = getArrival(i);
+      if (in > 0) {
+	int out = getDeparture(i);
+	allocation[TACAgent.getAuctionFor(TACAgent.CAT_FLIGHT,
+					  TACAgent.TYPE_INFLIGHT, in)]++;
+	allocation[TACAgent.getAuctionFor(TACAgent.CAT_FLIGHT,
+					  TACAgent.TYPE_OUTFLIGHT, out)]++;
+	for (int d = in; d < out; d++) {
+	  allocation[TACAgent.getAuctionFor(TACAgent.CAT_HOTEL,
+					    getHotelType(i), d)]++;
+	}
+	for (int type = 1; type <= 3; type++) {
+	  int day = getEntertainmentDay(i, type);
+	  if (day > 0) {
+	    allocation[TACAgent.getAuctionFor(TACAgent.CAT_ENTERTAINMENT,
+					      type, day)]++;
+	  }
+	}
+      }
+    }
+  }
+
+  private static float round(float price) {
+    return price == Float.POSITIVE_INFINITY
+      ? price
+      : Math.round(price / PRICE_BUCKET) * PRICE_BUCKET;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Incremental update of the options of the clients
+  // -------------------------------------------------------------------
+
+  // Sets the cost of each good when all owned goods are available and
+  // have their current prices
+  private void setCosts(float[] costs) {
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      float buy = buyPrice[a];
+      if (owned[a] > 0) {
+	float sell = sellPrice[a];
+	float cost = (sell < buy ? sell : buy) + lambda[a];
+	costs[a] = cost < buy ? cost : buy;
+      } else {
+	costs[a] = buy;
+      }
+    }
+  }
+
+  // Generates the options of the client again if the goods it can use
+  // have changed and otherwise updates the bounds of the options whose
+  // goods have changed cost. Returns true if anything changed.
+  private boolean updateBounds(Client c) {
+    long structure = 0L;
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      if (isUsable(c, a)) {
+	structure |= 1L << a;
+      }
+    }
+    if (structure != c.structure) {
+      c.structure = structure;
+      c.count = 0;
+      c.goodCount = 0;
+      c.travelCount = 0;
+      addOptions(c);
+      for (int o = 0; o < c.count; o++) {
+	c.bound[o] = c.utility[o] - getRootCost(c, o, boundCost);
+	c.byBound[o] = o;
+	c.byKey[o] = o;
+      }
+      sort(c.byBound, c.bound, c.count);
+      System.arraycopy(boundCost, 0, c.boundCost, 0, NO_AUCTIONS);
+      // Forces all keys to be set from scratch
+      Arrays.fill(c.keyCost, Float.NaN);
+      return true;
+    }
+    return updateValues(c, boundCost, c.boundCost, c.bound, c.byBound);
+  }
+
+  // Updates the values of the options containing goods whose cost has
+  // changed and keeps the options sorted. Returns true if any value
+  // changed.
+  private boolean updateValues(Client c, float[] costs, float[] oldCosts,
+			       float[] values, int[] sorted) {
+    int changes = 0;
+    long changedGoods = 0L;
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      // Also true for NaN (unknown cost)
+      if (costs[a] != oldCosts[a]) {
+	changedGoods |= 1L << a;
+	changes++;
+      }
+    }
+    if (changes == 0) {
+      return false;
+    }
+
+    int n = c.count;
+    if (changes > MAX_MOVES) {
+      System.arraycopy(costs, 0, oldCosts, 0, NO_AUCTIONS);
+      for (int o = 0; o < n; o++) {
+	values[o] = c.utility[o] - getRootCost(c, o, costs);
+      }
+      sort(sorted, values, n);
+      return true;
+    }
+
+    // All options with a changed good change value by the same amount
+    // so the moved options and the other options are both still sorted
+    // and only need to be merged
+    if (moved.length < n) {
+      moved = new int[n];
+      kept = new int[n];
+    }
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      long bit = 1L << a;
+      if ((changedGoods & bit) == 0) {
+	continue;
+      }
+      oldCosts[a] = costs[a];
+      int movedCount = 0;
+      int keptCount = 0;
+      for (int i = 0; i < n; i++) {
+	int o = sorted[i];
+	if ((c.goodMask[o] & bit) != 0) {
+	  values[o] = c.utility[o] - getRootCost(c, o, oldCosts);
+	  moved[movedCount++] = o;
+	} else {
+	  kept[keptCount++] = o;
+	}
+      }
+      int m = 0;
+      int k = 0;
+      for (int i = 0; i < n; i++) {
+	if (k == keptCount
+	    || (m < movedCount && values[moved[m]] > values[kept[k]])) {
+	  sorted[i] = moved[m++];
+	} else {
+	  sorted[i] = kept[k++];
+	}
+      }
+    }
+    return true;
+  }
+
+  // Sorts the first n options in sorted by descending value
+  private void sort(int[] sorted, float[] values, int n) {
+    if (sortKeys.length < n) {
+      sortKeys = new long[n];
+    }
+    long[] keys = sortKeys;
+    for (int i = 0; i < n; i++) {
+      int o = sorted[i];
+      // Order preserving integer for the negated value in the high bits
+      int bits = Float.floatToIntBits(-values[o]);
+      bits ^= (bits >> 31) & 0x7fffffff;
+      keys[i] = ((long) bits << 32) | o;
+    }
+    Arrays.sort(keys, 0, n);
+    for (int i = 0; i < n; i++) {
+      sorted[i] = (int) keys[i];
+    }
+  }
+
+  // Returns the cost of the goods of the option when all owned goods
+  // are available
+  private float getRootCost(Client c, int option, float[] costs) {
+    int[] goods = c.goods;
+    float cost = 0f;
+    for (int g = c.goodStart[option], end = c.goodStart[option + 1];
+	 g < end; g++) {
+      cost += costs[goods[g]];
+    }
+    return cost;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Incumbent allocation
+  // -------------------------------------------------------------------
+
+  // Sets the best allocation to a good first allocation: the last best
+  // allocation (clients whose option no longer exists stay home) where
+  // one client at a time changes to its best option given the options
+  // of the others until no client can do better. The search then only
+  // looks for better allocations and has one to return if it runs out
+  // of time.
+  private void findIncumbent() {
+    for (int i = 0; i < CLIENTS; i++) {
+      Client c = clients[i];
+      int option = 0;
+      for (int o = 0, n = c.count; o < n; o++) {
+	if (c.info[o] == bestInfo[i]) {
+	  option = o;
+	  break;
+	}
+      }
+      choice[i] = option;
+      addGoods(c, option, -1);
+    }
+
+    for (int pass = 0; pass < INCUMBENT_PASSES; pass++) {
+      boolean isChanged = false;
+      for (int i = 0; i < CLIENTS; i++) {
+	Client c = clients[i];
+	int current = choice[i];
+	addGoods(c, current, 1);
+	float best = c.utility[current] - getCost(c, current);
+	int bestOption = current;
+	// The bound is the value when all owned goods are available
+	int[] sorted = c.byBound;
+	for (int j = 0, n = c.count; j < n && c.bound[sorted[j]] > best; j++) {
+	  int o = sorted[j];
+	  float value = c.utility[o] - getCost(c, o);
+	  if (value > best) {
+	    best = value;
+	    bestOption = o;
+	  }
+	}
+	addGoods(c, bestOption, -1);
+	if (bestOption != current) {
+	  choice[i] = bestOption;
+	  isChanged = true;
+	}
+      }
+      if (!isChanged) {
+	break;
+      }
+    }
+
+    // The owned goods go to the clients in any order since each one
+    // costs the same whoever uses it
+    for (int i = 0; i < CLIENTS; i++) {
+      addGoods(clients[i], choice[i], 1);
+    }
+    float value = 0f;
+    for (int i = 0; i < CLIENTS; i++) {
+      Client c = clients[i];
+      int o = choice[i];
+      value += c.utility[o] - getCost(c, o);
+      addGoods(c, o, -1);
+      bestInfo[i] = c.info[o];
+      bestUtility[i] = c.utility[o];
+    }
+    for (int i = 0; i < CLIENTS; i++) {
+      addGoods(clients[i], choice[i], 1);
+    }
+    bestValue = value;
+    cutoff = value + 0.5f;
+  }
+
+  // Adds the specified number of each good of the option to the goods
+  // still owned
+  private void addGoods(Client c, int option, int count) {
+    int[] remaining = this.remaining;
+    int[] goods = c.goods;
+    for (int g = c.goodStart[option], end = c.goodStart[option + 1];
+	 g < end; g++) {
+      remaining[goods[g]] += count;
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // Branch-and-bound search
+  // -------------------------------------------------------------------
+
+  private void search(int depth, float value) {
+    if (depth == CLIENTS) {
+      if (value > bestValue) {
+	bestValue = value;
+	cutoff = value + 0.5f;
+	for (int i = 0; i < CLIENTS; i++) {
+	  bestInfo[i] = clients[i].info[choice[i]];
+	  bestUtility[i] = clients[i].utility[choice[i]];
+	}
+      }
+      return;
+    }
+
+    // Two upper bounds for the remaining clients: the Lagrangian bound
+    // where each client gets its best option when paying the prices
+    // for the goods still owned, and the bound where each client gets
+    // its best travel package and the owned entertainment tickets are
+    // only used once
+    int[] remaining = this.remaining;
+    float priceSum = 0f;
+    for (int a = 0; a < NO_AUCTIONS; a++) {
+      if (remaining[a] > 0) {
+	priceSum += lambda[a] * remaining[a];
+      }
+    }
+    int client = order[depth];
+    Client c = clients[client];
+    float restBound = 0f;
+    float restTravel = 0f;
+    for (int k = depth + 1; k < CLIENTS; k++) {
+      Client other = clients[order[k]];
+      restBound += getPricedValue(other);
+      restTravel += getTravelValue(other);
+    }
+    float funBound = 0f;
+    float restFunBound = 0f;
+    for (int t = 0; t < 3; t++) {
+      funBound += getFunBound(t, depth);
+      restFunBound += getFunBound(t, depth + 1);
+    }
+    if (value + Math.min(priceSum + getPricedValue(c) + restBound,
+			 getTravelValue(c) + restTravel + funBound)
+	<= cutoff) {
+      return;
+    }
+    restBound += priceSum;
+    restTravel += restFunBound;
+
+    int[] sorted = c.byKey;
+    for (int i = 0, n = c.count; i < n; i++) {
+      int o = sorted[i];
+      // The options are sorted by their priced value when all owned
+      // goods are available so no later option can give a better
+      // allocation either
+      if (value + c.key[o] + restBound <= cutoff) {
+	break;
+      }
+      if (value + c.utility[o] - getPricedCost(c, o) + restBound
+	  <= cutoff) {
+	continue;
+      }
+      float newValue = value + c.utility[o] - getCost(c, o);
+      if (newValue + restTravel <= cutoff) {
+	continue;
+      }
+      if (++nodes % CHECK_NODES == 0 && System.nanoTime() > deadline) {
+	isOptimal = false;
+	return;
+      }
+
+      int[] goods = c.goods;
+      int gStart = c.goodStart[o];
+      int gEnd = c.goodStart[o + 1];
+      for (int g = gStart; g < gEnd; g++) {
+	remaining[goods[g]]--;
+      }
+      choice[client] = o;
+      search(depth + 1, newValue);
+      for (int g = gStart; g < gEnd; g++) {
+	remaining[goods[g]]++;
+      }
+      if (!isOptimal) {
+	return;
+      }
+    }
+  }
+
+  // Finds prices for the owned goods that give a low Lagrangian bound
+  // by subgradient steps towards the prices where the goods are not
+  // used more than they are owned. The step length aims the bound at
+  // the value of the incumbent (Polyak) and is halved when the bound
+  // stops improving.
+  private void updatePrices() {
+    int[] remaining = this.remaining;
+    float bestBound = Float.POSITIVE_INFINITY;
+    float theta = 2f;
+    int stalled = 0;
+    for (int iteration = 0; iteration < PRICE_ITERATIONS; iteration++) {
+      // All owned goods are available so the priced value of an option
+      // is its bound minus what the prices add to the cost of its goods
+      float bound = 0f;
+      long pricedGoods = 0L;
+      for (int a = 0; a < NO_AUCTIONS; a++) {
+	usage[a] = 0;
+	bound += lambda[a] * remaining[a];
+	float cost = 0f;
+	if (lambda[a] > 0f) {
+	  float buy = buyPrice[a];
+	  float sell = sellPrice[a];
+	  cost = buy - (sell < buy ? sell : buy);
+	  if (lambda[a] < cost) {
+	    cost = lambda[a];
+	  }
+	  if (cost > 0f) {
+	    pricedGoods |= 1L << a;
+	  }
+	}
+	priceCost[a] = cost;
+      }
+      for (int i = 0; i < CLIENTS; i++) {
+	// The bound is the value without prices which is never lower
+	Client c = clients[i];
+	int[] sorted = c.byBound;
+	float best = Float.NEGATIVE_INFINITY;
+	int bestOption = -1;
+	for (int j = 0, n = c.count; j < n && c.bound[sorted[j]] > best; j++) {
+	  int o = sorted[j];
+	  float value = c.bound[o];
+	  for (long goods = c.goodMask[o] & pricedGoods; goods != 0L;
+	       goods &= goods - 1) {
+	    value -= priceCost[Long.numberOfTrailingZeros(goods)];
+	  }
+	  if (value > best) {
+	    best = value;
+	    bestOption = o;
+	  }
+	}
+	bound += best;
+	int[] goods = c.goods;
+	for (int g = c.goodStart[bestOption],
+	       end = c.goodStart[bestOption + 1]; g < end; g++) {
+	  int auction = goods[g];
+	  if (remaining[auction] > 0 && isOwnedUsed(auction)) {
+	    usage[auction]++;
+	  }
+	}
+      }
+      if (bound < bestBound) {
+	bestBound = bound;
+	System.arraycopy(lambda, 0, bestLambda, 0, NO_AUCTIONS);
+	stalled = 0;
+      } else if (++stalled >= STALL_ITERATIONS) {
+	theta *= 0.5f;
+	stalled = 0;
+      }
+      if (bound <= cutoff) {
+	// The incumbent is optimal
+	break;
+      }
+
+      float norm = 0f;
+      for (int a = 0; a < NO_AUCTIONS; a++) {
+	int excess = usage[a] - remaining[a];
+	if (remaining[a] > 0 && (excess > 0 || lambda[a] > 0f)) {
+	  norm += excess * excess;
+	}
+      }
+      if (norm == 0f) {
+	// No owned good is used more than owned: the bound is exact
+	break;
+      }
+      float scale = theta * (bound - bestValue) / norm;
+      for (int a = 0; a < NO_AUCTIONS; a++) {
+	if (remaining[a] > 0) {
+	  float price = lambda[a] + scale * (usage[a] - remaining[a]);
+	  lambda[a] = price > 0f ? price : 0f;
+	}
+      }
+    }
+    System.arraycopy(bestLambda, 0, lambda, 0, NO_AUCTIONS);
+  }
+
+  // Returns true if an owned good is used instead of buying a new one
+  // when the owned good has its price
+  private boolean isOwnedUsed(int auction) {
+    float buy = buyPrice[auction];
+    float sell = sellPrice[auction];
+    return (sell < buy ? sell : buy) + lambda[auction] < buy;
+  }
+
+  // Returns the value of the best option for the client given the
+  // goods still owned and their prices
+  private float getPricedValue(Client c) {
+    int[] sorted = c.byKey;
+    float best = Float.NEGATIVE_INFINITY;
+    for (int i = 0, n = c.count; i < n && c.key[sorted[i]] > best; i++) {
+      int o = sorted[i];
+      float value = c.utility[o] - getPricedCost(c, o);
+      if (value > best) {
+	best = value;
+      }
+    }
+    return best;
+  }
+
+  // Returns the cost of the goods of the option given the goods still
+  // owned and their prices
+  private float getPricedCost(Client c, int option) {
+    int[] remaining = this.remaining;
+    int[] goods = c.goods;
+    float cost = 0f;
+    for (int g = c.goodStart[option], end = c.goodStart[option + 1];
+	 g < end; g++) {
+      int auction = goods[g];
+      float buy = buyPrice[auction];
+      if (remaining[auction] > 0) {
+	float sell = sellPrice[auction];
+	float ownedCost = (sell < buy ? sell : buy) + lambda[auction];
+	cost += ownedCost < buy ? ownedCost : buy;
+      } else {
+	cost += buy;
+      }
+    }
+    return cost;
+  }
+
+  // Returns the value of the best option without entertainment for
+  // the client given the goods still owned
+  private float getTravelValue(Client c) {
+    int[] options = c.travel;
+    float best = Float.NEGATIVE_INFINITY;
+    for (int i = 0, n = c.travelCount; i < n; i++) {
+      float value = c.utility[options[i]] - getCost(c, options[i]);
+      if (value > best) {
+	best = value;
+      }
+    }
+    return best;
+  }
+
+  // Returns an upper bound for the bonus minus the ticket cost of the
+  // specified entertainment type (0 - 2) for the clients from the
+  // specified search depth. Each client uses at most one ticket of the
+  // type and the clients with the highest bonuses get the cheapest
+  // tickets (ignoring the days of their stays).
+  private float getFunBound(int type, int firstDepth) {
+    int[] remaining = this.remaining;
+    float[] costs = unitCost;
+    int units = 0;
+    float minBuy = Float.POSITIVE_INFINITY;
+    for (int d = 1; d <= 4; d++) {
+      int auction = TACAgent.getAuctionFor(TACAgent.CAT_ENTERTAINMENT,
+					   type + 1, d);
+      float buy = buyPrice[auction];
+      if (buy < minBuy) {
+	minBuy = buy;
+      }
+      float sell = sellPrice[auction];
+      float cost = sell < buy ? sell : buy;
+      for (int n = remaining[auction]; n > 0 && units < CLIENTS; n--) {
+	int j = units++;
+	while (j > 0 && costs[j - 1] > cost) {
+	  costs[j] = costs[j - 1];
+	  j--;
+	}
+	costs[j] = cost;
+      }
+    }
+
+    float bound = 0f;
+    int next = 0;
+    int[] clientOrder = bonusOrder[type];
+    for (int i = 0; i < CLIENTS; i++) {
+      int client = clientOrder[i];
+      if (depthOf[client] < firstDepth) {
+	continue;
+      }
+      float cost = minBuy;
+      if (next < units && costs[next] <= minBuy) {
+	cost = costs[next++];
+      }
+      float gain = clients[client].preferences[3 + type] - cost;
+      if (gain <= 0f) {
+	break;
+      }
+      bound += gain;
+    }
+    return bound;
+  }
+
+  // Returns the cost of the goods of the option given the goods still
+  // owned (an option never contains the same good twice)
+  private float getCost(Client c, int option) {
+    int[] remaining = this.remaining;
+    int[] goods = c.goods;
+    float cost = 0f;
+    for (int g = c.goodStart[option], end = c.goodStart[option + 1];
+	 g < end; g++) {
+      int auction = goods[g];
+      float buy = buyPrice[auction];
+      if (remaining[auction] > 0) {
+	float sell = sellPrice[auction];
+	cost += sell < buy ? sell : buy;
+      } else {
+	cost += buy;
+      }
+    }
+    return cost;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Option generation
+  // -------------------------------------------------------------------
+
+  // Returns true if the client might use the good: flights and hotels
+  // that are owned or can be bought and entertainment tickets that are
+  // owned or cost less than the bonus they give
+  private boolean isUsable(Client c, int auction) {
+    if (owned[auction] > 0) {
+      return true;
+    }
+    float buy = buyPrice[auction];
+    if (auction >= TACAgent.MIN_ENTERTAINMENT) {
+      return buy < c.preferences[2 + TACAgent.getAuctionType(auction)];
+    }
+    return buy != Float.POSITIVE_INFINITY;
+  }
+
+  private void addOptions(Client c) {
+    int[] p = c.preferences;
+
+    // Staying home is always possible
+    addOption(c, 0, 0, 0);
+
+    for (int in = 1; in <= 4; in++) {
+      int inAuction = TACAgent.getAuctionFor(TACAgent.CAT_FLIGHT,
+					     TACAgent.TYPE_INFLIGHT, in);
+      if (!isUsable(c, inAuction)) {
+	continue;
+      }
+      for (int out = in + 1; out <= 5; out++) {
+	int outAuction = TACAgent.getAuctionFor(TACAgent.CAT_FLIGHT,
+						TACAgent.TYPE_OUTFLIGHT, out);
+	if (!isUsable(c, outAuction)) {
+	  continue;
+	}
+	int travelUtility = BASE_UTILITY
+	  - TRAVEL_PENALTY * (Math.abs(in - p[0]) + Math.abs(out - p[1]));
+
+	for (int type = TACAgent.TYPE_CHEAP_HOTEL;
+	     type <= TACAgent.TYPE_GOOD_HOTEL; type++) {
+	  int count = 0;
+	  packageGoods[count++] = inAuction;
+	  packageGoods[count++] = outAuction;
+	  boolean available = true;
+	  for (int d = in; d < out; d++) {
+	    int auction =
+	      TACAgent.getAuctionFor(TACAgent.CAT_HOTEL, type, d);
+	    if (!isUsable(c, auction)) {
+	      available = false;
+	      break;
+	    }
+	    packageGoods[count++] = auction;
+	  }
+	  if (available) {
+	    int info = in | (out << OUT_SHIFT) | (type << HOTEL_SHIFT);
+	    int utility = travelUtility
+	      + (type == TACAgent.TYPE_GOOD_HOTEL ? p[2] : 0);
+	    addEntertainmentOptions(c, in, out, info, utility, count, 0);
+	  }
+	}
+      }
+    }
+  }
+
+  // Adds the options for all assignments of the entertainment types
+  // from 'type' and up to different days of the stay.
+  private void addEntertainmentOptions(Client c, int in, int out,
+				       int info, int utility, int count,
+				       int type) {
+    if (type == 3) {
+      addOption(c, info, utility, count);
+      return;
+    }
+
+    // Without this type
+    entDay[type] = 0;
+    addEntertainmentOptions(c, in, out, info, utility, count, type + 1);
+
+    int bonus = c.preferences[3 + type];
+    for (int d = in; d < out; d++) {
+      if (isDayUsed(d, type)) {
+	continue;
+      }
+      int auction = TACAgent.getAuctionFor(TACAgent.CAT_ENTERTAINMENT,
+					   type + 1, d);
+      // A ticket that must be bought for more than it gives is never
+      // part of a best allocation
+      if (!isUsable(c, auction)) {
+	continue;
+      }
+      entDay[type] = d;
+      packageGoods[count] = auction;
+      addEntertainmentOptions(c, in, out,
+			      info | (d << (ENT_SHIFT + 3 * type)),
+			      utility + bonus, count + 1, type + 1);
+    }
+    entDay[type] = 0;
+  }
+
+  private boolean isDayUsed(int day, int type) {
+    for (int t = 0; t < type; t++) {
+      if (entDay[t] == day) {
+	return true;
+      }
+    }
+    return false;
+  }
+
+  private void addOption(Client c, int info, int utility, int count) {
+    c.ensureCapacity(c.count + 1, c.goodCount + count);
+    int o = c.count++;
+    long mask = 0L;
+    for (int g = 0; g < count; g++) {
+      c.goods[c.goodCount++] = packageGoods[g];
+      mask |= 1L << packageGoods[g];
+    }
+    c.info[o] = info;
+    c.utility[o] = utility;
+    c.goodMask[o] = mask;
+    c.goodStart[o + 1] = c.goodCount;
+    if ((info >> ENT_SHIFT) == 0) {
+      c.travel[c.travelCount++] = o;
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // Options of a client and remembered solutions
+  // -------------------------------------------------------------------
+
+  private static class Client {
+    public final int[] preferences = new int[6];
+
+    // The goods the client could use when the options were generated
+    // (-1 if the options must be generated)
+    public long structure = -1L;
+
+    // The goods of option o are goods[goodStart[o]...goodStart[o+1]-1].
+    // bound is the value of an option when all owned goods are
+    // available and key the same value when paying the prices of the
+    // owned goods. byBound and byKey are the options in descending
+    // order of bound and key.
+    public int count;
+    public int goodCount;
+    public int[] info = new int[256];
+    public int[] utility = new int[256];
+    public long[] goodMask = new long[256];
+    public float[] bound = new float[256];
+    public float[] key = new float[256];
+    public int[] byBound = new int[256];
+    public int[] byKey = new int[256];
+    public int[] goodStart = new int[257];
+    public int[] goods = new int[2048];
+
+    // The options without entertainment (20 packages and staying home)
+    public final int[] travel = new int[21];
+    public int travelCount;
+
+    // The costs of the goods when bound and key were last set
+    public final float[] boundCost = new float[NO_AUCTIONS];
+    public final float[] keyCost = new float[NO_AUCTIONS];
+
+    public float getBestKey() {
+      return key[byKey[0]];
+    }
+
+    public void ensureCapacity(int options, int goodCount) {
+      if (options > info.length) {
+	int size = info.length * 2;
+	info = grow(info, size);
+	utility = grow(utility, size);
+	bound = grow(bound, size);
+	key = grow(key, size);
+	byBound = grow(byBound, size);
+	byKey = grow(byKey, size);
+	goodStart = grow(goodStart, size + 1);
+	long[] tmp = new long[size];
+	System.arraycopy(goodMask, 0, tmp, 0, goodMask.length);
+	goodMask = tmp;
+      }
+      if (goodCount > goods.length) {
+	goods = grow(goods, goods.length * 2);
+      }
+    }
+
+    private static int[] grow(int[] array, int size) {
+      int[] tmp = new int[size];
+      System.arraycopy(array, 0, tmp, 0, array.length);
+      return tmp;
+    }
+
+    private static float[] grow(float[] array, int size) {
+      float[] tmp = new float[size];
+      System.arraycopy(array, 0, tmp, 0, array.length);
+      return tmp;
+    }
+  }
+
+  private static class State {
+    private final int[] owned;
+    private final float[] buyPrice;
+    private final float[] sellPrice;
+    private final int hash;
+
+    // Refers to the arrays which must not be changed while the state is
+    // used as key (see copy)
+    public State(int[] owned, float[] buyPrice, float[] sellPrice) {
+      this.owned = owned;
+      this.buyPrice = buyPrice;
+      this.sellPrice = sellPrice;
+      this.hash = (Arrays.hashCode(owned) * 31
+		   + Arrays.hashCode(buyPrice)) * 31
+	+ Arrays.hashCode(sellPrice);
+    }
+
+    public State copy() {
+      return new State(owned.clone(), buyPrice.clone(), sellPrice.clone());
+    }
+
+    public int hashCode() {
+      return hash;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof State)) {
+	return false;
+      }
+      State state = (State) o;
+      return hash == state.hash
+	&& Arrays.equals(owned, state.owned)
+	&& Arrays.equals(buyPrice, state.buyPrice)
+	&& Arrays.equals(sellPrice, state.sellPrice);
+    }
+  }
+
+  private static class Solution {
+    public final int[] info;
+    public final int[] utility;
+    public final float value;
+    public final int nodes;
+
+    public Solution(int[] info, int[] utility, float value, int nodes) {
+      this.info = info.clone();
+      this.utility = utility.clone();
+      this.value = value;
+      this.nodes = nodes;
+    }
+  }
+
+} // AllocationSolver
@@ -25,6 +25,8 @@
 
 package se.sics.tac.aw;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 public class Bid {
 
@@ -44,6 +46,12 @@ public class Bid {
 
   private final static int INCREMENT = 10;
 
+  private final static AtomicReferenceFieldUpdater replacingUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(Bid.class, Bid.class,
+					   "replacing");
+  private final static AtomicLongFieldUpdater submittedUpdater =
+    AtomicLongFieldUpdater.newUpdater(Bid.class, "timeSubmitted");
+
   private final static String[] rejectName = {
     "not rejected",
     "self transaction",
@@ -85,6 +93,8 @@ public class Bid {
   };
 
   private final int auction;
+  // The state set from the server replies is guarded by this bid (it
+  // might be read by the agent in another thread)
   private int id = NO_ID;
   private int rejectReason;
   private String bidHash;
@@ -99,8 +109,10 @@ public class Bid {
   private int[] quantity;
   private float[] price;
 
-  private Bid replacing;
-  private long timeSubmitted = 0L;
+  private volatile Bid replacing;
+  private volatile long timeSubmitted = 0L;
+  // Completed when the bid has been processed (if submitted async)
+  private volatile TACFuture future;
 
   // Transaction clearing
   private int clearID = -1;
@@ -117,13 +129,15 @@ public class Bid {
   }
 
   Bid(Bid oldBid, String bidString, String bidHash) {
-    this.id = oldBid.id;
     this.auction = oldBid.auction;
+    synchronized (oldBid) {
+      this.id = oldBid.id;
+      this.rejectReason = oldBid.rejectReason;
+      this.processingState = oldBid.processingState;
+      this.timeProcessed = oldBid.timeProcessed;
+    }
     this.bidString = bidString;
     this.bidHash = bidHash;
-    this.rejectReason = oldBid.rejectReason;
-    this.processingState = oldBid.processingState;
-    this.timeProcessed = oldBid.timeProcessed;
     this.timeClosed = timeClosed;
     this.timeSubmitted = timeSubmitted;
     parseBidString(bidString);
@@ -135,20 +149,20 @@ public class Bid {
   }
 
   void submitted() {
-    if (timeSubmitted > 0) {
+    if (!submittedUpdater.compareAndSet(this, 0L,
+					System.currentTimeMillis())) {
       throw new IllegalStateException("Bid already submitted");
     }
-    timeSubmitted = System.currentTimeMillis();
   }
 
-  void setID(int bidID) {
+  synchronized void setID(int bidID) {
     if (id != NO_ID) {
       throw new IllegalStateException("Bid ID already set " + id);
     }
     id = bidID;
   }
 
-  void setRejectReason(int reason) {
+  synchronized void setRejectReason(int reason) {
     rejectReason = reason;
   }
 
@@ -163,59 +177,82 @@ public class Bid {
     return replacing;
   }
 
+  // Changes the bid this bid is replacing if it still is the expected
+  // bid (see BidTable)
+  boolean casReplacing(Bid expect, Bid update) {
+    return replacingUpdater.compareAndSet(this, expect, update);
+  }
+
+  void setFuture(TACFuture future) {
+    this.future = future;
+  }
+
+  TACFuture getFuture() {
+    return future;
+  }
+
   // Only used when recovering bids
-  void setBidHash(String hash) {
+  synchronized void setBidHash(String hash) {
     bidHash = hash;
   }
 
-  public String getBidHash() {
+  public synchronized String getBidHash() {
     return bidHash;
   }
 
-  void setTimeProcessed(long time) {
+  synchronized void setTimeProcessed(long time) {
     timeProcessed = time * 1000;
   }
 
-  public long getTimeProcessed() {
+  public synchronized long getTimeProcessed() {
     return timeProcessed;
   }
 
-  void setTimeClosed(long time) {
+  synchronized void setTimeClosed(long time) {
     timeClosed = time * 1000;
   }
 
-  public long getTimeClosed() {
+  public synchronized long getTimeClosed() {
     return timeClosed;
   }
 
-  void setProcessingState(int state) {
+  synchronized void setProcessingState(int state) {
     processingState = state;
   }
 
-  public int getProcessingState() {
+  // Sets the state from a bid info reply in one step
+  synchronized void setProcessed(int state, int reason, long timeProcessed,
+				 long timeClosed) {
+    this.processingState = state;
+    this.rejectReason = reason;
+    this.timeProcessed = timeProcessed * 1000;
+    this.timeClosed = timeClosed * 1000;
+  }
+
+  public synchronized int getProcessingState() {
     return processingState;
   }
 
-  public String getProcessingStateAsString() {
+  public synchronized String getProcessingStateAsString() {
     int state = this.processingState;
     return (state >= UNPROCESSED) && (state <= stateName.length)
       ? stateName[state]
       : Integer.toString(state);
   }
 
-  public boolean isPreliminary() {
+  public synchronized boolean isPreliminary() {
     return (id == NO_ID || processingState == UNPROCESSED);
   }
 
-  public boolean isRejected() {
+  public synchronized boolean isRejected() {
     return rejectReason != NOT_REJECTED;
   }
 
-  public int getRejectReason() {
+  public synchronized int getRejectReason() {
     return rejectReason;
   }
 
-  public String getRejectReasonAsString() {
+  public synchronized String getRejectReasonAsString() {
     int reason = this.rejectReason;
     for (int i = 0, n = rejectCode.length; i < n; i++) {
       if (rejectCode[i] == reason) {
@@ -229,7 +266,7 @@ public class Bid {
     return auction;
   }
 
-  public int getID() {
+  public synchronized int getID() {
     return id;
   }
 
@@ -284,7 +321,7 @@ public class Bid {
     return price[index];
   }
 
-  public String getBidString() {
+  public synchronized String getBidString() {
     String bidString = this.bidString;
     if (bidString == null){
       StringBuffer bid = new StringBuffer();
@@ -300,34 +337,37 @@ public class Bid {
   }
 
   // Only used when recovering bids
-  void setBidString(String bidString) {
+  synchronized void setBidString(String bidString) {
     this.bidString = bidString;
     parseBidString(bidString);
   }
 
   public boolean same(Bid bid) {
-    return this == bid || ((bid != null && id == bid.id) && (id != NO_ID));
+    int id = getID();
+    return this == bid
+      || ((bid != null && id == bid.getID()) && (id != NO_ID));
   }
 
-  void setBidTransacted(int clearID, String bidHash, String bidString) {
+  synchronized void setBidTransacted(int clearID, String bidHash,
+				     String bidString) {
     this.clearID = clearID;
     this.clearHash = bidHash;
     this.clearString = bidString;
   }
 
-  int getClearID() {
+  synchronized int getClearID() {
     return clearID;
   }
 
-  String getClearString() {
+  synchronized String getClearString() {
     return clearString;
   }
 
-  String getClearHash() {
+  synchronized String getClearHash() {
     return clearHash;
   }
 
-  public boolean isAwaitingTransactions() {
+  public synchronized boolean isAwaitingTransactions() {
     return clearID >= 0;
   }
 
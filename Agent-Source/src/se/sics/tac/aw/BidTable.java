@@ -0,0 +1,155 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * BidTable
+ *
+ * Purpose :
+ *   Holds the bids for each auction without locking. The bid for an
+ *   auction is the head of a chain of bids where each bid refers to
+ *   the bid it is replacing (see Bid.getReplacing()). The head is
+ *   the latest submitted bid which is preliminary until the server
+ *   has processed it and the bids further down the chain are the
+ *   earlier bids that it is replacing.
+ *
+ *   All transitions are made by compare-and-set: a submitted bid is
+ *   pushed as new head, a replacement only succeeds if the replaced
+ *   bid still is the head, and a rejected, transacted, or confirmed
+ *   bid is swapped or unlinked where it is found in the chain. A
+ *   failed compare-and-set is retried from the head of the chain.
+ *   New bids are only added at the head while bids further down the
+ *   chain are only changed by the thread handling the replies, so an
+ *   unlink never races with another unlink.
+ */
+
+package se.sics.tac.aw;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+final class BidTable {
+
+  private final AtomicReferenceArray bids;
+
+  BidTable(int auctions) {
+    bids = new AtomicReferenceArray(auctions);
+  }
+
+  Bid get(int auction) {
+    return (Bid) bids.get(auction);
+  }
+
+  void clear() {
+    for (int i = 0, n = bids.length(); i < n; i++) {
+      bids.set(i, null);
+    }
+  }
+
+  /**
+   * Makes the submitted bid the head of the chain for its auction.
+   */
+  void submit(Bid bid) {
+    int auction = bid.getAuction();
+    Bid head;
+    do {
+      head = (Bid) bids.get(auction);
+      bid.setReplacing(head);
+    } while (!bids.compareAndSet(auction, head, bid));
+  }
+
+  /**
+   * Makes the bid the head of the chain if the old bid still is the
+   * head. Returns <code>false</code> if the active bid has changed.
+   */
+  boolean replace(Bid oldBid, Bid bid) {
+    bid.setReplacing(oldBid);
+    if (bids.compareAndSet(bid.getAuction(), oldBid, bid)) {
+      return true;
+    }
+    bid.setReplacing(null);
+    return false;
+  }
+
+  /**
+   * Sets a recovered bid if the auction has no bid. Returns
+   * <code>false</code> if a bid already exists.
+   */
+  boolean recover(Bid bid) {
+    return bids.compareAndSet(bid.getAuction(), null, bid);
+  }
+
+  /**
+   * Removes a rejected bid. If the bid is the head the bid it was
+   * replacing becomes active again. Returns <code>true</code> if the
+   * bid had already been replaced by a later bid (the bid is then
+   * only unlinked from the chain).
+   */
+  boolean revert(Bid bid) {
+    int auction = bid.getAuction();
+    while (true) {
+      Bid head = (Bid) bids.get(auction);
+      if (bid.same(head)) {
+	if (bids.compareAndSet(auction, head, bid.getReplacing())) {
+	  return false;
+	}
+	continue;
+      }
+      if (head == null) {
+	return false;
+      }
+      Bid parent = head;
+      Bid child;
+      while ((child = parent.getReplacing()) != null && !child.same(bid)) {
+	parent = child;
+      }
+      if (child == null) {
+	return false;
+      }
+      if (parent.casReplacing(child, child.getReplacing())) {
+	return true;
+      }
+    }
+  }
+
+  /**
+   * Swaps a bid in the chain for a new bid (or removes it if the new
+   * bid is <code>null</code>). The new bid takes the place of the bid
+   * but does not keep the bids it was replacing.
+   */
+  void change(int auction, Bid bid, Bid newBid) {
+    while (true) {
+      Bid head = (Bid) bids.get(auction);
+      if (head == null) {
+	return;
+      }
+      if (head.same(bid)) {
+	if (bids.compareAndSet(auction, head, newBid)) {
+	  return;
+	}
+	continue;
+      }
+      Bid parent = head;
+      Bid child;
+      while ((child = parent.getReplacing()) != null && !child.same(bid)) {
+	parent = child;
+      }
+      if (child == null || parent.casReplacing(child, newBid)) {
+	return;
+      }
+    }
+  }
+
+} // BidTable
@@ -0,0 +1,240 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * EventLoop
+ *
+ * Purpose :
+ *   A single thread that performs all events posted to it in the
+ *   order they were posted. Events can be posted from any number of
+ *   threads without locking: they are linked into a multi-producer,
+ *   single-consumer queue where each producer only swaps the tail of
+ *   the queue, and the event thread parks itself when the queue is
+ *   empty. An optional idle task is performed each time the queue has
+ *   been emptied (but at least every MAX_BATCH events) which can be
+ *   used to publish the state changed by a batch of events. The time
+ *   each event waited in the queue and its execution time are
+ *   measured.
+ */
+
+package se.sics.tac.aw;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class EventLoop implements Runnable {
+
+  private static final Logger log =
+    Logger.getLogger(EventLoop.class.getName());
+
+  private final static int MESSAGE = 0;
+  private final static int TASK = 1;
+  private final static int RUNNABLE = 2;
+
+  /** Maximal number of events performed before the idle task */
+  private final static int MAX_BATCH = 64;
+
+  private static final AtomicReferenceFieldUpdater nextUpdater =
+    AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+  // The consumer owns the head (the last performed node) and the
+  // producers swap the tail
+  private Node head = new Node(RUNNABLE, null, 0L, null, null);
+  private final AtomicReference tail = new AtomicReference(head);
+
+  private final Thread thread;
+  private volatile boolean isWaiting = false;
+  private final AtomicLong posted = new AtomicLong();
+
+  private final LatencyHistogram queueDelay =
+    new LatencyHistogram("event queue delay");
+  private final LatencyHistogram executionTime =
+    new LatencyHistogram("event execution");
+  // Time from when a reply was posted until it had been handled
+  private final LatencyHistogram replyTime;
+  // Performed when the queue has been emptied (or null)
+  private final Runnable idleTask;
+
+  EventLoop(String name, LatencyHistogram replyTime, Runnable idleTask) {
+    this.replyTime = replyTime;
+    this.idleTask = idleTask;
+    this.thread = new Thread(this, name);
+    thread.start();
+  }
+
+  /**
+   * Returns <code>true</code> if the calling thread is the event thread.
+   */
+  boolean isEventThread() {
+    return Thread.currentThread() == thread;
+  }
+
+  void post(TACMessage msg) {
+    post(new Node(MESSAGE, msg, 0L, null, null));
+  }
+
+  void post(long time, Object key, Object value, Task task) {
+    post(new Node(TASK, task, time, key, value));
+  }
+
+  void post(Runnable runnable) {
+    post(new Node(RUNNABLE, runnable, 0L, null, null));
+  }
+
+  private void post(Node node) {
+    Node previous = (Node) tail.getAndSet(node);
+    // The node is not visible to the event thread until it has been
+    // linked (the event thread waits for this if it sees the new tail)
+    nextUpdater.lazySet(previous, node);
+    posted.incrementAndGet();
+    if (isWaiting) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  public void run() {
+    int performed = 0;
+    while (true) {
+      Node node = head.next;
+      if (node == null || performed >= MAX_BATCH) {
+	if (performed > 0) {
+	  performed = 0;
+	  performIdleTask();
+	  continue;
+	}
+	if (tail.get() != head) {
+	  // A producer has swapped the tail but not yet linked the node
+	  Thread.yield();
+	  continue;
+	}
+	isWaiting = true;
+	if (head.next == null && tail.get() == head) {
+	  LockSupport.park(this);
+	}
+	isWaiting = false;
+	continue;
+      }
+
+      // Let the node become the new (empty) head
+      head = node;
+      performed++;
+      long start = System.nanoTime();
+      queueDelay.record((start - node.postedNanos) / 1000);
+      try {
+	perform(node);
+      } catch (ThreadDeath e) {
+	log.log(Level.SEVERE, "event thread killed", e);
+	throw e;
+      } catch (Throwable e) {
+	log.log(Level.SEVERE, "could not handle event " + node.item, e);
+      }
+      long end = System.nanoTime();
+      executionTime.record((end - start) / 1000);
+      if (node.type == MESSAGE && replyTime != null) {
+	replyTime.record((end - node.postedNanos) / 1000);
+      }
+      node.clear();
+    }
+  }
+
+  private void performIdleTask() {
+    if (idleTask != null) {
+      try {
+	idleTask.run();
+      } catch (ThreadDeath e) {
+	log.log(Level.SEVERE, "event thread killed", e);
+	throw e;
+      } catch (Throwable e) {
+	log.log(Level.SEVERE, "could not perform idle task", e);
+      }
+    }
+  }
+
+  private void perform(Node node) {
+    switch (node.type) {
+    case MESSAGE:
+      ((TACMessage) node.item).deliverMessage();
+      break;
+    case TASK:
+      ((Task) node.item).performWork(node.time, node.key, node.value);
+      break;
+    default:
+      ((Runnable) node.item).run();
+      break;
+    }
+  }
+
+  /**
+   * Returns the number of events posted since the event loop started.
+   */
+  long getPostedCount() {
+    return posted.get();
+  }
+
+  LatencyHistogram getQueueDelay() {
+    return queueDelay;
+  }
+
+  LatencyHistogram getExecutionTime() {
+    return executionTime;
+  }
+
+  void resetStats() {
+    queueDelay.reset();
+    executionTime.reset();
+  }
+
+  String getReport() {
+    return queueDelay + "\n  " + executionTime;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Queue node
+  // -------------------------------------------------------------------
+
+  private static class Node {
+    final int type;
+    final long postedNanos = System.nanoTime();
+    Object item;
+    long time;
+    Object key;
+    Object value;
+    volatile Node next;
+
+    Node(int type, Object item, long time, Object key, Object value) {
+      this.type = type;
+      this.item = item;
+      this.time = time;
+      this.key = key;
+      this.value = value;
+    }
+
+    // Releases the references of a performed node (it stays in the
+    // queue as head until the next node has been performed)
+    void clear() {
+      item = null;
+      key = null;
+      value = null;
+    }
+  }
+
+} // EventLoop
@@ -0,0 +1,48 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * FinalBidCallback
+ *
+ * Purpose : This interface is used to make the final hotel bids
+ *	     before each predicted hotel auction close (see
+ *	     TACAgent.setFinalBidCallback()).
+ *
+ */
+
+package se.sics.tac.aw;
+
+public interface FinalBidCallback {
+
+  /**
+   * Called for each open hotel auction shortly before the next hotel
+   * auction is predicted to close. Bids submitted from this method
+   * are sent before any pending quote or bid info requests.
+   *
+   * @param quote the latest quote for the hotel auction
+   * @param isStale true if the quote is from before the last hotel
+   *	auction close (the server has not yet sent the updated quote). A
+   *	fresh quote has then been requested and is given to the agent
+   *	through quoteUpdated() when it arrives.
+   * @param budget the time in milliseconds left before bids must be
+   *	sent to reach the server before the auction closes (taking the
+   *	measured bid response times and server clock error into account)
+   */
+  public void finalBid(Quote quote, boolean isStale, long budget);
+
+} // FinalBidCallback
@@ -0,0 +1,252 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * FlightPolicy
+ *
+ * Purpose :
+ *   Tells when to buy a flight ticket: now or after a later price
+ *   change.
+ *
+ *   For each 10 second step of the game and each value of the hidden
+ *   trend parameter x of the flight auction (see FlightPriceTracker)
+ *   the lowest expected cost of buying the ticket before the game ends
+ *   is found by dynamic programming backwards from the last step. The
+ *   table keeps the expected gain of waiting one more step instead of
+ *   buying now (the price minus the expected cost of waiting) for
+ *   prices in steps of PRICE_STEP, as shorts in tenths.
+ *
+ *   The flight is bought when the expected gain of waiting, weighted
+ *   by the probability of each x, is not positive. Early in the game,
+ *   when x is uncertain, a small loss for the rising trends is then
+ *   outweighed by the gain for the falling trends.
+ *
+ *   The table is computed offline by the compile scripts with
+ *	java -classpath . se.sics.tac.aw.FlightPolicy flightpolicy.dat
+ *   and read when the agent starts. If the file is missing the table
+ *   is computed instead (takes about 0.6 seconds).
+ */
+
+package se.sics.tac.aw;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class FlightPolicy {
+
+  private static final Logger log =
+    Logger.getLogger(FlightPolicy.class.getName());
+
+  private static final int MAGIC = 0x54414346; // "TACF"
+
+  private static final int STEPS = FlightPriceTracker.STEPS;
+  private static final int X_VALUES = FlightPriceTracker.X_VALUES;
+  private static final int MIN_PRICE = (int) FlightPriceTracker.MIN_PRICE;
+  private static final int MAX_PRICE = (int) FlightPriceTracker.MAX_PRICE;
+
+  /** The price difference between the table entries */
+  private static final int PRICE_STEP = 10;
+  private static final int PRICES = (MAX_PRICE - MIN_PRICE) / PRICE_STEP + 1;
+
+  // The expected gain of waiting in tenths for each step, x and price
+  private final short[][][] gain;
+
+  private FlightPolicy(short[][][] gain) {
+    this.gain = gain;
+  }
+
+  /**
+   * Returns true if the flight should be bought now.
+   *
+   * @param step the current step (see FlightPriceTracker.getStep)
+   * @param probability the probability of each hidden trend parameter
+   *	x (from FlightPriceTracker.MIN_X)
+   * @param price the current ask price
+   */
+  boolean isBuy(int step, float[] probability, float price) {
+    float index = (price - MIN_PRICE) / PRICE_STEP;
+    int p = (int) index;
+    if (index <= 0f) {
+      p = 0;
+      index = 0f;
+    } else if (p >= PRICES - 1) {
+      p = PRICES - 2;
+      index = PRICES - 1;
+    }
+    float f = index - p;
+    short[][] gain = this.gain[step];
+    float expected = 0f;
+    for (int i = 0; i < X_VALUES; i++) {
+      short[] g = gain[i];
+      expected += probability[i] * (g[p] + f * (g[p + 1] - g[p]));
+    }
+    return expected <= 0f;
+  }
+
+  /**
+   * Reads the policy from the specified file or computes it if the file
+   * can not be read.
+   */
+  static FlightPolicy load(String file) {
+    if (new File(file).exists()) {
+      try {
+	return read(file);
+      } catch (IOException e) {
+	log.log(Level.WARNING, "could not read flight policy " + file, e);
+      }
+    } else {
+      log.info("no flight policy file " + file + " (computing policy)");
+    }
+    return compute();
+  }
+
+  static FlightPolicy read(String file) throws IOException {
+    DataInputStream in = new DataInputStream
+      (new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != STEPS
+	  || in.readInt() != X_VALUES || in.readInt() != PRICES) {
+	throw new IOException("not a flight policy file");
+      }
+      short[][][] gain = new short[STEPS][X_VALUES][PRICES];
+      for (int k = 0; k < STEPS; k++) {
+	for (int i = 0; i < X_VALUES; i++) {
+	  for (int p = 0; p < PRICES; p++) {
+	    gain[k][i][p] = in.readShort();
+	  }
+	}
+      }
+      return new FlightPolicy(gain);
+    } finally {
+      in.close();
+    }
+  }
+
+  void write(String file) throws IOException {
+    DataOutputStream out = new DataOutputStream
+      (new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(STEPS);
+      out.writeInt(X_VALUES);
+      out.writeInt(PRICES);
+      for (int k = 0; k < STEPS; k++) {
+	for (int i = 0; i < X_VALUES; i++) {
+	  for (int p = 0; p < PRICES; p++) {
+	    out.writeShort(gain[k][i][p]);
+	  }
+	}
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // Dynamic programming over the price steps
+  // -------------------------------------------------------------------
+
+  /**
+   * Computes the policy. The prices are handled in whole units between
+   * the lowest and highest flight price.
+   */
+  static FlightPolicy compute() {
+    int prices = MAX_PRICE - MIN_PRICE + 1;
+    short[][][] gain = new short[STEPS][X_VALUES][PRICES];
+    // The expected cost at the next step and this step for each price
+    float[] next = new float[prices];
+    float[] cost = new float[prices];
+    for (int i = 0; i < X_VALUES; i++) {
+      int x = FlightPriceTracker.MIN_X + i;
+      // The ticket must be bought at the last step at any price (no
+      // gain of waiting)
+      for (int p = 0; p < prices; p++) {
+	next[p] = MIN_PRICE + p;
+      }
+
+      for (int k = STEPS - 2; k >= 0; k--) {
+	// The change before the next step
+	float xt = FlightPriceTracker.getX(k + 1, x);
+	float lower = xt < 0f ? xt : -10f;
+	float upper = xt > 0f ? xt : 10f;
+	int points = (int) Math.ceil(upper - lower);
+	float width = (upper - lower) / points;
+
+	short[] g = gain[k][i];
+	for (int p = 0; p < prices; p++) {
+	  // The expected cost of waiting at the midpoints of the change
+	  float wait = 0f;
+	  for (int j = 0; j < points; j++) {
+	    wait += getCost(next, p + lower + (j + 0.5f) * width);
+	  }
+	  wait /= points;
+	  float price = MIN_PRICE + p;
+	  cost[p] = price < wait ? price : wait;
+	  if (p % PRICE_STEP == 0) {
+	    g[p / PRICE_STEP] = (short) Math.round((price - wait) * 10f);
+	  }
+	}
+	float[] tmp = next;
+	next = cost;
+	cost = tmp;
+      }
+    }
+    return new FlightPolicy(gain);
+  }
+
+  // Returns the cost at the price index by linear interpolation (the
+  // price is kept within the price limits)
+  private static float getCost(float[] cost, float index) {
+    if (index <= 0f) {
+      return cost[0];
+    }
+    int last = cost.length - 1;
+    if (index >= last) {
+      return cost[last];
+    }
+    int p = (int) index;
+    float f = index - p;
+    return cost[p] + f * (cost[p + 1] - cost[p]);
+  }
+
+
+  // -------------------------------------------------------------------
+  // Offline generation of the policy file
+  // -------------------------------------------------------------------
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 1) {
+      System.err.println("Usage: FlightPolicy <file>");
+      System.exit(1);
+    }
+    long startTime = System.currentTimeMillis();
+    FlightPolicy policy = compute();
+    policy.write(args[0]);
+    System.out.println("Flight policy written to " + args[0] + " in "
+		       + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+} // FlightPolicy
@@ -0,0 +1,212 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * FlightPriceTracker
+ *
+ * Purpose :
+ *   Estimates the hidden price trend of each flight auction from the
+ *   quotes seen during the game.
+ *
+ *   The price of a flight changes every 10 seconds. Each auction has
+ *   a hidden parameter x, uniformly chosen in [-10, 30], and at time t
+ *   (in seconds) the change is uniform in [-10, x(t)] if x(t) > 0,
+ *   [x(t), 10] if x(t) < 0 and [-10, 10] otherwise, where
+ *   x(t) = 10 + (t / 540) * (x - 10).
+ *
+ *   The tracker keeps a probability for each integer value of x and
+ *   updates it with the likelihood of each seen price change. The
+ *   change bounds for each step and x and the expected lowest future
+ *   price change (from simulated price paths) are computed once when
+ *   the class is loaded, so a quote update is a table lookup per value
+ *   of x.
+ */
+
+package se.sics.tac.aw;
+import java.util.Arrays;
+import java.util.Random;
+
+final class FlightPriceTracker {
+
+  private static final int FLIGHTS = 8;
+
+  /** The range of the hidden parameter x */
+  static final int MIN_X = -10;
+  static final int MAX_X = 30;
+  static final int X_VALUES = MAX_X - MIN_X + 1;
+
+  /** The price changes every STEP_TIME milliseconds */
+  static final long STEP_TIME = 10 * 1000;
+  static final int STEPS = 54;
+
+  static final float MIN_PRICE = 150f;
+  static final float MAX_PRICE = 800f;
+
+  /** Likelihood of a price change outside the possible range (for
+   * rounded prices) */
+  private static final float MIN_LIKELIHOOD = 1e-4f;
+
+  /** Number of simulated price paths for each x */
+  private static final int PATHS = 200;
+
+  // The sum of the lower and upper bounds of the price changes up to
+  // and including each step for each x
+  private static final float[][] LOWER_SUM = new float[STEPS][X_VALUES];
+  private static final float[][] UPPER_SUM = new float[STEPS][X_VALUES];
+  // The expected lowest price change from each step for each x (<= 0)
+  private static final float[][] EXPECTED_DROP = new float[STEPS][X_VALUES];
+
+  static {
+    float[] lower = new float[STEPS];
+    float[] upper = new float[STEPS];
+    float[] path = new float[STEPS];
+    Random random = new Random(STEPS);
+    for (int i = 0; i < X_VALUES; i++) {
+      float lowerSum = 0f;
+      float upperSum = 0f;
+      // No change at the game start
+      for (int k = 1; k < STEPS; k++) {
+	float xt = getX(k, MIN_X + i);
+	lower[k] = xt < 0f ? xt : -10f;
+	upper[k] = xt > 0f ? xt : 10f;
+	lowerSum += lower[k];
+	upperSum += upper[k];
+	LOWER_SUM[k][i] = lowerSum;
+	UPPER_SUM[k][i] = upperSum;
+      }
+
+      for (int n = 0; n < PATHS; n++) {
+	float price = 0f;
+	for (int k = 1; k < STEPS; k++) {
+	  price += lower[k] + random.nextFloat() * (upper[k] - lower[k]);
+	  path[k] = price;
+	}
+	// The lowest price after each step relative to the price at the step
+	float lowest = path[STEPS - 1];
+	for (int k = STEPS - 1; k >= 0; k--) {
+	  if (path[k] < lowest) {
+	    lowest = path[k];
+	  }
+	  EXPECTED_DROP[k][i] += (lowest - path[k]) / PATHS;
+	}
+      }
+    }
+  }
+
+  // The probability of each x for each flight auction
+  private final float[][] probability = new float[FLIGHTS][X_VALUES];
+  private final float[] lastPrice = new float[FLIGHTS];
+  private final int[] lastStep = new int[FLIGHTS];
+
+  FlightPriceTracker() {
+    gameStarted();
+  }
+
+  /**
+   * Forgets the prices of the previous game.
+   */
+  void gameStarted() {
+    for (int a = 0; a < FLIGHTS; a++) {
+      Arrays.fill(probability[a], 1f / X_VALUES);
+      lastStep[a] = -1;
+    }
+  }
+
+  /**
+   * Updates the estimate of a flight auction with a new ask price.
+   *
+   * @param auction the flight auction
+   * @param askPrice the current ask price
+   * @param gameTime the time since the start of the game in milliseconds
+   */
+  void addQuote(int auction, float askPrice, long gameTime) {
+    if (askPrice <= 0f) {
+      return;
+    }
+    int step = getStep(gameTime);
+    int previous = lastStep[auction];
+    if (previous >= 0 && step > previous
+	// A price at the limits tells nothing about the change
+	&& askPrice > MIN_PRICE && askPrice < MAX_PRICE) {
+      // Several steps since the last quote are treated as one change
+      // uniform between the sums of the bounds
+      float change = askPrice - lastPrice[auction];
+      float[] p = probability[auction];
+      float[] lowerFrom = LOWER_SUM[previous];
+      float[] upperFrom = UPPER_SUM[previous];
+      float[] lowerTo = LOWER_SUM[step];
+      float[] upperTo = UPPER_SUM[step];
+      float sum = 0f;
+      for (int i = 0; i < X_VALUES; i++) {
+	float lower = lowerTo[i] - lowerFrom[i] - 0.5f;
+	float upper = upperTo[i] - upperFrom[i] + 0.5f;
+	float likelihood = change >= lower && change <= upper
+	  ? 1f / (upper - lower)
+	  : MIN_LIKELIHOOD;
+	p[i] *= likelihood;
+	sum += p[i];
+      }
+      for (int i = 0; i < X_VALUES; i++) {
+	p[i] /= sum;
+      }
+    }
+    if (step >= previous) {
+      lastStep[auction] = step;
+      lastPrice[auction] = askPrice;
+    }
+  }
+
+  /**
+   * Returns the probability of each value of the hidden parameter x
+   * (from MIN_X) of a flight auction. The array must not be modified.
+   */
+  float[] getProbability(int auction) {
+    return probability[auction];
+  }
+
+  /**
+   * Returns the expected lowest price of a flight auction for the rest
+   * of the game, including the current price, or 0 if no price has been
+   * seen in this game.
+   */
+  float getExpectedMinimum(int auction) {
+    int step = lastStep[auction];
+    if (step < 0) {
+      return 0f;
+    }
+    float[] p = probability[auction];
+    float[] drop = EXPECTED_DROP[step];
+    float change = 0f;
+    for (int i = 0; i < X_VALUES; i++) {
+      change += p[i] * drop[i];
+    }
+    float price = lastPrice[auction] + change;
+    return price > MIN_PRICE ? price : MIN_PRICE;
+  }
+
+  static int getStep(long gameTime) {
+    int step = (int) (gameTime / STEP_TIME);
+    return step < 0 ? 0 : (step >= STEPS ? STEPS - 1 : step);
+  }
+
+  // Returns x(t) at the specified step
+  static float getX(int step, int x) {
+    return 10f + (step * STEP_TIME / 1000f) / 540f * (x - 10);
+  }
+
+} // FlightPriceTracker
@@ -0,0 +1,300 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * HotelPricePredictor
+ *
+ * Purpose :
+ *   Predicts the closing prices of the eight hotel auctions by
+ *   simulating the rest of the game many times.
+ *
+ *   One randomly chosen open hotel auction closes at the end of each
+ *   game minute and the ask prices of all open auctions increase once
+ *   each minute. Each scenario starts from the current ask prices,
+ *   raises the prices of the open auctions with increases drawn from
+ *   the per-minute increases seen for the auction in this and earlier
+ *   games (or from an exponential prior until enough have been seen)
+ *   and closes the auctions in a random order.
+ *
+ *   The scenarios are simulated in chunks by a fork/join pool using
+ *   all processors. Chunks not started when the time budget has run
+ *   out are skipped, so a prediction never takes much longer than the
+ *   budget but might use fewer scenarios.
+ */
+
+package se.sics.tac.aw;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+
+final class HotelPricePredictor {
+
+  private static final int HOTELS = 8;
+
+  /** Number of price increases remembered for each hotel auction */
+  private static final int HISTORY_SIZE = 512;
+  /** Number of seen price increases needed before they are used
+   * instead of the prior */
+  private static final int MIN_HISTORY = 16;
+
+  /** The prior mean increase per minute is a fraction of the price
+   * plus a constant */
+  private static final float PRIOR_GROWTH = 0.15f;
+  private static final float PRIOR_INCREASE = 10f;
+
+  /** Number of scenarios simulated by each fork/join task */
+  private static final int CHUNK_SIZE = 256;
+
+  private static final long MINUTE = 60 * 1000;
+
+  private final ForkJoinPool pool = new ForkJoinPool();
+  private final int maxSamples;
+  private final long timeBudget;
+
+  // The seen price increases per minute for each hotel auction
+  // (increaseCount is the total number seen)
+  private final float[][] increases = new float[HOTELS][HISTORY_SIZE];
+  private final int[] increaseCount = new int[HOTELS];
+  private final float[] lastAsk = new float[HOTELS];
+  private final int[] lastMinute = new int[HOTELS];
+
+  // The state being simulated
+  private final float[] askPrices = new float[HOTELS];
+  private final boolean[] closed = new boolean[HOTELS];
+  private final boolean[] chunkDone;
+  private long deadline;
+
+  // The simulated closing prices for each hotel auction, sorted after
+  // a prediction, and their means
+  private final float[][] samples;
+  private final float[] means = new float[HOTELS];
+  private int sampleCount;
+  private long predictionTime;
+
+  /**
+   * Creates a new predictor.
+   *
+   * @param maxSamples the number of scenarios to simulate
+   * @param timeBudget the maximal time for a prediction in milliseconds
+   */
+  HotelPricePredictor(int maxSamples, long timeBudget) {
+    if (maxSamples <= 0) {
+      throw new IllegalArgumentException("illegal sample count: "
+					 + maxSamples);
+    }
+    int chunks = (maxSamples + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    this.maxSamples = maxSamples;
+    this.timeBudget = timeBudget;
+    this.chunkDone = new boolean[chunks];
+    this.samples = new float[HOTELS][chunks * CHUNK_SIZE];
+    Arrays.fill(lastMinute, -1);
+  }
+
+  /**
+   * Forgets the prices of the previous game. The seen price increases
+   * are kept.
+   */
+  void gameStarted() {
+    Arrays.fill(lastMinute, -1);
+    sampleCount = 0;
+  }
+
+  /**
+   * Records the ask price of an open hotel auction. The first quote in
+   * each game minute starts the minute, so quotes from before the last
+   * hotel auction close (the server has not yet updated them) must not
+   * be given or the increase of that minute would be lost.
+   *
+   * @param auction the hotel auction
+   * @param askPrice the current ask price
+   * @param gameTime the time since the start of the game in milliseconds
+   */
+  void addQuote(int auction, float askPrice, long gameTime) {
+    int hotel = auction - TACAgent.MIN_HOTEL;
+    int minute = (int) (gameTime / MINUTE);
+    if (minute > lastMinute[hotel]) {
+      if (lastMinute[hotel] >= 0) {
+	float increase =
+	  (askPrice - lastAsk[hotel]) / (minute - lastMinute[hotel]);
+	increases[hotel][increaseCount[hotel]++ % HISTORY_SIZE] =
+	  increase > 0f ? increase : 0f;
+      }
+      lastMinute[hotel] = minute;
+    }
+    lastAsk[hotel] = askPrice;
+  }
+
+  /**
+   * Simulates the rest of the game from the current ask prices.
+   *
+   * @param askPrices the ask price of each hotel auction (indexed by
+   *	auction - TACAgent.MIN_HOTEL)
+   * @param closed true for each hotel auction that has closed
+   * @return the number of simulated scenarios
+   */
+  int predict(float[] askPrices, boolean[] closed) {
+    long startTime = System.nanoTime();
+    System.arraycopy(askPrices, 0, this.askPrices, 0, HOTELS);
+    System.arraycopy(closed, 0, this.closed, 0, HOTELS);
+    deadline = startTime + timeBudget * 1000000;
+    pool.invoke(new Simulation(0, chunkDone.length));
+
+    // Move the simulated chunks together
+    int count = 0;
+    for (int c = 0; c < chunkDone.length; c++) {
+      if (chunkDone[c]) {
+	int length = Math.min(CHUNK_SIZE, maxSamples - c * CHUNK_SIZE);
+	if (count != c * CHUNK_SIZE) {
+	  for (int h = 0; h < HOTELS; h++) {
+	    System.arraycopy(samples[h], c * CHUNK_SIZE, samples[h], count,
+			     length);
+	  }
+	}
+	count += length;
+      }
+    }
+    for (int h = 0; h < HOTELS; h++) {
+      float[] prices = samples[h];
+      double sum = 0.0;
+      for (int i = 0; i < count; i++) {
+	sum += prices[i];
+      }
+      means[h] = count > 0 ? (float) (sum / count) : 0f;
+      Arrays.sort(prices, 0, count);
+    }
+    sampleCount = count;
+    predictionTime = System.nanoTime() - startTime;
+    return count;
+  }
+
+  /**
+   * Returns the number of scenarios in the last prediction (0 if no
+   * prediction has been made in this game).
+   */
+  int getSampleCount() {
+    return sampleCount;
+  }
+
+  /**
+   * Returns the time of the last prediction in microseconds.
+   */
+  long getPredictionTime() {
+    return predictionTime / 1000;
+  }
+
+  /**
+   * Returns the mean predicted closing price of a hotel auction.
+   */
+  float getMean(int auction) {
+    return sampleCount > 0 ? means[auction - TACAgent.MIN_HOTEL] : 0f;
+  }
+
+  /**
+   * Returns the predicted closing price of a hotel auction that is not
+   * exceeded with the specified probability.
+   *
+   * @param auction the hotel auction
+   * @param probability the probability (0 - 1)
+   */
+  float getQuantile(int auction, float probability) {
+    if (sampleCount == 0) {
+      return 0f;
+    }
+    int index = (int) (probability * sampleCount);
+    if (index >= sampleCount) {
+      index = sampleCount - 1;
+    } else if (index < 0) {
+      index = 0;
+    }
+    return samples[auction - TACAgent.MIN_HOTEL][index];
+  }
+
+  // Simulates one scenario and stores the closing prices at the
+  // specified sample index
+  private void simulate(int index, float[] price, int[] open, Random random) {
+    int openCount = 0;
+    for (int h = 0; h < HOTELS; h++) {
+      price[h] = askPrices[h];
+      if (!closed[h]) {
+	open[openCount++] = h;
+      }
+    }
+    while (openCount > 0) {
+      for (int i = 0; i < openCount; i++) {
+	int h = open[i];
+	price[h] += getIncrease(h, price[h], random);
+      }
+      int i = random.nextInt(openCount);
+      open[i] = open[--openCount];
+    }
+    for (int h = 0; h < HOTELS; h++) {
+      samples[h][index] = price[h];
+    }
+  }
+
+  private float getIncrease(int hotel, float price, Random random) {
+    int count = increaseCount[hotel];
+    if (count >= MIN_HISTORY) {
+      return increases[hotel][random.nextInt(Math.min(count, HISTORY_SIZE))];
+    }
+    return (float) -Math.log(1.0 - random.nextDouble())
+      * (PRIOR_INCREASE + PRIOR_GROWTH * price);
+  }
+
+
+  // -------------------------------------------------------------------
+  // Fork/join task simulating the scenarios of a range of chunks
+  // -------------------------------------------------------------------
+
+  private class Simulation extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int fromChunk;
+    private final int toChunk;
+
+    public Simulation(int fromChunk, int toChunk) {
+      this.fromChunk = fromChunk;
+      this.toChunk = toChunk;
+    }
+
+    protected void compute() {
+      if (toChunk - fromChunk > 1) {
+	int middle = (fromChunk + toChunk) >>> 1;
+	invokeAll(new Simulation(fromChunk, middle),
+		  new Simulation(middle, toChunk));
+      } else if (System.nanoTime() > deadline) {
+	chunkDone[fromChunk] = false;
+      } else {
+	Random random = ThreadLocalRandom.current();
+	float[] price = new float[HOTELS];
+	int[] open = new int[HOTELS];
+	int start = fromChunk * CHUNK_SIZE;
+	int end = Math.min(start + CHUNK_SIZE, maxSamples);
+	for (int i = start; i < end; i++) {
+	  simulate(i, price, open, random);
+	}
+	chunkDone[fromChunk] = true;
+      }
+    }
+
+  } // Simulation
+
+} // HotelPricePredictor
@@ -0,0 +1,172 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * LatencyHistogram
+ *
+ * Purpose :
+ *   A lock-free histogram of latencies in microseconds. Values are
+ *   counted in buckets with 16 sub-buckets for each power of two
+ *   which gives percentiles within about 6% of the real values while
+ *   the exact maximum is kept separately. Values can be recorded from
+ *   any number of threads at the same time.
+ */
+
+package se.sics.tac.aw;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+
+  private final static int SUB_BITS = 4;
+  private final static int SUB_BUCKETS = 1 << SUB_BITS;
+  /** Values of 2^MAX_BITS microseconds (about 12 days) or more are
+   * counted in the last bucket */
+  private final static int MAX_BITS = 40;
+  private final static int BUCKETS =
+    SUB_BUCKETS * (MAX_BITS - SUB_BITS) + 2 * SUB_BUCKETS;
+
+  private final String name;
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Records a latency.
+   *
+   * @param micros the latency in microseconds
+   */
+  public void record(long micros) {
+    if (micros < 0) {
+      micros = 0;
+    }
+    buckets.incrementAndGet(getBucket(micros));
+    count.incrementAndGet();
+    total.addAndGet(micros);
+    long currentMax;
+    while (micros > (currentMax = max.get())
+	   && !max.compareAndSet(currentMax, micros)) {
+      // Try again
+    }
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets.set(i, 0L);
+    }
+    count.set(0L);
+    total.set(0L);
+    max.set(0L);
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  /**
+   * Returns the average latency in microseconds.
+   */
+  public long getAverage() {
+    long n = count.get();
+    return n > 0 ? total.get() / n : 0L;
+  }
+
+  /**
+   * Returns the maximal latency in microseconds.
+   */
+  public long getMax() {
+    return max.get();
+  }
+
+  /**
+   * Returns the latency in microseconds below which the specified
+   * fraction of the recorded latencies are. The returned value is the
+   * upper limit of the bucket containing the percentile but never
+   * more than the maximal latency.
+   *
+   * @param fraction the fraction (for example 0.99 for the 99th
+   *	percentile)
+   */
+  public long getPercentile(double fraction) {
+    long[] counts = new long[BUCKETS];
+    long n = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      n += counts[i] = buckets.get(i);
+    }
+    if (n == 0L) {
+      return 0L;
+    }
+    long limit = (long) Math.ceil(fraction * n);
+    if (limit < 1L) {
+      limit = 1L;
+    }
+    long sum = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      sum += counts[i];
+      if (sum >= limit) {
+	long value = getBucketLimit(i);
+	long maxValue = max.get();
+	return value < maxValue ? value : maxValue;
+      }
+    }
+    return max.get();
+  }
+
+  public String toString() {
+    return name + ": n=" + getCount()
+      + " avg=" + toMillis(getAverage())
+      + " p50=" + toMillis(getPercentile(0.5))
+      + " p90=" + toMillis(getPercentile(0.9))
+      + " p99=" + toMillis(getPercentile(0.99))
+      + " max=" + toMillis(getMax()) + " ms";
+  }
+
+  private static String toMillis(long micros) {
+    long tenths = (micros + 50) / 100;
+    return (tenths / 10) + "." + (tenths % 10);
+  }
+
+  private static int getBucket(long value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+    int bucket = SUB_BUCKETS * shift + (int) (value >>> shift);
+    return bucket < BUCKETS ? bucket : BUCKETS - 1;
+  }
+
+  // Returns the highest value counted in the specified bucket
+  private static long getBucketLimit(int bucket) {
+    if (bucket < 2 * SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    long mantissa = bucket - SUB_BUCKETS * shift;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+} // LatencyHistogram
@@ -0,0 +1,107 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * LatencyStats
+ *
+ * Purpose :
+ *   Response time histograms for the messages sent to the server, one
+ *   for each of the most frequent message types, one for all other
+ *   messages and one for all messages together.
+ */
+
+package se.sics.tac.aw;
+
+final class LatencyStats {
+
+  private final static String[] TYPES = {
+    "getQuote", "submitBid", "replaceBid", "bidInfo",
+    "transIDs", "transInfo"
+  };
+  private final static String OTHER = "other";
+  private final static String ALL = "all";
+
+  private final static LatencyHistogram[] histograms =
+    new LatencyHistogram[TYPES.length + 1];
+  private final static LatencyHistogram all = new LatencyHistogram(ALL);
+
+  static {
+    for (int i = 0; i < TYPES.length; i++) {
+      histograms[i] = new LatencyHistogram(TYPES[i]);
+    }
+    histograms[TYPES.length] = new LatencyHistogram(OTHER);
+  }
+
+  private LatencyStats() {
+  }
+
+  // Returns the index of the histogram for the specified message type
+  static int getIndex(String type) {
+    for (int i = 0; i < TYPES.length; i++) {
+      if (TYPES[i].equals(type)) {
+	return i;
+      }
+    }
+    return TYPES.length;
+  }
+
+  static void record(int index, long micros) {
+    histograms[index].record(micros);
+    all.record(micros);
+  }
+
+  /**
+   * Returns the histogram for the specified message type, for "other"
+   * (all messages without their own histogram), or for "all".
+   */
+  static LatencyHistogram getHistogram(String type) {
+    if (ALL.equals(type)) {
+      return all;
+    }
+    for (int i = 0; i < TYPES.length; i++) {
+      if (TYPES[i].equals(type)) {
+	return histograms[i];
+      }
+    }
+    return OTHER.equals(type) ? histograms[TYPES.length] : null;
+  }
+
+  static LatencyHistogram getTotal() {
+    return all;
+  }
+
+  static void reset() {
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i].reset();
+    }
+    all.reset();
+  }
+
+  static String getReport() {
+    StringBuffer sb = new StringBuffer();
+    sb.append("Response times:");
+    for (int i = 0; i < histograms.length; i++) {
+      if (histograms[i].getCount() > 0) {
+	sb.append("\n  ").append(histograms[i]);
+      }
+    }
+    sb.append("\n  ").append(all);
+    return sb.toString();
+  }
+
+} // LatencyStats
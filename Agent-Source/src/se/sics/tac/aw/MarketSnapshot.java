@@ -0,0 +1,241 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * MarketSnapshot
+ *
+ * Purpose :
+ *   An immutable view of the quotes, owned goods, allocation and
+ *   active bids of all auctions at one point in time (see
+ *   TACAgent.getMarketSnapshot()). A new snapshot with a higher
+ *   version is published each time the state has changed after a
+ *   batch of updates, so a strategy can compute on a snapshot in any
+ *   thread and check whether its input has gone stale by comparing
+ *   versions.
+ */
+
+package se.sics.tac.aw;
+import java.util.Arrays;
+
+public final class MarketSnapshot {
+
+  private final long version;
+  private final int gameID;
+  private final long time;
+
+  private final float[] askPrice;
+  private final float[] bidPrice;
+  private final int[] hqw;
+  private final int[] auctionStatus;
+  private final long[] nextQuoteTime;
+  private final int[] own;
+  private final int[] probablyOwn;
+  private final int[] allocation;
+  private final float[] cost;
+  private final int[] bidID;
+  private final int[] bidQuantity;
+  private final int[] bidState;
+  private final String[] bidString;
+
+  MarketSnapshot(int auctions) {
+    this(0L, -1, 0L, new float[auctions], new float[auctions],
+	 new int[auctions], new int[auctions], new long[auctions],
+	 new int[auctions], new int[auctions], new int[auctions],
+	 new float[auctions], new int[auctions], new int[auctions],
+	 new int[auctions], new String[auctions]);
+  }
+
+  // The arrays are owned by the snapshot after this call
+  MarketSnapshot(long version, int gameID, long time,
+		 float[] askPrice, float[] bidPrice, int[] hqw,
+		 int[] auctionStatus, long[] nextQuoteTime,
+		 int[] own, int[] probablyOwn, int[] allocation, float[] cost,
+		 int[] bidID, int[] bidQuantity, int[] bidState,
+		 String[] bidString) {
+    this.version = version;
+    this.gameID = gameID;
+    this.time = time;
+    this.askPrice = askPrice;
+    this.bidPrice = bidPrice;
+    this.hqw = hqw;
+    this.auctionStatus = auctionStatus;
+    this.nextQuoteTime = nextQuoteTime;
+    this.own = own;
+    this.probablyOwn = probablyOwn;
+    this.allocation = allocation;
+    this.cost = cost;
+    this.bidID = bidID;
+    this.bidQuantity = bidQuantity;
+    this.bidState = bidState;
+    this.bidString = bidString;
+  }
+
+  /**
+   * Returns the version of this snapshot. Versions increase each time
+   * a snapshot with a changed state is published.
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public int getGameID() {
+    return gameID;
+  }
+
+  /**
+   * Returns the server time when this snapshot was published.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  public int getAuctionCount() {
+    return own.length;
+  }
+
+  public float getAskPrice(int auction) {
+    return askPrice[auction];
+  }
+
+  public float getBidPrice(int auction) {
+    return bidPrice[auction];
+  }
+
+  public int getHQW(int auction) {
+    return hqw[auction];
+  }
+
+  public int getAuctionStatus(int auction) {
+    return auctionStatus[auction];
+  }
+
+  public boolean isAuctionClosed(int auction) {
+    return auctionStatus[auction] == Quote.AUCTION_CLOSED;
+  }
+
+  public long getNextQuoteTime(int auction) {
+    return nextQuoteTime[auction];
+  }
+
+  public int getOwn(int auction) {
+    return own[auction];
+  }
+
+  public int getProbablyOwn(int auction) {
+    return probablyOwn[auction];
+  }
+
+  public int getAllocation(int auction) {
+    return allocation[auction];
+  }
+
+  /**
+   * Returns the total price paid for the goods owned in the auction.
+   */
+  public float getCost(int auction) {
+    return cost[auction];
+  }
+
+  /**
+   * Returns <code>true</code> if the agent had a bid in the auction.
+   */
+  public boolean hasBid(int auction) {
+    return bidString[auction] != null;
+  }
+
+  /**
+   * Returns the id of the active bid or Bid.NO_ID if no bid has been
+   * accepted by the server yet.
+   */
+  public int getBidID(int auction) {
+    return bidID[auction];
+  }
+
+  public int getBidQuantity(int auction) {
+    return bidQuantity[auction];
+  }
+
+  public int getBidProcessingState(int auction) {
+    return bidState[auction];
+  }
+
+  /**
+   * Returns the bid string of the active bid or <code>null</code> if
+   * the agent had no bid in the auction.
+   */
+  public String getBidString(int auction) {
+    return bidString[auction];
+  }
+
+  // Sets the state of an auction. Only used for the scratch snapshot
+  // that TACAgent fills in place and never publishes (see copy).
+  void setAuction(int auction, Quote quote, int own, int probablyOwn,
+		  int allocation, float cost, Bid bid) {
+    askPrice[auction] = quote.getAskPrice();
+    bidPrice[auction] = quote.getBidPrice();
+    hqw[auction] = quote.getHQW();
+    auctionStatus[auction] = quote.getAuctionStatus();
+    nextQuoteTime[auction] = quote.getNextQuoteTime();
+    this.own[auction] = own;
+    this.probablyOwn[auction] = probablyOwn;
+    this.allocation[auction] = allocation;
+    this.cost[auction] = cost;
+    if (bid != null) {
+      bidID[auction] = bid.getID();
+      bidQuantity[auction] = bid.getQuantity();
+      bidState[auction] = bid.getProcessingState();
+      bidString[auction] = bid.getBidString();
+    } else {
+      bidID[auction] = Bid.NO_ID;
+      bidQuantity[auction] = 0;
+      bidState[auction] = 0;
+      bidString[auction] = null;
+    }
+  }
+
+  // Returns a copy of this snapshot with the specified version, game
+  // and time
+  MarketSnapshot copy(long version, int gameID, long time) {
+    return new MarketSnapshot(version, gameID, time, askPrice.clone(),
+			      bidPrice.clone(), hqw.clone(),
+			      auctionStatus.clone(), nextQuoteTime.clone(),
+			      own.clone(), probablyOwn.clone(),
+			      allocation.clone(), cost.clone(), bidID.clone(),
+			      bidQuantity.clone(), bidState.clone(),
+			      bidString.clone());
+  }
+
+  // Returns true if the auctions have the same state in the other
+  // snapshot (ignoring version, game and time)
+  boolean isSameAuctions(MarketSnapshot other) {
+    return Arrays.equals(own, other.own)
+      && Arrays.equals(probablyOwn, other.probablyOwn)
+      && Arrays.equals(allocation, other.allocation)
+      && Arrays.equals(askPrice, other.askPrice)
+      && Arrays.equals(bidPrice, other.bidPrice)
+      && Arrays.equals(hqw, other.hqw)
+      && Arrays.equals(auctionStatus, other.auctionStatus)
+      && Arrays.equals(nextQuoteTime, other.nextQuoteTime)
+      && Arrays.equals(cost, other.cost)
+      && Arrays.equals(bidID, other.bidID)
+      && Arrays.equals(bidQuantity, other.bidQuantity)
+      && Arrays.equals(bidState, other.bidState)
+      && Arrays.equals(bidString, other.bidString);
+  }
+
+} // MarketSnapshot
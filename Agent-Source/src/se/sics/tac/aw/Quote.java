@@ -51,6 +51,19 @@ public class Quote {
     auction = auctionNo;
   }
 
+  // Creates a copy of the quote that is not changed by later updates
+  // (given to agents called in a separate thread)
+  Quote(Quote quote) {
+    this.auction = quote.auction;
+    this.hqw = quote.hqw;
+    this.status = quote.status;
+    this.nextQuoteTime = quote.nextQuoteTime;
+    this.lastQuoteTime = quote.lastQuoteTime;
+    this.askPrice = quote.askPrice;
+    this.bidPrice = quote.bidPrice;
+    this.bid = quote.bid;
+  }
+
   void clearAll() {
     askPrice = 0f;
     bidPrice = 0f;
@@ -0,0 +1,217 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * QuoteBatch
+ *
+ * Purpose :
+ *   The quotes received in one quote sweep for an auction category
+ *   (see AgentImpl.quotesUpdated()). For each auction in the sweep
+ *   the batch holds the ask price, bid price, HQW and auction status
+ *   before and after the sweep together with a mask of the values
+ *   that changed. A batch is not changed after it has been delivered
+ *   to the agent.
+ */
+
+package se.sics.tac.aw;
+
+public final class QuoteBatch {
+
+  /** Flags for the values changed in an auction */
+  public final static int ASK_PRICE = 1;
+  public final static int BID_PRICE = 2;
+  public final static int HQW = 4;
+  public final static int AUCTION_STATUS = 8;
+
+  private final int category;
+  private final Quote[] quotes;
+
+  // Auctions updated in the sweep and auctions with changed values
+  // (one bit for each auction)
+  private int updatedMask = 0;
+  private int changedMask = 0;
+  private final int[] changes;
+
+  private final float[] oldAskPrice;
+  private final float[] oldBidPrice;
+  private final int[] oldHQW;
+  private final int[] oldAuctionStatus;
+  private final float[] askPrice;
+  private final float[] bidPrice;
+  private final int[] hqw;
+  private final int[] auctionStatus;
+
+  private long time;
+
+  QuoteBatch(int category, Quote[] quotes) {
+    int n = quotes.length;
+    this.category = category;
+    this.quotes = quotes;
+    this.changes = new int[n];
+    this.oldAskPrice = new float[n];
+    this.oldBidPrice = new float[n];
+    this.oldHQW = new int[n];
+    this.oldAuctionStatus = new int[n];
+    this.askPrice = new float[n];
+    this.bidPrice = new float[n];
+    this.hqw = new int[n];
+    this.auctionStatus = new int[n];
+  }
+
+  // Adds a received quote to the batch. The old values are only used
+  // for the first quote received for each auction.
+  void update(Quote quote, float oldAsk, float oldBid, int oldHQW,
+	      int oldStatus, long time) {
+    int auction = quote.getAuction();
+    int bit = 1 << auction;
+    if ((updatedMask & bit) == 0) {
+      updatedMask |= bit;
+      this.oldAskPrice[auction] = oldAsk;
+      this.oldBidPrice[auction] = oldBid;
+      this.oldHQW[auction] = oldHQW;
+      this.oldAuctionStatus[auction] = oldStatus;
+    }
+    askPrice[auction] = quote.getAskPrice();
+    bidPrice[auction] = quote.getBidPrice();
+    hqw[auction] = quote.getHQW();
+    auctionStatus[auction] = quote.getAuctionStatus();
+
+    int change = 0;
+    if (askPrice[auction] != oldAskPrice[auction]) {
+      change |= ASK_PRICE;
+    }
+    if (bidPrice[auction] != oldBidPrice[auction]) {
+      change |= BID_PRICE;
+    }
+    if (hqw[auction] != this.oldHQW[auction]) {
+      change |= HQW;
+    }
+    if (auctionStatus[auction] != oldAuctionStatus[auction]) {
+      change |= AUCTION_STATUS;
+    }
+    changes[auction] = change;
+    if (change != 0) {
+      changedMask |= bit;
+    } else {
+      changedMask &= ~bit;
+    }
+    this.time = time;
+  }
+
+  /**
+   * Returns the auction category of the sweep.
+   */
+  public int getCategory() {
+    return category;
+  }
+
+  /**
+   * Returns the server time when the last quote in the batch was
+   * received.
+   */
+  public long getTime() {
+    return time;
+  }
+
+  /**
+   * Returns the auctions updated in the sweep as a bit mask where bit
+   * N is set if auction N was updated.
+   */
+  public int getUpdatedMask() {
+    return updatedMask;
+  }
+
+  /**
+   * Returns the auctions with changed values as a bit mask where bit
+   * N is set if any value of auction N changed.
+   */
+  public int getChangedMask() {
+    return changedMask;
+  }
+
+  public boolean isUpdated(int auction) {
+    return (updatedMask & (1 << auction)) != 0;
+  }
+
+  public boolean isChanged(int auction) {
+    return (changedMask & (1 << auction)) != 0;
+  }
+
+  /**
+   * Returns the values changed in the specified auction as a
+   * combination of the flags ASK_PRICE, BID_PRICE, HQW, and
+   * AUCTION_STATUS.
+   */
+  public int getChanges(int auction) {
+    return changes[auction];
+  }
+
+  /**
+   * Returns the number of auctions with changed values.
+   */
+  public int getChangedCount() {
+    return Integer.bitCount(changedMask);
+  }
+
+  /**
+   * Returns the current quote for the specified auction. Note that the
+   * quote might have been updated again after this batch.
+   */
+  public Quote getQuote(int auction) {
+    return quotes[auction];
+  }
+
+  public float getOldAskPrice(int auction) {
+    return oldAskPrice[auction];
+  }
+
+  public float getAskPrice(int auction) {
+    return askPrice[auction];
+  }
+
+  public float getOldBidPrice(int auction) {
+    return oldBidPrice[auction];
+  }
+
+  public float getBidPrice(int auction) {
+    return bidPrice[auction];
+  }
+
+  public int getOldHQW(int auction) {
+    return oldHQW[auction];
+  }
+
+  public int getHQW(int auction) {
+    return hqw[auction];
+  }
+
+  public int getOldAuctionStatus(int auction) {
+    return oldAuctionStatus[auction];
+  }
+
+  public int getAuctionStatus(int auction) {
+    return auctionStatus[auction];
+  }
+
+  public String toString() {
+    return "QuoteBatch[" + category + ','
+      + Integer.bitCount(updatedMask) + " updated,"
+      + Integer.bitCount(changedMask) + " changed]";
+  }
+
+} // QuoteBatch
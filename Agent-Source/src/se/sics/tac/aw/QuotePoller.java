@@ -0,0 +1,169 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * QuotePoller
+ *
+ * Purpose :
+ *   Decides which auctions need new quotes when the periodic quote
+ *   requests are made. Quotes that the server has announced will not
+ *   change before their next quote time are not requested again, and
+ *   auctions whose prices have been stable are polled less often
+ *   (doubling the period for each stable quote up to a limit per
+ *   auction). Any larger price change, or a high recent volatility,
+ *   returns the auction to its normal period.
+ */
+
+package se.sics.tac.aw;
+
+final class QuotePoller {
+
+  /** Relative price change below which a quote is regarded as stable */
+  private final static float STABLE_CHANGE = 0.002f;
+  /** Volatility (smoothed relative change) that prevents back off */
+  private final static float VOLATILE = 0.01f;
+  /** Weight of the latest change in the smoothed volatility */
+  private final static float VOLATILITY_WEIGHT = 0.3f;
+
+  private final long[] period;
+  private final int[] maxBackoff;
+
+  private final long[] lastRequest;
+  private final int[] stableCount;
+  private final float[] volatility;
+
+  private int requested = 0;
+  private int saved = 0;
+
+  QuotePoller(int auctions) {
+    period = new long[auctions];
+    maxBackoff = new int[auctions];
+    lastRequest = new long[auctions];
+    stableCount = new int[auctions];
+    volatility = new float[auctions];
+  }
+
+  /**
+   * Sets the polling period for an auction.
+   *
+   * @param auction the auction
+   * @param period the normal time between requests in milliseconds
+   * @param maxBackoff the number of times the period may be doubled
+   *	for a stable auction
+   */
+  synchronized void setPeriod(int auction, long period, int maxBackoff) {
+    this.period[auction] = period;
+    this.maxBackoff[auction] = maxBackoff;
+  }
+
+  synchronized void clear() {
+    for (int i = 0, n = lastRequest.length; i < n; i++) {
+      lastRequest[i] = 0L;
+      stableCount[i] = 0;
+      volatility[i] = 0f;
+    }
+    requested = 0;
+    saved = 0;
+  }
+
+  /**
+   * Returns <code>true</code> if a new quote should be requested for
+   * the auction of the specified quote during a periodic sweep. The
+   * request is assumed to be made when this method returns true.
+   *
+   * @param quote the current quote
+   * @param serverTime the current server time
+   */
+  synchronized boolean isDue(Quote quote, long serverTime) {
+    int auction = quote.getAuction();
+    long nextQuoteTime = quote.getNextQuoteTime();
+    boolean isDue;
+    if (quote.isAuctionClosed()) {
+      // Closed auctions are never polled (and not counted as saved)
+      return false;
+    } else if (lastRequest[auction] == 0L) {
+      // No quote requested yet
+      isDue = true;
+    } else if (nextQuoteTime > serverTime) {
+      // The server has announced that the quote will not change yet
+      isDue = false;
+    } else if (nextQuoteTime > lastRequest[auction]) {
+      // The quote has changed since it was last requested
+      isDue = true;
+    } else {
+      long interval = period[auction];
+      if (volatility[auction] < VOLATILE) {
+	int backoff = stableCount[auction];
+	if (backoff > maxBackoff[auction]) {
+	  backoff = maxBackoff[auction];
+	}
+	interval <<= backoff;
+      }
+      // Allow for some delay in the periodic sweeps
+      isDue = serverTime - lastRequest[auction]
+	>= interval - period[auction] / 2;
+    }
+
+    if (isDue) {
+      lastRequest[auction] = serverTime;
+      requested++;
+    } else {
+      saved++;
+    }
+    return isDue;
+  }
+
+  /**
+   * Called when a new quote has arrived.
+   *
+   * @param quote the updated quote
+   * @param oldAskPrice the ask price before the update
+   */
+  synchronized void quoteUpdated(Quote quote, float oldAskPrice) {
+    int auction = quote.getAuction();
+    float askPrice = quote.getAskPrice();
+    float change = askPrice - oldAskPrice;
+    if (change < 0f) {
+      change = -change;
+    }
+    float relativeChange = change / (askPrice > 1f ? askPrice : 1f);
+    volatility[auction] = VOLATILITY_WEIGHT * relativeChange
+      + (1f - VOLATILITY_WEIGHT) * volatility[auction];
+    if (relativeChange < STABLE_CHANGE) {
+      stableCount[auction]++;
+    } else {
+      stableCount[auction] = 0;
+    }
+  }
+
+  /**
+   * Returns the number of quotes requested by periodic sweeps.
+   */
+  synchronized int getRequestCount() {
+    return requested;
+  }
+
+  /**
+   * Returns the number of quote requests saved compared to requesting
+   * quotes for all open auctions at each periodic sweep.
+   */
+  synchronized int getSavedCount() {
+    return saved;
+  }
+
+} // QuotePoller
@@ -0,0 +1,251 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * ServerClock
+ *
+ * Purpose :
+ *   Estimates the difference between the local clock and the server
+ *   clock from repeated serverTime samples.
+ *
+ *   The server reports its time in whole seconds. A reply received
+ *   at local time T1 for a request sent at local time T0 means that
+ *   the server time was in [S, S + 1000) at some point during
+ *   [T0, T1]. Each sample thus bounds the time difference to an
+ *   interval and the intersection of the intervals from recent
+ *   samples gives the estimate and its error bound. Older samples
+ *   are corrected for the drift of the local clock (tracked by a
+ *   least squares fit of the estimates) and their intervals are
+ *   widened with the age of the sample to allow for drift errors.
+ */
+
+package se.sics.tac.aw;
+
+public class ServerClock {
+
+  /** Maximal number of samples intersected for one estimate */
+  private final static int MAX_SAMPLES = 32;
+  /** Assumed maximal error of the drift estimate (100 ppm) */
+  private final static double DRIFT_TOLERANCE = 0.0001;
+  /** Number of estimates used when estimating drift */
+  private final static int MAX_ESTIMATES = 64;
+  /** Minimal time span (in milliseconds) before estimating drift */
+  private final static long MIN_DRIFT_SPAN = 300000;
+
+  // Samples as local receive time and bounds for the time difference
+  private final long[] sampleTime = new long[MAX_SAMPLES];
+  private final long[] lower = new long[MAX_SAMPLES];
+  private final long[] upper = new long[MAX_SAMPLES];
+  private final long[] roundTrip = new long[MAX_SAMPLES];
+  private int first = 0;
+  private int count = 0;
+  private int totalSamples = 0;
+
+  // Estimates used for the drift
+  private final long[] estimateTime = new long[MAX_ESTIMATES];
+  private final long[] estimate = new long[MAX_ESTIMATES];
+  private int estimates = 0;
+
+  private long referenceTime;
+  private long timeDiff;
+  private long error = Long.MAX_VALUE;
+  private double drift = 0.0;
+
+  public synchronized void clear() {
+    count = 0;
+    first = 0;
+    totalSamples = 0;
+    estimates = 0;
+    error = Long.MAX_VALUE;
+    drift = 0.0;
+  }
+
+  /**
+   * Adds a sample.
+   *
+   * @param sent the local time when the request was sent
+   * @param received the local time when the reply was received
+   * @param serverSeconds the server time in the reply (in seconds)
+   * @return <code>true</code> if the sample was consistent with the
+   *	earlier samples and <code>false</code> if the estimate had to
+   *	be restarted (for example because either clock was changed)
+   */
+  public synchronized boolean addSample(long sent, long received,
+					long serverSeconds) {
+    long serverTime = serverSeconds * 1000;
+    boolean isConsistent = true;
+
+    if (count == MAX_SAMPLES) {
+      first = (first + 1) % MAX_SAMPLES;
+      count--;
+    }
+    int index = (first + count) % MAX_SAMPLES;
+    sampleTime[index] = received;
+    lower[index] = sent - serverTime - 999;
+    upper[index] = received - serverTime;
+    roundTrip[index] = received - sent;
+    count++;
+    totalSamples++;
+
+    long low = Long.MIN_VALUE;
+    long high = Long.MAX_VALUE;
+    for (int i = 0; i < count; i++) {
+      int j = (first + i) % MAX_SAMPLES;
+      long age = received - sampleTime[j];
+      long shift = (long) (drift * age);
+      long widen = (long) (DRIFT_TOLERANCE * age);
+      long l = lower[j] + shift - widen;
+      long h = upper[j] + shift + widen;
+      if (l > low) {
+	low = l;
+      }
+      if (h < high) {
+	high = h;
+      }
+    }
+    if (low > high) {
+      // The samples are inconsistent: restart from the latest sample
+      first = index;
+      count = 1;
+      low = lower[index];
+      high = upper[index];
+      estimates = 0;
+      isConsistent = false;
+    }
+
+    referenceTime = received;
+    timeDiff = (low + high) / 2;
+    error = (high - low + 1) / 2;
+    addEstimate(received, timeDiff);
+    return isConsistent;
+  }
+
+  private void addEstimate(long time, long diff) {
+    if (estimates == MAX_ESTIMATES) {
+      System.arraycopy(estimateTime, 1, estimateTime, 0, estimates - 1);
+      System.arraycopy(estimate, 1, estimate, 0, estimates - 1);
+      estimates--;
+    }
+    estimateTime[estimates] = time;
+    estimate[estimates++] = diff;
+
+    long span = time - estimateTime[0];
+    if (span < MIN_DRIFT_SPAN) {
+      drift = 0.0;
+      return;
+    }
+
+    // Least squares fit relative to the first estimate
+    long t0 = estimateTime[0];
+    long d0 = estimate[0];
+    double sumT = 0.0, sumD = 0.0, sumTT = 0.0, sumTD = 0.0;
+    for (int i = 0; i < estimates; i++) {
+      double t = estimateTime[i] - t0;
+      double d = estimate[i] - d0;
+      sumT += t;
+      sumD += d;
+      sumTT += t * t;
+      sumTD += t * d;
+    }
+    double denominator = estimates * sumTT - sumT * sumT;
+    drift = denominator > 0.0
+      ? (estimates * sumTD - sumT * sumD) / denominator
+      : 0.0;
+    // Real clocks drift much less than this and larger values are
+    // caused by errors in the estimates
+    if (drift > DRIFT_TOLERANCE) {
+      drift = DRIFT_TOLERANCE;
+    } else if (drift < -DRIFT_TOLERANCE) {
+      drift = -DRIFT_TOLERANCE;
+    }
+  }
+
+  /**
+   * Returns the estimated difference between local time and server
+   * time (local time - server time) in milliseconds.
+   */
+  public synchronized long getTimeDiff() {
+    return timeDiff;
+  }
+
+  /**
+   * Returns the estimated time difference at the specified local time
+   * taking the drift of the local clock into account.
+   */
+  public synchronized long getTimeDiff(long localTime) {
+    return timeDiff + (long) (drift * (localTime - referenceTime));
+  }
+
+  /**
+   * Returns the maximal error of the time difference in milliseconds
+   * or <code>Long.MAX_VALUE</code> if no samples have been added.
+   */
+  public synchronized long getError() {
+    return error;
+  }
+
+  /**
+   * Returns the drift of the local clock relative to the server clock
+   * (in milliseconds per millisecond).
+   */
+  public synchronized double getDrift() {
+    return drift;
+  }
+
+  /**
+   * Returns the shortest round trip time among the current samples or
+   * -1 if no samples have been added.
+   */
+  public synchronized long getRoundTripTime() {
+    long rtt = -1L;
+    for (int i = 0; i < count; i++) {
+      long r = roundTrip[(first + i) % MAX_SAMPLES];
+      if (rtt < 0 || r < rtt) {
+	rtt = r;
+      }
+    }
+    return rtt;
+  }
+
+  public synchronized int getSampleCount() {
+    return totalSamples;
+  }
+
+  /**
+   * Returns the server time at which a new sample should be requested
+   * to best reduce the error, given that it should be requested no
+   * earlier than the specified server time. The request is timed to
+   * reach the server at a whole second according to the current
+   * estimate which means that the reply will tell on which side of
+   * the estimate the real time difference is.
+   */
+  public synchronized long getNextSampleTime(long earliestServerTime) {
+    long rtt = getRoundTripTime();
+    if (rtt < 0) {
+      return earliestServerTime;
+    }
+    long time = ((earliestServerTime + rtt / 2) / 1000 + 1) * 1000;
+    return time - rtt / 2;
+  }
+
+  public synchronized String toString() {
+    return "ServerClock[diff=" + timeDiff + ",error=" + error
+      + ",drift=" + drift + ",samples=" + totalSamples + ']';
+  }
+
+} // ServerClock
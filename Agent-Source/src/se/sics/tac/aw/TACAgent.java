@@ -32,12 +32,17 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Properties;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.table.AbstractTableModel;
 
+import com.botbox.util.ArrayQueue;
 import se.sics.tac.util.ArgEnumerator;
 import se.sics.tac.util.LogFormatter;
 
@@ -155,9 +160,47 @@ public class TACAgent implements Task, TACMessageReceiver {
 
   /** Constants for automatic updates and game */
   private final static int INFO_UPDATE_PERIOD = 30000;
+  private final static int FLIGHT_QUOTE_PERIOD = 10000;
+  private final static int HOTEL_QUOTE_PERIOD = 60000;
+  /** One hotel auction closes at the end of each game minute */
+  private final static int HOTEL_CLOSE_PERIOD = 60000;
+
+  /** Server clock sampling: number of samples taken directly after
+   * login and the period between samples thereafter */
+  private final static int CLOCK_INITIAL_SAMPLES = 8;
+  private final static int CLOCK_SYNC_PERIOD = 20000;
 
   private final static int DEFAULT_GAME_LENGTH = 12 * 60 * 1000;
 
+  /** Templates for the most frequently sent messages */
+  private final static String BID_CONSTANTS =
+    "<expireTime>0</expireTime><expireMode>0</expireMode>"
+    + "<divisible>1</divisible>";
+  private final static TACMessageTemplate QUOTE_TEMPLATE =
+    new TACMessageTemplate("getQuote", new String[] { "auctionID" });
+  private final static TACMessageTemplate QUOTE_HQW_TEMPLATE =
+    new TACMessageTemplate("getQuote", new String[] { "auctionID", "bidID" });
+  private final static TACMessageTemplate BID_INFO_TEMPLATE =
+    new TACMessageTemplate("bidInfo", new String[] { "bidID" });
+  /** Maximal number of transaction rounds in flight */
+  private final static int MAX_TRANSACTION_ROUNDS = 3;
+  /** Time before a transaction round is requested again */
+  private final static int TRANSACTION_TIMEOUT = 30000;
+
+  private final static TACMessageTemplate TRANS_IDS_TEMPLATE =
+    new TACMessageTemplate("transIDs", new String[] { "earliestTransID" });
+  private final static TACMessageTemplate TRANS_INFO_TEMPLATE =
+    new TACMessageTemplate("transInfo", new String[] { "transID" });
+  private final static TACMessageTemplate SUBMIT_BID_TEMPLATE =
+    new TACMessageTemplate("submitBid",
+			   new String[] { "auctionID", "bidString" },
+			   BID_CONSTANTS);
+  private final static TACMessageTemplate REPLACE_BID_TEMPLATE =
+    new TACMessageTemplate("replaceBid",
+			   new String[] { "bidID", "bidHash",
+					  "auctionID", "bidString" },
+			   BID_CONSTANTS);
+
   private final static String[] auctionType = new String[] {
     "Inflight 1", "Inflight 2", "Inflight 3", "Inflight 4",
     "Outflight 2", "Outflight 3", "Outflight 4", "Outflight 5",
@@ -169,6 +212,8 @@ public class TACAgent implements Task, TACMessageReceiver {
   };
 
   private AgentImpl agent;
+  // All callbacks to the agent implementation are made through this
+  private final AgentCallbacks callbacks;
   private String host = "localhost";
   private int port = 6500;
   private String userName;
@@ -182,9 +227,29 @@ public class TACAgent implements Task, TACMessageReceiver {
   private String childFileName;
 
   private Properties config;
+  // Configuration kept for the connection handlers (which are created
+  // again at each reconnect)
+  private Properties connectionConfig;
 
   private TACConnection connection = null;
 
+  // Performs all replies, timer events and agent calls in one thread
+  // when "eventLoop" is set in the configuration (null otherwise)
+  private EventLoop eventLoop;
+  // Time from when a reply was received until it had been handled
+  private final LatencyHistogram replyTime =
+    new LatencyHistogram("reply handling");
+
+  // The latest published market snapshot
+  private volatile MarketSnapshot snapshot = new MarketSnapshot(NO_AUCTIONS);
+  private final MarketSnapshot snapshotScratch =
+    new MarketSnapshot(NO_AUCTIONS);
+  private final Runnable snapshotPublisher = new Runnable() {
+      public void run() {
+	publishSnapshot();
+      }
+    };
+
   private int nextGameID = -1;
   private long nextGameTime = -1;
 
@@ -192,10 +257,52 @@ public class TACAgent implements Task, TACMessageReceiver {
 
   private int userID = -1;
   private long timeDiff = 0;
+  private final ServerClock serverClock = new ServerClock();
 
   private boolean isNextGameTaskRunning = false;
 
-  private int lastHotelAuction = -1;
+  // Held while handling replies, timer work and invokeLater without an
+  // event loop so that the snapshot is published by one thread at a
+  // time from a state no other thread is changing (the tasks of the
+  // agent and of gameTask also run in different worker lanes when the
+  // time dispatcher uses workers)
+  private final Object stateLock = new Object();
+
+  // The last auction in each category requested by the current quote
+  // sweep (used to notify the agent when all quotes have arrived)
+  private int[] lastQuoteAuction = { -1, -1, -1 };
+  private final QuotePoller quotePoller = new QuotePoller(NO_AUCTIONS);
+  // The auctions still awaiting quotes in the current sweep of each
+  // category (one bit per auction) and the quotes received so far.
+  // Guarded by sweepLock since the sweeps are started by the timer and
+  // completed by the reply handling.
+  private final Object sweepLock = new Object();
+  private int[] sweepPending = new int[CAT_ENTERTAINMENT + 1];
+  private QuoteBatch[] sweepBatch = new QuoteBatch[CAT_ENTERTAINMENT + 1];
+
+  // Final hotel bids before each predicted hotel close
+  private FinalBidCallback finalBidCallback;
+  private long finalBidLeadTime;
+  // The predicted close (server time) for the latest final bids and
+  // the server time when the final bids started
+  private long finalBidDeadline = 0L;
+  private long finalBidStart = 0L;
+  private int finalBidMisses = 0;
+
+  // Game start/end and server time tasks are scheduled for this task
+  // so that they are never queued behind the quote and bid requests
+  // when the time dispatcher uses workers. They still never run at the
+  // same time as the other timer work (see stateLock).
+  private final Task gameTask = new Task() {
+      public void performWork(long time, Object key, Object value) {
+	EventLoop eventLoop = TACAgent.this.eventLoop;
+	if (eventLoop != null && !eventLoop.isEventThread()) {
+	  eventLoop.post(time, key, value, this);
+	} else {
+	  TACAgent.this.performWork(time, key, value);
+	}
+      }
+    };
   private int clearID = 0;
   // Client Preferences
   private int[][] clientPrefs = new int[8][6];
@@ -203,11 +310,21 @@ public class TACAgent implements Task, TACMessageReceiver {
   // Auction and ownership information
   private int[] auctionIDs = new int[NO_AUCTIONS];
   private int[] owns = new int[NO_AUCTIONS];
-  private Bid[] bids = new Bid[NO_AUCTIONS];
+  private final BidTable bids = new BidTable(NO_AUCTIONS);
   private Quote[] quotes = new Quote[NO_AUCTIONS];
   private float[] costs = new float[NO_AUCTIONS];
 
   private long[] pendingQuotes = new long[NO_AUCTIONS];
+  // Futures waiting for quotes in each auction (ArrayList of TACFuture)
+  private ArrayList[] quoteFutures = new ArrayList[NO_AUCTIONS];
+  // Fails the futures that have not been completed in time
+  private final Task futureTimeoutTask = new Task() {
+      public void performWork(long time, Object key, Object value) {
+	((TACFuture) value).fail(new TimeoutException("no reply after "
+						       + (QUOTE_TIMEOUT / 1000)
+						       + " seconds"));
+      }
+    };
 
   private int[] allocate = new int[NO_AUCTIONS];
 
@@ -218,11 +335,23 @@ public class TACAgent implements Task, TACMessageReceiver {
   private int earliestTransID = -1;
   private boolean isGameStarted = false;
 
-  private int[] transActions = new int[10];
-  private int transActionsNum = 0;
+  // Transaction retrieval: up to MAX_TRANSACTION_ROUNDS rounds of
+  // transIDs requests are kept in flight. Each round holds the
+  // operations to perform when all transactions up to the round have
+  // been retrieved and operations requested while the maximal number
+  // of rounds are in flight wait for the next round.
+  private ArrayQueue transRounds = new ArrayQueue();
   private int[] waitActions = new int[10];
   private int waitActionsNum = 0;
-  private long lastSentTransactionRequest = 0L;
+  private ArrayList waitFutures = new ArrayList();
+  private int transInfoSent = 0;
+  private int transInfoReceived = 0;
+  // The IDs of the transactions requested but not yet retrieved
+  private HashSet pendingTransInfos = new HashSet();
+  // The (estimated) server time when each auction closed
+  private long[] closeTime = new long[NO_AUCTIONS];
+  private final LatencyHistogram closeToOwnership =
+    new LatencyHistogram("close to ownership");
 
   private int printOwnDelay = 0;
 
@@ -237,8 +366,24 @@ public class TACAgent implements Task, TACMessageReceiver {
 
   private TACAgent(AgentImpl agent) {
     this.agent = agent;
+    this.callbacks = new AgentCallbacks(agent, NO_AUCTIONS,
+					CAT_ENTERTAINMENT + 1);
     for (int i = 0; i < NO_AUCTIONS; i++) {
       quotes[i] = new Quote(i);
+      // Hotel quotes only change once per minute (when the server
+      // announces it) and are never backed off. Stable flight and
+      // entertainment prices are polled at most 2 and 4 times slower.
+      switch (getAuctionCategory(i)) {
+      case CAT_FLIGHT:
+	quotePoller.setPeriod(i, FLIGHT_QUOTE_PERIOD, 1);
+	break;
+      case CAT_HOTEL:
+	quotePoller.setPeriod(i, HOTEL_QUOTE_PERIOD, 0);
+	break;
+      default:
+	quotePoller.setPeriod(i, INFO_UPDATE_PERIOD, 2);
+	break;
+      }
     }
   }
 
@@ -273,6 +418,7 @@ public class TACAgent implements Task, TACMessageReceiver {
   public TACAgent(AgentImpl agent, ArgEnumerator a, Properties config) {
     this(agent);
     this.config = config;
+    this.connectionConfig = config;
 
     userName =
       trim(a.getArgument("-agent", config.getProperty("agent", null)));
@@ -326,6 +472,21 @@ public class TACAgent implements Task, TACMessageReceiver {
 
     printOwnDelay = a.getArgument("-printOwnDelay",
 				  getInt(config, "printOwnDelay", 0)) * 1000;
+    TimeDispatcher.getDefault().setWorkers(getInt(config, "timerWorkers", 0));
+    if (getInt(config, "eventLoop", 0) > 0) {
+      log.fine("Using event loop");
+      eventLoop = new EventLoop("event-loop", replyTime, snapshotPublisher);
+    }
+    if (getInt(config, "agentCallbacks", 0) > 0) {
+      if (eventLoop != null) {
+	// The agent must change the state from the event thread only
+	log.warning("agentCallbacks can not be used with eventLoop:"
+		    + " calling the agent in the event thread");
+      } else {
+	log.fine("Using agent callback thread");
+	callbacks.start();
+      }
+    }
 
     log.fine("Starting TAC AgentWare version " + VERSION);
     log.fine("Using agent implementation " + agent.getClass().getName());
@@ -361,6 +522,22 @@ public class TACAgent implements Task, TACMessageReceiver {
     return getInt(config, name, defaultValue);
   }
 
+  // Configuration for the connection handlers - always available
+
+  String getConnectionConfig(String name, String defaultValue) {
+    if (connectionConfig == null) {
+      return defaultValue;
+    }
+    return trim(connectionConfig.getProperty(name, defaultValue));
+  }
+
+  int getConnectionConfig(String name, int defaultValue) {
+    if (connectionConfig == null) {
+      return defaultValue;
+    }
+    return getInt(connectionConfig, name, defaultValue);
+  }
+
 
   // -------------------------------------------------------------------
   // GUI handling
@@ -414,8 +591,9 @@ public class TACAgent implements Task, TACMessageReceiver {
 
   private void cancelTimers() {
     TimeDispatcher d = TimeDispatcher.getDefault();
-    d.cancelTask("gameStarts", this);
-    d.cancelTask("gameEnds", this);
+    d.cancelTask("gameStarts", gameTask);
+    d.cancelTask("gameEnds", gameTask);
+    d.cancelTask("finalBids", gameTask);
     d.cancelTask("hotelQuotes", this);
     d.cancelTask("flightQuotes", this);
     d.cancelTask("quotes", this);
@@ -424,30 +602,47 @@ public class TACAgent implements Task, TACMessageReceiver {
   }
 
   public void performWork(long time, Object key, Object value) {
+    if (eventLoop != null && !eventLoop.isEventThread()) {
+      eventLoop.post(time, key, value, this);
+      return;
+    }
+
+    if (eventLoop == null) {
+      synchronized (stateLock) {
+	performTimerWork(time, key, value);
+	publishSnapshot();
+      }
+    } else {
+      performTimerWork(time, key, value);
+    }
+  }
+
+  private void performTimerWork(long time, Object key, Object value) {
     TimeDispatcher td = TimeDispatcher.getDefault();
     if (key == "hotelQuotes") {
       // Request all hotel quotes
       if (value == connection) {
-	td.addTask(time + 60000, key, value, this);
+	td.addTask(time + HOTEL_QUOTE_PERIOD, key, value, this);
 	TACConnection conn = (TACConnection) value;
-	for (int i = MIN_HOTEL; i <= MAX_HOTEL; i++) {
-	  if (!quotes[i].isAuctionClosed()) {
-	    lastHotelAuction = i;
-	    requestQuote(quotes[i], conn, false);
-	  }
+	conn.beginBatch();
+	try {
+	  requestDueQuotes(conn, MIN_HOTEL, MAX_HOTEL, CAT_HOTEL);
+	} finally {
+	  conn.endBatch();
 	}
       }
 
     } else if (key == "flightQuotes") {
       // Request all flight quotes
       if (value == connection) {
-	td.addTask(time + 10000, key, value, this);
+	td.addTask(time + FLIGHT_QUOTE_PERIOD, key, value, this);
 	TACConnection conn = (TACConnection) value;
 
-	for (int i = MIN_FLIGHT; i <= MAX_FLIGHT; i++) {
-	  if (!quotes[i].isAuctionClosed()) {
-	    requestQuote(quotes[i], conn, false);
-	  }
+	conn.beginBatch();
+	try {
+	  requestDueQuotes(conn, MIN_FLIGHT, MAX_FLIGHT, CAT_FLIGHT);
+	} finally {
+	  conn.endBatch();
 	}
       }
 
@@ -470,6 +665,17 @@ public class TACAgent implements Task, TACMessageReceiver {
 	printOwn();
       }
 
+    } else if (key == "serverTime") {
+      if (value == connection) {
+	sendMessage(new TACMessage("serverTime"), this);
+      }
+
+    } else if (key == "finalBids") {
+      // The task value is the predicted close it was scheduled for
+      long closeTime = ((Long) value).longValue();
+      performFinalBids(closeTime);
+      scheduleFinalBids(closeTime);
+
     } else if (key == "gameStarts") {
       nextGameStarts((TACConnection) value);
 
@@ -517,6 +723,158 @@ public class TACAgent implements Task, TACMessageReceiver {
     return System.currentTimeMillis() - timeDiff;
   }
 
+  /**
+   * Sets the callback used to make the final hotel bids before each
+   * predicted hotel auction close. One hotel auction closes at the
+   * end of each game minute and the callback is called for each open
+   * hotel auction the specified lead time before the minute ends.
+   *
+   * @param callback the callback or <code>null</code> to stop making
+   *	final bids
+   * @param leadTime the time in milliseconds before each predicted
+   *	close to call the callback
+   */
+  public void setFinalBidCallback(FinalBidCallback callback, long leadTime) {
+    synchronized (gameTask) {
+      this.finalBidCallback = callback;
+      this.finalBidLeadTime = leadTime;
+    }
+    TimeDispatcher.getDefault().cancelTask("finalBids", gameTask);
+    if (callback != null && isGameStarted) {
+      scheduleFinalBids(getServerTime());
+    }
+  }
+
+  /**
+   * Returns the number of final hotel bids in the current game that
+   * were not made in time: bids that did not reach the server before
+   * the predicted close and auctions for which no time remained to
+   * call the final bid callback.
+   */
+  public int getFinalBidMisses() {
+    return finalBidMisses + callbacks.getLateFinalBids();
+  }
+
+  /**
+   * Returns the predicted time (in server time) of the next hotel
+   * auction close or -1 if no more hotel auctions will close in the
+   * current game.
+   */
+  public long getNextHotelCloseTime() {
+    return getNextHotelCloseTime(getServerTime());
+  }
+
+  /**
+   * Returns the response time histogram in the current game for the
+   * specified message type (getQuote, submitBid, replaceBid, bidInfo,
+   * transIDs, or transInfo), for "other" (all other messages), or for
+   * "all" messages. Returns <code>null</code> for other types.
+   */
+  public LatencyHistogram getLatencyHistogram(String type) {
+    return LatencyStats.getHistogram(type);
+  }
+
+  /**
+   * Returns the histogram of the time from when each reply was
+   * received until it had been handled (including the time waiting
+   * for the event loop if one is used) in the current game.
+   */
+  public LatencyHistogram getReplyHandlingTime() {
+    return replyTime;
+  }
+
+  /**
+   * Returns the histogram of the time from when each auction closed
+   * until all its transactions had been retrieved in the current game
+   * (hotel auctions are assumed to close at the end of each minute).
+   */
+  public LatencyHistogram getCloseToOwnershipTime() {
+    return closeToOwnership;
+  }
+
+  /**
+   * Returns a report of the response times, the reply handling times,
+   * the timer lateness, and the timer task execution times in the
+   * current game.
+   */
+  public String getLatencyReport() {
+    String report = LatencyStats.getReport() + "\n  " + replyTime + "\n  "
+      + closeToOwnership + "\n  " + TimeDispatcher.getDefault().getReport();
+    if (callbacks.isAsynchronous()) {
+      report += "\n  " + callbacks.getCallbackDelay();
+    }
+    EventLoop eventLoop = this.eventLoop;
+    return eventLoop != null
+      ? report + "\n  " + eventLoop.getReport()
+      : report;
+  }
+
+  /**
+   * Returns the number of quote updates in the current game that were
+   * conflated with a later update for the same auction before the
+   * agent was called. Quote updates are only conflated when the agent
+   * is called in a separate thread (set by "agentCallbacks" in the
+   * configuration file).
+   */
+  public int getConflatedQuoteUpdates() {
+    return callbacks.getConflatedQuotes();
+  }
+
+  /**
+   * Performs the specified runnable in the thread that handles the
+   * replies and timer events. If the agent uses an event loop (set by
+   * "eventLoop" in the configuration file) all agent state is only
+   * changed by the event thread and other threads, such as threads
+   * started by the agent implementation, should use this method to
+   * call the agent. Without an event loop the runnable is performed
+   * directly in the calling thread.
+   */
+  public void invokeLater(Runnable runnable) {
+    EventLoop eventLoop = this.eventLoop;
+    if (eventLoop != null) {
+      eventLoop.post(runnable);
+    } else {
+      synchronized (stateLock) {
+	runnable.run();
+	publishSnapshot();
+      }
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if the calling thread is the event thread
+   * or if no event loop is used.
+   */
+  public boolean isEventThread() {
+    EventLoop eventLoop = this.eventLoop;
+    return eventLoop == null || eventLoop.isEventThread();
+  }
+
+  /**
+   * Returns the number of quote requests saved in the current game by
+   * only polling auctions whose quotes are likely to have changed.
+   */
+  public int getQuoteRequestsSaved() {
+    return quotePoller.getSavedCount();
+  }
+
+  /**
+   * Returns the maximal error in milliseconds of the server time
+   * estimate or <code>Long.MAX_VALUE</code> if the server time is not
+   * yet known.
+   */
+  public long getServerTimeError() {
+    return serverClock.getError();
+  }
+
+  /**
+   * Returns the estimated drift of the local clock relative to the
+   * server clock in milliseconds per millisecond.
+   */
+  public double getServerClockDrift() {
+    return serverClock.getDrift();
+  }
+
   public long getGameTime() {
     return getServerTime() - startTime;
   }
@@ -667,8 +1025,8 @@ public class TACAgent implements Task, TACMessageReceiver {
     return bid.getQuantity();
   }
 
-  public synchronized Bid getBid(int auctionID) {
-    return bids[auctionID];
+  public Bid getBid(int auctionID) {
+    return bids.get(auctionID);
   }
 
   public Quote getQuote(int auctionID) {
@@ -686,6 +1044,44 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
   }
 
+  /**
+   * Returns the latest market snapshot. A new snapshot is published
+   * when the state of the auctions has changed after a batch of
+   * replies or timer events (after each reply and timer event unless
+   * an event loop is used). Allocation changes made by the agent are
+   * included in the next published snapshot.
+   */
+  public MarketSnapshot getMarketSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Returns the version of the latest market snapshot. A strategy can
+   * compare this to the version of the snapshot it computed on to see
+   * if its input has gone stale.
+   */
+  public long getMarketVersion() {
+    return snapshot.getVersion();
+  }
+
+  // Publishes a new snapshot if the state has changed since the last
+  // published snapshot. Only called by the event thread or with
+  // stateLock held, so the state is not changed while it is read. The
+  // state is read into a scratch snapshot and copied only if changed.
+  private void publishSnapshot() {
+    MarketSnapshot scratch = snapshotScratch;
+    for (int i = 0; i < NO_AUCTIONS; i++) {
+      scratch.setAuction(i, quotes[i], owns[i], getProbablyOwn(i),
+			 allocate[i], costs[i], bids.get(i));
+    }
+    MarketSnapshot current = snapshot;
+    if (playingGame != current.getGameID()
+	|| !scratch.isSameAuctions(current)) {
+      snapshot = scratch.copy(current.getVersion() + 1, playingGame,
+			      getServerTime());
+    }
+  }
+
   public void clearAllocation() {
     for (int i = 0; i < NO_AUCTIONS; i++) {
       allocate[i] = 0;
@@ -694,7 +1090,19 @@ public class TACAgent implements Task, TACMessageReceiver {
 
   private void clearAll() {
     isGameStarted = false;
-    lastHotelAuction = -1;
+    lastQuoteAuction[CAT_FLIGHT] = -1;
+    lastQuoteAuction[CAT_HOTEL] = -1;
+    lastQuoteAuction[CAT_ENTERTAINMENT] = -1;
+    synchronized (sweepLock) {
+      for (int i = 0, n = sweepPending.length; i < n; i++) {
+	sweepPending[i] = 0;
+	sweepBatch[i] = null;
+      }
+    }
+    quotePoller.clear();
+    finalBidDeadline = 0L;
+    finalBidStart = 0L;
+    finalBidMisses = 0;
     clearID = 0;
     for (int i = 0, n = clientPrefs.length; i < n; i++) {
       int[] tmp = clientPrefs[i];
@@ -703,14 +1111,15 @@ public class TACAgent implements Task, TACMessageReceiver {
       }
     }
 
+    bids.clear();
     for (int i = 0; i < NO_AUCTIONS; i++) {
       auctionIDs[i] = 0;
       owns[i] = 0;
-      bids[i] = null;
       costs[i] = 0f;
       allocate[i] = 0;
       quotes[i].clearAll();
       pendingQuotes[i] = 0L;
+      closeTime[i] = 0L;
     }
     if (tableModel != null) {
       tableModel.fireTableDataChanged();
@@ -723,9 +1132,9 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
     int auction = bid.getAuction();
     bid.submitted();
-    TACMessage msg = new TACMessage("submitBid");
-    prepareBidMsg(msg, bid);
-    updateBid(bid);
+    TACMessage msg = new TACMessage(SUBMIT_BID_TEMPLATE);
+    prepareBidMsg(msg, 0, bid);
+    bids.submit(bid);
     sendMessage(msg, this);
   }
 
@@ -742,25 +1151,124 @@ public class TACAgent implements Task, TACMessageReceiver {
       throw new IllegalArgumentException("Bids do not have same AuctionID");
     }
     bid.submitted();
-    if (oldBid != bids[auction]) {
+    TACMessage msg = new TACMessage(REPLACE_BID_TEMPLATE);
+    msg.setParameter(0, oldBid.getID());
+    msg.setParameter(1, oldBid.getBidHash());
+    prepareBidMsg(msg, 2, bid);
+    if (!bids.replace(oldBid, bid)) {
       bid.setRejectReason(Bid.ACTIVE_BID_CHANGED);
       bid.setProcessingState(Bid.REJECTED);
+      completeBidFuture(bid, null);
       try {
-	agent.bidRejected(bid);
+	callbacks.bidRejected(bid);
       } catch (Exception e) {
 	log.log(Level.SEVERE, "agent could not handle bidRejected", e);
       }
     } else {
-      TACMessage msg = new TACMessage("replaceBid");
-      msg.setParameter("bidID", oldBid.getID());
-      msg.setParameter("bidHash", oldBid.getBidHash());
-
-      prepareBidMsg(msg, bid);
-      updateBid(bid);
       sendMessage(msg, this);
     }
   }
 
+  /**
+   * Submits a bid and returns a future that is completed with the bid
+   * when the server has processed it (the bid info has arrived) or
+   * the bid has been rejected. The future fails if the bid could not
+   * be submitted or if no reply has arrived within the quote timeout.
+   * The agent is notified of the bid as usual.
+   */
+  public TACFuture submitBidAsync(Bid bid) {
+    TACFuture future = new TACFuture("submitBid in auction "
+				     + bid.getAuction());
+    bid.setFuture(future);
+    addFutureTimeout(future);
+    submitBid(bid);
+    return future;
+  }
+
+  /**
+   * Replaces a bid and returns a future that is completed with the new
+   * bid when the server has processed it or the bid has been rejected
+   * (see submitBidAsync()).
+   */
+  public TACFuture replaceBidAsync(Bid oldBid, Bid bid) {
+    TACFuture future = new TACFuture("replaceBid in auction "
+				     + bid.getAuction());
+    bid.setFuture(future);
+    addFutureTimeout(future);
+    replaceBid(oldBid, bid);
+    return future;
+  }
+
+  /**
+   * Requests a new quote for the specified auction and returns a future
+   * that is completed with the quote when it has arrived.
+   */
+  public TACFuture refreshQuoteAsync(int auction) {
+    TACFuture future = new TACFuture("getQuote for auction " + auction);
+    TACConnection connection = this.connection;
+    if (auctionIDs[auction] <= 0 || connection == null) {
+      future.fail(new IllegalStateException("auction " + auction
+					    + " not available"));
+      return future;
+    }
+    synchronized (quoteFutures) {
+      if (quoteFutures[auction] == null) {
+	quoteFutures[auction] = new ArrayList();
+      }
+      quoteFutures[auction].add(future);
+    }
+    addFutureTimeout(future);
+    requestQuote(quotes[auction], connection, true);
+    return future;
+  }
+
+  /**
+   * Requests the transactions from the server and returns a future that
+   * is completed when all transactions up to the request have been
+   * retrieved and the owned goods have been updated.
+   */
+  public TACFuture fetchTransactionsAsync() {
+    TACFuture future = new TACFuture("transactions");
+    addFutureTimeout(future);
+    requestTransactions(OP_NOOP, future);
+    return future;
+  }
+
+  // Schedules the timeout of the future with the future as key so that
+  // it is cancelled in constant time when the future is done
+  private void addFutureTimeout(TACFuture future) {
+    future.setTimeoutTask(futureTimeoutTask);
+    TimeDispatcher.getDefault().addTask(getServerTime() + QUOTE_TIMEOUT,
+					future, future, futureTimeoutTask);
+  }
+
+  private void completeBidFuture(Bid bid, String error) {
+    TACFuture future = bid.getFuture();
+    if (future != null) {
+      bid.setFuture(null);
+      if (error == null) {
+	future.complete(bid);
+      } else {
+	future.fail(new IllegalStateException(error));
+      }
+    }
+  }
+
+  private void completeQuoteFutures(Quote quote) {
+    int auction = quote.getAuction();
+    ArrayList futures;
+    synchronized (quoteFutures) {
+      futures = quoteFutures[auction];
+      if (futures == null || futures.isEmpty()) {
+	return;
+      }
+      quoteFutures[auction] = null;
+    }
+    for (int i = 0, n = futures.size(); i < n; i++) {
+      ((TACFuture) futures.get(i)).complete(quote);
+    }
+  }
+
   // inflight((AllocDay1-Own|ProbablyOwn-BidQ[R][C])...)
   public void printOwn() {
     StringBuffer sb = new StringBuffer();
@@ -806,13 +1314,21 @@ public class TACAgent implements Task, TACMessageReceiver {
   // API's to the connection handlers
   // -------------------------------------------------------------------
 
-  void reset(long timeout, TACConnection conn) {
+  void reset(final long timeout, final TACConnection conn) {
+    if (eventLoop != null && !eventLoop.isEventThread()) {
+      eventLoop.post(new Runnable() {
+	  public void run() {
+	    reset(timeout, conn);
+	  }
+	});
+      return;
+    }
     if (connection == conn) {
       log.fine("performing connection reset");
       cancelTimers();
+      TimeDispatcher.getDefault().cancelTask("serverTime", gameTask);
       // Clear transaction q
-      transActionsNum = 0;
-      waitActionsNum = 0;
+      clearTransactionRounds();
       disconnect(500);
       playingGame = -1;
       nextGameID = -1;
@@ -831,6 +1347,21 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
   }
 
+  // Called by connections that have nothing more to connect to (such
+  // as a replay connection that has replayed all sessions)
+  void stop(String reason) {
+    log.info(reason);
+    exit();
+  }
+
+  private void exit() {
+    disconnect(500);
+    if (rootFileHandler != null) {
+      rootFileHandler.close();
+    }
+    System.exit(0);
+  }
+
   private void disconnect(int timeout) {
     if (connection != null && connection.isConnected()) {
       TACMessage m = new TACMessage("quit");
@@ -844,6 +1375,21 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
   }
 
+  // Called by the connection handlers for each received reply
+  void deliverMessage(TACMessage msg) {
+    EventLoop eventLoop = this.eventLoop;
+    if (eventLoop != null) {
+      eventLoop.post(msg);
+    } else {
+      long start = System.nanoTime();
+      synchronized (stateLock) {
+	msg.deliverMessage();
+	publishSnapshot();
+      }
+      replyTime.record((System.nanoTime() - start) / 1000);
+    }
+  }
+
   public void sendMessage(TACMessage msg, TACMessageReceiver recv) {
     TACConnection connection = this.connection;
     if (connection != null) {
@@ -868,17 +1414,21 @@ public class TACAgent implements Task, TACMessageReceiver {
 	// server might return tacerror for unknown message types.
 	log.warning("ignoring error for getGameConst: " + msg.getValue());
       } else {
-	agent.tacerrorReceived(msg);
+	callbacks.tacerrorReceived(msg);
       }
 
     } else if (msg.nextTag() && (!msg.isDeclaration() || msg.nextTag())) {
-      if (msg.isTag("auth")) {
+      switch (msg.getTagID()) {
+      case TACMessage.TAG_AUTH:
 	handleLogin(msg);
-      } else if (msg.isTag("serverTime")) {
+	break;
+      case TACMessage.TAG_SERVER_TIME:
 	handleServerTime(msg);
-      } else if (msg.isTag("nextGame")) {
+	break;
+      case TACMessage.TAG_NEXT_GAME:
 	handleNextGame(msg);
-      } else if (msg.isTag("getGameParams")) {
+	break;
+      case TACMessage.TAG_GET_GAME_PARAMS:
 	handleGetGame(msg);
 	// Get the transactions before the games starts
 	requestTransactions(OP_GAME_STARTS);
@@ -889,24 +1439,32 @@ public class TACAgent implements Task, TACMessageReceiver {
 	    : userName + ": Showing game " + nextGameID;
 	  display.setGameStatus(status);
 	}
-      } else if (msg.isTag("getGameAuctionIDs")) {
+	break;
+      case TACMessage.TAG_GET_GAME_AUCTION_IDS:
 	handleGetAuctions(msg);
-      } else if (msg.isTag("getGameConsts")) {
+	break;
+      case TACMessage.TAG_GET_GAME_CONSTS:
 	handleGetConstants(msg);
-      } else if (msg.isTag("submitBid")) {
+	break;
+      case TACMessage.TAG_SUBMIT_BID:
+      case TACMessage.TAG_REPLACE_BID:
 	handleBidSubmission(msg);
-      } else if (msg.isTag("replaceBid")) {
-	handleBidSubmission(msg);
-      } else if (msg.isTag("getQuote")) {
+	break;
+      case TACMessage.TAG_GET_QUOTE:
 	handleQuote(msg);
-      } else if (msg.isTag("bidInfo")) {
+	break;
+      case TACMessage.TAG_BID_INFO:
 	handleBidInfo(msg);
-      } else if (msg.isTag("transIDs")) {
+	break;
+      case TACMessage.TAG_TRANS_IDS:
 	handleTransIDs(msg);
-      } else if (msg.isTag("transInfo")) {
+	break;
+      case TACMessage.TAG_TRANS_INFO:
 	handleTransInfo(msg);
-      } else if (msg.isTag("recoverBidIDs")) {
+	break;
+      case TACMessage.TAG_RECOVER_BID_IDS:
 	handleRecoverBidIDs(msg);
+	break;
       }
     }
   }
@@ -930,29 +1488,102 @@ public class TACAgent implements Task, TACMessageReceiver {
 
   private void requestQuotes(TACConnection conn, boolean flightQuotes,
 			     boolean hotelQuotes) {
-    // This should be changed so that it will only request those quotes
-    // that are old enough...
+    // Send all quote requests to the server at once
+    conn.beginBatch();
+    try {
+      requestQuotesInBatch(conn, flightQuotes, hotelQuotes);
+    } finally {
+      conn.endBatch();
+    }
+  }
+
+  private void requestQuotesInBatch(TACConnection conn, boolean flightQuotes,
+				    boolean hotelQuotes) {
     if (flightQuotes) {
-      for (int i = MIN_FLIGHT; i <= MAX_FLIGHT ; i++) {
-	if (!quotes[i].isAuctionClosed()) {
-	  requestQuote(quotes[i], conn, false);
+      requestDueQuotes(conn, MIN_FLIGHT, MAX_FLIGHT, CAT_FLIGHT);
+    }
+    requestDueQuotes(conn, MIN_ENTERTAINMENT, MAX_ENTERTAINMENT,
+		     CAT_ENTERTAINMENT);
+    if (hotelQuotes) {
+      requestDueQuotes(conn, MIN_HOTEL, MAX_HOTEL, CAT_HOTEL);
+    }
+  }
+
+  // Requests the quotes in the specified auctions that the quote
+  // poller regards as old enough. The sweep is started before the
+  // first request so that no reply can arrive before it.
+  private void requestDueQuotes(TACConnection conn, int minAuction,
+				int maxAuction, int category) {
+    long serverTime = getServerTime();
+    int due = 0;
+    int pending = 0;
+    for (int i = minAuction; i <= maxAuction; i++) {
+      if (quotePoller.isDue(quotes[i], serverTime)) {
+	due |= 1 << i;
+	if (auctionIDs[i] > 0) {
+	  pending |= 1 << i;
 	}
       }
     }
-    for (int i = MIN_ENTERTAINMENT; i <= MAX_ENTERTAINMENT ; i++) {
-      if (!quotes[i].isAuctionClosed()) {
+
+    QuoteBatch previous;
+    synchronized (sweepLock) {
+      previous = sweepBatch[category];
+      sweepBatch[category] =
+	pending != 0 ? new QuoteBatch(category, quotes) : null;
+      sweepPending[category] = pending;
+    }
+    if (previous != null) {
+      // Deliver whatever was received in the previous sweep
+      log.fine("quote sweep for category " + category
+	       + " not completed before next sweep");
+      deliverQuoteBatch(previous);
+    }
+
+    for (int i = minAuction; i <= maxAuction; i++) {
+      if ((due & (1 << i)) != 0) {
+	lastQuoteAuction[category] = i;
 	requestQuote(quotes[i], conn, false);
       }
     }
+  }
 
-    if (hotelQuotes) {
-      for (int i = MIN_HOTEL; i <= MAX_HOTEL ; i++) {
-	if (!quotes[i].isAuctionClosed()) {
-	  lastHotelAuction = i;
-	  requestQuote(quotes[i], conn, false);
+  // Adds a received quote to the current sweep of its category and
+  // delivers the batch when all quotes in the sweep have been received
+  private void updateQuoteBatch(Quote quote, float oldAskPrice,
+				float oldBidPrice, int oldHQW,
+				int oldAuctionStatus, boolean isRerequested) {
+    int auction = quote.getAuction();
+    int category = getAuctionCategory(auction);
+    int bit = 1 << auction;
+    QuoteBatch completed = null;
+    synchronized (sweepLock) {
+      QuoteBatch batch = sweepBatch[category];
+      if (batch != null && (sweepPending[category] & bit) != 0) {
+	batch.update(quote, oldAskPrice, oldBidPrice, oldHQW,
+		     oldAuctionStatus, getServerTime());
+	if (!isRerequested) {
+	  // Stale hotel quotes are requested again and stay pending
+	  sweepPending[category] &= ~bit;
+	  if (sweepPending[category] == 0) {
+	    sweepBatch[category] = null;
+	    completed = batch;
+	  }
 	}
       }
     }
+    if (completed != null) {
+      deliverQuoteBatch(completed);
+    }
+  }
+
+  private void deliverQuoteBatch(QuoteBatch batch) {
+    try {
+      callbacks.quotesUpdated(batch);
+    } catch (Exception e) {
+      log.log(Level.SEVERE, "agent could not handle quotesUpdated for "
+	      + batch, e);
+    }
   }
 
   private void requestQuote(Quote quote, TACConnection conn, boolean force) {
@@ -980,23 +1611,26 @@ public class TACAgent implements Task, TACMessageReceiver {
       } else {
 	pendingQuotes[auction] = currentTime;
 	try {
-	  TACMessage msg = new TACMessage("getQuote");
-	  msg.setParameter("auctionID", auctionID);
-	  Bid bid = bids[auction];
-	  msg.setUserData(quote);
+	  TACMessage msg;
+	  Bid bid = bids.get(auction);
+	  int id = Bid.NO_ID;
 	  if (bid != null) {
-	    int id;
-	    if ((id = bid.getID()) != Bid.NO_ID) {
-	      msg.setParameter("bidID", id);
-	      msg.setUserData(bid);
-	    } else if (((bid = bid.getReplacing()) != null)
-		       && ((id = bid.getID()) != Bid.NO_ID)) {
+	    if ((id = bid.getID()) == Bid.NO_ID
+		&& ((bid = bid.getReplacing()) != null)) {
 	      // Request HQW for previous bid if it currently is being
 	      // replaced (in case the new bid is rejected)
-	      msg.setParameter("bidID", id);
-	      msg.setUserData(bid);
+	      id = bid.getID();
 	    }
 	  }
+	  if (id != Bid.NO_ID) {
+	    msg = new TACMessage(QUOTE_HQW_TEMPLATE);
+	    msg.setParameter(1, id);
+	    msg.setUserData(bid);
+	  } else {
+	    msg = new TACMessage(QUOTE_TEMPLATE);
+	    msg.setUserData(quote);
+	  }
+	  msg.setParameter(0, auctionID);
 	  conn.sendMessage(msg, this);
 	} catch (Exception e) {
 	  log.log(Level.SEVERE, "could not request quote for auction "
@@ -1011,64 +1645,195 @@ public class TACAgent implements Task, TACMessageReceiver {
   private void requestBidInfos(TACConnection conn) {
     Bid bid;
     int bidID;
+    conn.beginBatch();
     try {
       for (int i = 0; i < NO_AUCTIONS; i++) {
-	bid = bids[i];
+	bid = bids.get(i);
 	if (bid != null && ((bidID = bid.getID()) != Bid.NO_ID)
 	    && !quotes[i].isAuctionClosed()) {
-	  TACMessage msg = new TACMessage("bidInfo");
-	  msg.setParameter("bidID", bidID);
-	  msg.setUserData(bid);
-	  conn.sendMessage(msg, this);
+	  conn.sendMessage(createBidInfoMsg(bid, bidID), this);
 	}
       }
     } catch (IOException e) {
       log.log(Level.SEVERE, "could not request bid infos", e);
       reset(0, conn);
+    } finally {
+      conn.endBatch();
     }
     requestTransactions(OP_NOOP);
   }
 
-  private synchronized void requestTransactions(int call) {
-    if (transActionsNum == 0) {
-      transActions[0] = call;
-      transActionsNum++;
-      TACMessage msg = new TACMessage("transIDs");
-      msg.setParameter("earliestTransID", earliestTransID);
-      lastSentTransactionRequest = System.currentTimeMillis();
-      sendMessage(msg, this);
+  private void requestTransactions(int call) {
+    requestTransactions(call, null);
+  }
+
+  private synchronized void requestTransactions(int call, TACFuture future) {
+    checkTransactionTimeout();
+    if (transRounds.size() < MAX_TRANSACTION_ROUNDS) {
+      startTransactionRound(new int[] { call }, 1);
+      if (future != null) {
+	((TransactionRound) transRounds.get(transRounds.size() - 1))
+	  .addFuture(future);
+      }
     } else {
+      if (future != null) {
+	waitFutures.add(future);
+      }
       if (waitActionsNum == waitActions.length) {
 	int[] tmp = new int[waitActions.length * 2];
 	System.arraycopy(waitActions, 0, tmp, 0, waitActionsNum);
 	waitActions = tmp;
       }
       waitActions[waitActionsNum++] = call;
+    }
+  }
 
-      long currentTime = System.currentTimeMillis();
-      if ((currentTime - lastSentTransactionRequest) > 30000) {
-	// Too long time after last sent transaction
-	TACMessage msg = new TACMessage("transIDs");
-	msg.setParameter("earliestTransID", earliestTransID);
-	lastSentTransactionRequest = currentTime;
-	log.warning("WARNING: transaction timeout after "
-		    + ((currentTime - lastSentTransactionRequest) / 1000)
-		    + " sec!!! (resending)");
+  // Requests the oldest transaction round again if it has waited too
+  // long: its transIDs if they have not been received and otherwise
+  // the transactions not yet retrieved (the transIDs would not list
+  // them again since earliestTransID has moved past them)
+  private synchronized void checkTransactionTimeout() {
+    if (transRounds.isEmpty()) {
+      return;
+    }
+    TransactionRound round = (TransactionRound) transRounds.get(0);
+    long currentTime = System.currentTimeMillis();
+    if ((currentTime - round.sentTime) > TRANSACTION_TIMEOUT) {
+      log.warning("transaction timeout after "
+		  + ((currentTime - round.sentTime) / 1000)
+		  + " sec (resending "
+		  + (round.idsReceived
+		     ? pendingTransInfos.size() + " transInfo)"
+		     : "transIDs)"));
+      round.sentTime = currentTime;
+      if (!round.idsReceived) {
+	TACMessage msg = createTransIDsMsg();
+	msg.setUserData(round);
 	sendMessage(msg, this);
+      } else {
+	for (Iterator it = pendingTransInfos.iterator(); it.hasNext(); ) {
+	  sendMessage(createTransInfoMsg((Integer) it.next()), this);
+	}
+      }
+    }
+  }
+
+  private synchronized void startTransactionRound(int[] actions, int count) {
+    TransactionRound round = new TransactionRound(actions, count);
+    round.sentTime = System.currentTimeMillis();
+    transRounds.add(round);
+    TACMessage msg = createTransIDsMsg();
+    msg.setUserData(round);
+    sendMessage(msg, this);
+  }
+
+  private synchronized void clearTransactionRounds() {
+    transRounds.clear();
+    waitActionsNum = 0;
+    waitFutures.clear();
+    transInfoSent = 0;
+    transInfoReceived = 0;
+    pendingTransInfos.clear();
+  }
+
+  private synchronized void transactionIDsReceived(TransactionRound round,
+						   int requested) {
+    transInfoSent += requested;
+    if (!round.idsReceived) {
+      round.idsReceived = true;
+      // The round is complete when all transactions requested so far
+      // have been retrieved (transactions in this round might have
+      // been requested by another round)
+      round.requiredInfos = transInfoSent;
+    }
+  }
+
+  private synchronized void transactionInfoRequested(Integer transID) {
+    pendingTransInfos.add(transID);
+  }
+
+  // Returns true if the transaction had not been retrieved before (a
+  // transaction requested again might be received twice)
+  private synchronized boolean transactionInfoReceived(Integer transID) {
+    if (!pendingTransInfos.remove(transID)) {
+      return false;
+    }
+    transInfoReceived++;
+    return true;
+  }
+
+  // Returns the first transaction round if it is complete (and then
+  // removes it) or null otherwise
+  private synchronized TransactionRound nextCompletedRound() {
+    if (transRounds.isEmpty()) {
+      return null;
+    }
+    TransactionRound round = (TransactionRound) transRounds.get(0);
+    if (!round.idsReceived || transInfoReceived < round.requiredInfos) {
+      return null;
+    }
+    transRounds.remove(0);
+    if (waitActionsNum > 0) {
+      // Start a new round for the operations waiting for a round
+      int[] actions = waitActions;
+      waitActions = new int[actions.length];
+      startTransactionRound(actions, waitActionsNum);
+      waitActionsNum = 0;
+      if (!waitFutures.isEmpty()) {
+	TransactionRound next =
+	  (TransactionRound) transRounds.get(transRounds.size() - 1);
+	for (int i = 0, n = waitFutures.size(); i < n; i++) {
+	  next.addFuture((TACFuture) waitFutures.get(i));
+	}
+	waitFutures.clear();
+      }
+    }
+    return round;
+  }
+
+  // Performs the operations of all completed transaction rounds (in
+  // the order the rounds were requested)
+  private void completeTransactionRounds() {
+    TransactionRound round;
+    while ((round = nextCompletedRound()) != null) {
+      callAgent(round.actions, round.count);
+      if (round.futures != null) {
+	for (int i = 0, n = round.futures.size(); i < n; i++) {
+	  ((TACFuture) round.futures.get(i)).complete(null);
+	}
       }
     }
   }
 
-  private void prepareBidMsg(TACMessage msg, Bid bid) {
+  // Sets the auction and bid string starting at the specified
+  // parameter index (the other bid parameters are template constants)
+  private void prepareBidMsg(TACMessage msg, int index, Bid bid) {
     int auction = bid.getAuction();
-    msg.setParameter("auctionID", auctionIDs[auction]);
-    msg.setParameter("bidString", bid.getBidString());
-    msg.setParameter("expireTime", 0);
-    msg.setParameter("expireMode", 0);
-    msg.setParameter("divisible", 1);
+    msg.setParameter(index, auctionIDs[auction]);
+    msg.setParameter(index + 1, bid.getBidString());
     msg.setUserData(bid);
   }
 
+  private TACMessage createBidInfoMsg(Bid bid, int bidID) {
+    TACMessage msg = new TACMessage(BID_INFO_TEMPLATE);
+    msg.setParameter(0, bidID);
+    msg.setUserData(bid);
+    return msg;
+  }
+
+  private TACMessage createTransInfoMsg(Integer transID) {
+    TACMessage msg = new TACMessage(TRANS_INFO_TEMPLATE);
+    msg.setParameter(0, transID.intValue());
+    msg.setUserData(transID);
+    return msg;
+  }
+
+  private TACMessage createTransIDsMsg() {
+    TACMessage msg = new TACMessage(TRANS_IDS_TEMPLATE);
+    msg.setParameter(0, earliestTransID);
+    return msg;
+  }
+
   private void nextGameStarts(TACConnection conn) {
     clearAll();
     playingGame = nextGameID;
@@ -1078,6 +1843,15 @@ public class TACAgent implements Task, TACMessageReceiver {
     earliestTransID = -1;
     enterGameLog(nextGameID);
     log.fine("Starting up game: " + playingGame);
+    // Response times are measured per game
+    TACMessage.resetResponseTime();
+    TimeDispatcher.getDefault().resetStats();
+    replyTime.reset();
+    closeToOwnership.reset();
+    callbacks.resetStats();
+    if (eventLoop != null) {
+      eventLoop.resetStats();
+    }
 
     // If illegal state, end game and restart... should not happen?
     if (playingGame == -1) {
@@ -1103,6 +1877,16 @@ public class TACAgent implements Task, TACMessageReceiver {
     isGameStarted = false;
 
     cancelTimers();
+    log.fine("Quote polling: " + quotePoller.getRequestCount()
+	     + " quotes requested, " + quotePoller.getSavedCount()
+	     + " requests saved");
+    if (finalBidCallback != null) {
+      log.info("Final hotel bids: " + getFinalBidMisses()
+	       + " deadline misses");
+    }
+    if (callbacks.isAsynchronous()) {
+      log.info(callbacks.getReport());
+    }
 
     if (earliestTransID != -1) {
       requestTransactions(OP_GAME_ENDS);
@@ -1121,11 +1905,7 @@ public class TACAgent implements Task, TACMessageReceiver {
       // We have played the specified number of games
       log.info("Exit as requested after " + exitAfterGames
 	       + " played games");
-      disconnect(500);
-      if (rootFileHandler != null) {
-	rootFileHandler.close();
-      }
-      System.exit(0);
+      exit();
     }
   }
 
@@ -1135,6 +1915,7 @@ public class TACAgent implements Task, TACMessageReceiver {
       if (msg.isTag("userID")) {
 	userID = msg.getValueAsInt(-1);
 	log.fine("Logged in as " + userID);
+	serverClock.clear();
 	TACMessage msg2 = new TACMessage("serverTime");
 	sendMessage(msg2, this);
 
@@ -1156,24 +1937,29 @@ public class TACAgent implements Task, TACMessageReceiver {
     Bid bid = (Bid) msg.getUserData();
     int status = NO_ERROR;
 
-    while (msg.nextTag()) {
-      if (msg.isTag("bidID")) {
-	int id = msg.getValueAsInt(Bid.NO_ID);
-	bid.setID(id);
-      } else if (msg.isTag("bidHash")) {
-	String hash = msg.getValue();
-	bid.setBidHash(hash);
-      } else if (msg.isTag("rejectReason")) {
-	int reject = msg.getValueAsInt(Bid.NOT_REJECTED);
-	bid.setRejectReason(reject);
-	if (reject != Bid.NOT_REJECTED) {
-	  bid.setProcessingState(Bid.REJECTED);
+    // The agent might read the bid in another thread
+    synchronized (bid) {
+      while (msg.nextTag()) {
+	if (msg.isTag("bidID")) {
+	  int id = msg.getValueAsInt(Bid.NO_ID);
+	  bid.setID(id);
+	} else if (msg.isTag("bidHash")) {
+	  String hash = msg.getValue();
+	  bid.setBidHash(hash);
+	} else if (msg.isTag("rejectReason")) {
+	  int reject = msg.getValueAsInt(Bid.NOT_REJECTED);
+	  bid.setRejectReason(reject);
+	  if (reject != Bid.NOT_REJECTED) {
+	    bid.setProcessingState(Bid.REJECTED);
+	  }
+	} else if (msg.isTag("commandStatus")) {
+	  status = mapCommandStatus(msg.getValueAsInt(NO_ERROR));
 	}
-      } else if (msg.isTag("commandStatus")) {
-	status = mapCommandStatus(msg.getValueAsInt(NO_ERROR));
       }
     }
 
+    checkFinalBid(msg, bid, status);
+
     if (bid.isRejected()) {
       // reset the active bid!
       revertBid(bid, NO_ERROR);
@@ -1186,10 +1972,7 @@ public class TACAgent implements Task, TACMessageReceiver {
 		 + commandStatusToString(status), 5000);
     } else {
       // Request Bid info
-      TACMessage msg2 = new TACMessage("bidInfo");
-      msg2.setParameter("bidID", bid.getID());
-      msg2.setUserData(bid);
-      sendMessage(msg2, this);
+      sendMessage(createBidInfoMsg(bid, bid.getID()), this);
 
       // Should not do this until bidinfo arrives where the bid is
       // hopefully no longer preliminary. (For backward compability!)
@@ -1200,41 +1983,21 @@ public class TACAgent implements Task, TACMessageReceiver {
   // the bid "bid" has been rejected/ or in error
   // ensure that the information about active bid, etc is correct
   // call agent
-  private synchronized void revertBid(Bid bid, int status) {
-    int auction = bid.getAuction();
-
-    Bid activeBid = getBid(auction);
-
-    if (bid.same(activeBid)) {
-      activeBid = bid.getReplacing();
-      if (activeBid != null) {
-	bids[auction] = activeBid;
-      } else {
-	bids[auction] = null;
-      }
-    } else if (activeBid != null) {
-      Bid child;
-      while ((child = activeBid.getReplacing()) != null && !child.same(bid)) {
-	activeBid = child;
-      }
-      if (child != null && child.same(bid)) {
-	activeBid.setReplacing(child.getReplacing());
-	bid = null;
-      }
-      activeBid = null;
-    }
-
-    // if this was the active bid
-    if (bid != null) {
+  private void revertBid(Bid bid, int status) {
+    completeBidFuture(bid, status == NO_ERROR
+		      ? null
+		      : "bid error: " + commandStatusToString(status));
+    // Only notify the agent if the bid had not already been replaced
+    if (!bids.revert(bid)) {
       if (status == NO_ERROR) {
 	try {
-	  agent.bidRejected(bid);
+	  callbacks.bidRejected(bid);
 	} catch (Exception e) {
 	  log.log(Level.SEVERE, "agent could not handle bidRejected", e);
 	}
       } else {
 	try {
-	  agent.bidError(bid, status);
+	  callbacks.bidError(bid, status);
 	} catch (Exception e) {
 	  log.log(Level.SEVERE, "agent could not handle bidError", e);
 	}
@@ -1247,7 +2010,8 @@ public class TACAgent implements Task, TACMessageReceiver {
   }
 
   private void handleTransIDs(TACMessage msg) {
-    TACMessage msg2 = null;
+    TransactionRound round = (TransactionRound) msg.getUserData();
+    int requested = 0;
     int oldEarliest = earliestTransID;
     while (msg.nextTag()) {
       if (msg.isTag("transID")) {
@@ -1256,22 +2020,26 @@ public class TACAgent implements Task, TACMessageReceiver {
 	  earliestTransID = id;
 	}
 	if (id > oldEarliest) {
-	  msg2 = new TACMessage("transInfo");
-	  msg2.setParameter("transID", id);
-	  sendMessage(msg2, this);
+	  Integer transID = Integer.valueOf(id);
+	  transactionInfoRequested(transID);
+	  sendMessage(createTransInfoMsg(transID), this);
+	  requested++;
 	}
       }
     }
-    if (msg2 != null) {
-      // Indicate that this was the last for this transaction sessions
-      msg2.setUserData(this);
-    } else {
-      // Nothing to retrieve
-      callAgent();
+    if (round != null) {
+      transactionIDsReceived(round, requested);
+      // The round might already be complete (nothing to retrieve)
+      completeTransactionRounds();
     }
   }
 
   private void handleTransInfo(TACMessage msg) {
+    Integer transID = (Integer) msg.getUserData();
+    if (transID == null || !transactionInfoReceived(transID)) {
+      log.fine("ignoring transaction " + transID + " already retrieved");
+      return;
+    }
     int quantity = 0;
     int auction = 0;
     float price = 0f;
@@ -1286,7 +2054,7 @@ public class TACAgent implements Task, TACMessageReceiver {
 	    if (tableModel != null) {
 	      tableModel.fireTableRowsUpdated(auction, auction);
 	    }
-	    agent.transaction(trans);
+	    callbacks.transaction(trans);
 	  } catch (Exception e) {
 	    log.log(Level.SEVERE, "agent could not handle transaction "
 		    + trans, e);
@@ -1304,30 +2072,33 @@ public class TACAgent implements Task, TACMessageReceiver {
 	status = msg.getValueAsInt(NO_ERROR);
       }
     }
-    Object obj = msg.getUserData();
-    if (obj != null) {
-      callAgent();
-    }
+    // The ownership is updated as each transaction arrives but the
+    // operations waiting for transactions need the complete rounds
+    completeTransactionRounds();
   }
 
-  private void callAgent() {
-    for (int i = 0; i < transActionsNum; i++) {
-      int ival = transActions[i];
+  private void callAgent(int[] actions, int count) {
+    for (int i = 0; i < count; i++) {
+      int ival = actions[i];
       if ((OP_CLEAR_BID & ival) != 0) {
 	clearBid(ival - OP_CLEAR_BID);
       } else {
 	try {
 	  if ((OP_CLOSE_AUCTION & ival) != 0) {
-	    agent.auctionClosed(ival - OP_CLOSE_AUCTION);
+	    int auction = ival - OP_CLOSE_AUCTION;
+	    closeToOwnership.record((getServerTime() - closeTime[auction])
+				    * 1000);
+	    callbacks.auctionClosed(auction);
 	  } else if (ival == OP_GAME_STARTS) {
 	    // Another game is being played
 	    if (playingGame != lastGamePlayed) {
 	      lastGamePlayed = playingGame;
 	      gamesPlayed++;
 	    }
-	    agent.gameStarted();
+	    callbacks.gameStarted();
 	  } else if (ival == OP_GAME_ENDS) {
-	    agent.gameStopped();
+	    log.info(getLatencyReport());
+	    callbacks.gameStopped();
 	  }
 	} catch (Throwable e) {
 	  log.log(Level.SEVERE, "agent could not handle operation " +
@@ -1369,43 +2140,38 @@ public class TACAgent implements Task, TACMessageReceiver {
 	  TimeDispatcher.getDefault().addTask(nextFlightTime,
 					      "flightQuotes",
 					      connection, this);
+	  scheduleFinalBids(currentTime);
 	  requestQuotes(connection, true, true);
 	}
       }
     }
-    swapTransactions();
   }
 
-  private synchronized void swapTransactions() {
-    if (waitActionsNum == 0) {
-      transActionsNum = 0;
-      // Do nothing more...
-    } else {
-      // Set up actions to call after next transaction
-      transActionsNum = waitActionsNum;
-      int[] tmp = transActions;
-      transActions = waitActions;
-      waitActions = tmp;
-      waitActionsNum = 0;
-
-      // Request new transaction!!!
-      TACMessage msg = new TACMessage("transIDs");
-      msg.setParameter("earliestTransID", earliestTransID);
-      sendMessage(msg, this);
+  // Returns the estimated server time when the auction closed
+  private long getCloseTime(int auction) {
+    long serverTime = getServerTime();
+    if (getAuctionCategory(auction) == CAT_HOTEL && serverTime > startTime) {
+      // Hotel auctions close at the end of a game minute
+      return startTime + ((serverTime - startTime) / HOTEL_CLOSE_PERIOD)
+	* HOTEL_CLOSE_PERIOD;
     }
+    return serverTime;
   }
 
   private void handleQuote(TACMessage msg) {
     Object obj = msg.getUserData();
     Quote quote;
     int auction;
+    int oldHQW;
     if (obj instanceof Quote) {
       quote = (Quote) obj;
       auction = quote.getAuction();
+      oldHQW = quote.getHQW();
     } else {
       Bid bid = (Bid) obj;
       auction = bid.getAuction();
       quote = quotes[auction];
+      oldHQW = quote.getHQW();
       quote.setHQW(-1);
       quote.setBid(bid);
     }
@@ -1414,39 +2180,54 @@ public class TACAgent implements Task, TACMessageReceiver {
     pendingQuotes[auction] = 0L;
 
     int oldAuctionStatus = quote.getAuctionStatus();
+    float oldAskPrice = quote.getAskPrice();
+    float oldBidPrice = quote.getBidPrice();
     while (msg.nextTag()) {
-      if (msg.isTag("lastAskPrice")) {
+      if (msg.isEndTag()) {
+	continue;
+      }
+      switch (msg.getTagID()) {
+      case TACMessage.TAG_LAST_ASK_PRICE:
 	quote.setAskPrice(msg.getValueAsFloat(0f));
-      } else if (msg.isTag("lastBidPrice")) {
+	break;
+      case TACMessage.TAG_LAST_BID_PRICE:
 	quote.setBidPrice(msg.getValueAsFloat(0f));
-      } else if (msg.isTag("hypotheticalQuantityWon")) {
+	break;
+      case TACMessage.TAG_HQW:
 	quote.setHQW(msg.getValueAsInt(-1));
-      } else if (msg.isTag("auctionStatus")) {
+	break;
+      case TACMessage.TAG_AUCTION_STATUS:
 	quote.setAuctionStatus(msg.getValueAsInt(Quote.AUCTION_INITIALIZING));
-      } else if (msg.isTag("nextQuoteTime")) {
+	break;
+      case TACMessage.TAG_NEXT_QUOTE_TIME:
 	quote.setNextQuoteTime(1000 * msg.getValueAsLong(0));
-      } else if (msg.isTag("auctionStatus")) {
-	quote.setLastQuoteTime(1000 * msg.getValueAsLong(0));
+	break;
       }
     }
+    quotePoller.quoteUpdated(quote, oldAskPrice);
+    completeQuoteFutures(quote);
 
     try {
-      agent.quoteUpdated(quote);
+      callbacks.quoteUpdated(quote);
     } catch (Exception e) {
       log.log(Level.SEVERE,
 	      "agent could not handle quoteUpdated for " + quote, e);
     }
 
+    boolean isRerequested = rerequestStaleQuote(quote);
     try {
-      if (isLastAuction(quote)) {
-	agent.quoteUpdated(getAuctionCategory(auction));
+      if (!isRerequested && isLastAuction(quote)) {
+	callbacks.quoteUpdated(getAuctionCategory(auction));
       }
     } catch (Exception e) {
       log.log(Level.SEVERE,
 	      "agent could not handle quoteUpdated for " + quote, e);
     }
+    updateQuoteBatch(quote, oldAskPrice, oldBidPrice, oldHQW,
+		     oldAuctionStatus, isRerequested);
     if (quote.isAuctionClosed()
 	&& (oldAuctionStatus != Quote.AUCTION_CLOSED)) {
+      closeTime[auction] = getCloseTime(auction);
       requestTransactions(OP_CLOSE_AUCTION + auction);
     }
     if (tableModel != null) {
@@ -1456,23 +2237,25 @@ public class TACAgent implements Task, TACMessageReceiver {
 
   private boolean isLastAuction(Quote quote) {
     int auction = quote.getAuction();
-    int category = getAuctionCategory(auction);
+    return auction == lastQuoteAuction[getAuctionCategory(auction)];
+  }
+
+  // Requests a hotel quote again if the server has not yet updated it
+  // after the last hotel auction closed
+  private boolean rerequestStaleQuote(Quote quote) {
+    int auction = quote.getAuction();
     long serverTime, quoteTime;
-    if (category == CAT_ENTERTAINMENT) {
-      return auction == MAX_ENTERTAINMENT;
-    } else if (category == CAT_FLIGHT) {
-      return auction == MAX_FLIGHT;
-    } else if (!quote.isAuctionClosed() &&
-	       (quoteTime = quote.getNextQuoteTime()) > 0 &&
-	       (serverTime = getServerTime()) > quoteTime) {
-      lastHotelAuction = auction;
+    if (getAuctionCategory(auction) == CAT_HOTEL
+	&& !quote.isAuctionClosed()
+	&& (quoteTime = quote.getNextQuoteTime()) > 0
+	&& (serverTime = getServerTime()) > quoteTime) {
+      lastQuoteAuction[CAT_HOTEL] = auction;
       log.fine("rerequesting hotel quote for auction " + auction);
       TimeDispatcher.getDefault()
 	.addTask(serverTime + 1000, quote, connection, this);
-      return false;
-    } else {
-      return auction == lastHotelAuction;
+      return true;
     }
+    return false;
   }
 
   private void handleBidInfo(TACMessage msg) {
@@ -1486,21 +2269,32 @@ public class TACAgent implements Task, TACMessageReceiver {
     int commandStatus = NO_ERROR;
 
     while (msg.nextTag()) {
-      if (msg.isTag("bidString")) {
+      if (msg.isEndTag()) {
+	continue;
+      }
+      switch (msg.getTagID()) {
+      case TACMessage.TAG_BID_STRING:
 	bidString = msg.getValue();
-      } else if (msg.isTag("bidHash")) {
+	break;
+      case TACMessage.TAG_BID_HASH:
 	bidHash = msg.getValue();
-      } else if (msg.isTag("rejectReason")) {
+	break;
+      case TACMessage.TAG_REJECT_REASON:
 	rejectReason = Bid.mapRejectReason(msg.getValueAsInt(rejectReason));
-      } else if (msg.isTag("processingState")) {
+	break;
+      case TACMessage.TAG_PROCESSING_STATE:
 	processingState =
 	  Bid.mapProcessingState(msg.getValueAsInt(processingState));
-      } else if (msg.isTag("timeClosed")) {
+	break;
+      case TACMessage.TAG_TIME_CLOSED:
 	timeClosed = msg.getValueAsLong(0);
-      } else if (msg.isTag("timeProcessed")) {
+	break;
+      case TACMessage.TAG_TIME_PROCESSED:
 	timeProcessed = msg.getValueAsLong(0);
-      } else if (msg.isTag("commandStatus")) {
+	break;
+      case TACMessage.TAG_COMMAND_STATUS:
 	commandStatus = msg.getValueAsInt(NO_ERROR);
+	break;
       }
     }
 
@@ -1520,13 +2314,13 @@ public class TACAgent implements Task, TACMessageReceiver {
       log.warning("could not retrieve bidInfo for bid " + bid.getID()
 		  + " in auction " + bid.getAuction() + ": "
 		  + commandStatusToString(commandStatus));
+      completeBidFuture(bid, "could not retrieve bidInfo: "
+			+ commandStatusToString(commandStatus));
     } else {
       // Bid is ok (not preliminary or rejected)!
       bid.setReplacing(null);
-      bid.setProcessingState(processingState);
-      bid.setRejectReason(rejectReason);
-      bid.setTimeProcessed(timeProcessed);
-      bid.setTimeClosed(timeClosed);
+      bid.setProcessed(processingState, rejectReason, timeProcessed,
+		       timeClosed);
 
       String oldHash = bid.getBidHash();
       if (oldHash == null && !isGameStarted) {
@@ -1543,11 +2337,12 @@ public class TACAgent implements Task, TACMessageReceiver {
 	bid.setBidTransacted(clearID, bidHash, bidString);
       } else {
 	try {
-	  agent.bidUpdated(bid);
+	  callbacks.bidUpdated(bid);
 	} catch (Exception e) {
 	  log.log(Level.SEVERE, "agent could not handle bidUpdated", e);
 	}
       }
+      completeBidFuture(bid, null);
       int row = bid.getAuction();
       if (tableModel != null) {
 	tableModel.fireTableRowsUpdated(row, row);
@@ -1555,7 +2350,7 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
   }
 
-  private synchronized void clearBid(int transID) {
+  private void clearBid(int transID) {
     int auction = transID & 31;
     int clearID = transID >> 5;
 
@@ -1572,7 +2367,7 @@ public class TACAgent implements Task, TACMessageReceiver {
 	}
 	if (isActiveBid) {
 	  try {
-	    agent.bidUpdated(newBid);
+	    callbacks.bidUpdated(newBid);
 	  } catch (Exception e) {
 	    log.log(Level.SEVERE, "agent could not handle bidUpdated", e);
 	  }
@@ -1588,41 +2383,20 @@ public class TACAgent implements Task, TACMessageReceiver {
     }
   }
 
-  private synchronized void recoverBid(Bid bid) {
+  private void recoverBid(Bid bid) {
     int auction = bid.getAuction();
-    if (bids[auction] != null) {
+    if (!bids.recover(bid)) {
       log.warning("bid already exist for auction "
 		  + getAuctionTypeAsString(auction)
 		  + " when recovering bid");
     } else {
-      bids[auction] = bid;
       log.finer("bid " + bid.getID() + " for "
 		+ getAuctionTypeAsString(auction) + " has been recovered");
     }
   }
 
-  private synchronized void updateBid(Bid bid) {
-    int auction = bid.getAuction();
-    bid.setReplacing(bids[auction]);
-    bids[auction] = bid;
-  }
-
-  private synchronized void changeBid(int auction, Bid bid, Bid newBid) {
-    Bid activeBid = getBid(auction);
-    if (activeBid != null) {
-      if (activeBid.same(bid)) {
-	bids[auction] = newBid;
-      } else {
-	Bid child;
-	while ((child = activeBid.getReplacing()) != null && !child.same(bid))
-	  {
-	    activeBid = child;
-	  }
-	if (child != null && child.same(bid)) {
-	  activeBid.setReplacing(newBid);
-	}
-      }
-    }
+  private void changeBid(int auction, Bid bid, Bid newBid) {
+    bids.change(auction, bid, newBid);
   }
 
   private void removeBid(int auction, Bid bid) {
@@ -1718,7 +2492,11 @@ public class TACAgent implements Task, TACMessageReceiver {
     boolean gameRunning = true;
 
     while (msg.nextTag()) {
-      if (msg.isTag("clientPreferences")) {
+      if (msg.isEndTag()) {
+	continue;
+      }
+      int tagID = msg.getTagID();
+      if (tagID == TACMessage.TAG_CLIENT_PREFERENCES) {
 	msg.nextTag(); // Ignore list...
 	int client = -1;
 	int arr = 0;
@@ -1727,47 +2505,63 @@ public class TACAgent implements Task, TACMessageReceiver {
 	int type = -1;
 	int[] events = new int[3];
 	int price = 0;
-	while (msg.nextTag() && !msg.isTag("/clientPreferences")) {
-	  if (msg.isTag("/clientPrefTuple")) {
-	    if (client != -1) {
+	while (msg.nextTag()
+	       && !msg.isEndTag(TACMessage.TAG_CLIENT_PREFERENCES)) {
+	  if (msg.isEndTag()) {
+	    if (msg.getTagID() == TACMessage.TAG_CLIENT_PREF_TUPLE
+		&& client != -1) {
 	      setClient(client - 1, arr, dep, hotel, events);
 	    }
-	  } else if (msg.isTag("client")) {
+	    continue;
+	  }
+	  switch (msg.getTagID()) {
+	  case TACMessage.TAG_CLIENT:
 	    client = msg.getValueAsInt(-1);
-	  } else if (msg.isTag("arrival")) {
+	    break;
+	  case TACMessage.TAG_ARRIVAL:
 	    arr = msg.getValueAsInt(-1);
-	  } else if (msg.isTag("departure")) {
+	    break;
+	  case TACMessage.TAG_DEPARTURE:
 	    dep = msg.getValueAsInt(-1);
-	  } else if (msg.isTag("hotel")) {
+	    break;
+	  case TACMessage.TAG_HOTEL:
 	    hotel = (int) msg.getValueAsFloat(-1f);
-	  } else if (msg.isTag("ticketPreferences")) {
-	    while (msg.nextTag() && !msg.isTag("/ticketPreferences")) {
-	      if (msg.isTag("type")) {
+	    break;
+	  case TACMessage.TAG_TICKET_PREFERENCES:
+	    while (msg.nextTag()
+		   && !msg.isEndTag(TACMessage.TAG_TICKET_PREFERENCES)) {
+	      if (msg.isEndTag(TACMessage.TAG_TYPE_PRICE_TUPLE)) {
+		events[type - 1] = price;
+	      } else if (msg.isEndTag()) {
+		// Ignore other end tags
+	      } else if (msg.getTagID() == TACMessage.TAG_TYPE) {
 		type = msg.getValueAsInt(-1);
-	      } else if (msg.isTag("price")) {
+	      } else if (msg.getTagID() == TACMessage.TAG_PRICE) {
 		price = (int) msg.getValueAsFloat(-1f);
-	      } else if (msg.isTag("/typePriceTuple")) {
-		events[type - 1] = price;
 	      }
 	    }
+	    break;
 	  }
 	}
-      } else if (msg.isTag("ticketEndowments")) {
+      } else if (tagID == TACMessage.TAG_TICKET_ENDOWMENTS) {
 	int day = -1;
 	int type = -1;
 	int quantity = -1;
-	while (msg.nextTag() && !msg.isTag("/ticketEndowments")) {
-	  if (msg.isTag("/ticketEndowmentTuple")) {
+	while (msg.nextTag()
+	       && !msg.isEndTag(TACMessage.TAG_TICKET_ENDOWMENTS)) {
+	  if (msg.isEndTag(TACMessage.TAG_TICKET_ENDOWMENT_TUPLE)) {
 	    addOwn(CAT_ENTERTAINMENT, type, day, quantity);
-	  } else if (msg.isTag("type")) {
+	  } else if (msg.isEndTag()) {
+	    // Ignore other end tags
+	  } else if (msg.getTagID() == TACMessage.TAG_TYPE) {
 	    type = msg.getValueAsInt(-1);
-	  } else if (msg.isTag("day")) {
+	  } else if (msg.getTagID() == TACMessage.TAG_DAY) {
 	    day = msg.getValueAsInt(-1);
-	  } else if (msg.isTag("quantity")) {
+	  } else if (msg.getTagID() == TACMessage.TAG_QUANTITY) {
 	    quantity = msg.getValueAsInt(-1);
 	  }
 	}
-      } else if (msg.isTag("commandStatus")) {
+      } else if (tagID == TACMessage.TAG_COMMAND_STATUS) {
 	int status = msg.getValueAsInt(NO_ERROR);
 	if (status != NO_ERROR) {
 	  if (status == GAME_COMPLETE) {
@@ -1787,7 +2581,7 @@ public class TACAgent implements Task, TACMessageReceiver {
     if (gameRunning) {
       TimeDispatcher.getDefault()
 	.addTask(startTime + 1000 + gameLength, "gameEnds",
-		 connection, this);
+		 connection, gameTask);
     }
   }
 
@@ -1810,10 +2604,7 @@ public class TACAgent implements Task, TACMessageReceiver {
 	      // Request information about this bid
 	      log.finer("recovering bid " + bidID + " for "
 			+ getAuctionTypeAsString(auction));
-	      TACMessage msg2 = new TACMessage("bidInfo");
-	      msg2.setParameter("bidID", bidID);
-	      msg2.setUserData(bid);
-	      sendMessage(msg2, this);
+	      sendMessage(createBidInfoMsg(bid, bidID), this);
 	    }
 	    break;
 	  }
@@ -1908,7 +2699,7 @@ public class TACAgent implements Task, TACMessageReceiver {
 	  reset(sleepTime < delay ? sleepTime : delay, connection);
 	} else {
 	  TimeDispatcher.getDefault()
-	    .addTask(nextGameTime + 1000, "gameStarts", connection, this);
+	    .addTask(nextGameTime + 1000, "gameStarts", connection, gameTask);
 	}
       }
     } else if (status != NO_ERROR) {
@@ -1922,15 +2713,141 @@ public class TACAgent implements Task, TACMessageReceiver {
   private void handleServerTime(TACMessage msg) {
     while (msg.nextTag()) {
       if (msg.isTag("time")) {
-	long serverTime = msg.getValueAsLong(-1) * 1000;
-	long time = System.currentTimeMillis();
-	timeDiff = time - serverTime;
-	log.fine("Setting server time diff to " + (timeDiff / 1000)
-		 + " seconds");
-	// Make sure the log formatter uses the server time instead of
-	// local time
-	logFormatter.setTimeDiff(timeDiff);
-	TimeDispatcher.getDefault().setTimeDiff(timeDiff);
+	long serverSeconds = msg.getValueAsLong(-1);
+	long sent = msg.getTimeSent();
+	long received = sent + msg.getResponseTime();
+	if (serverSeconds < 0 || sent <= 0) {
+	  return;
+	}
+	if (!serverClock.addSample(sent, received, serverSeconds)) {
+	  log.warning("server time sample inconsistent with earlier "
+		      + "samples (clock changed?): restarting estimate");
+	}
+	long newTimeDiff = serverClock.getTimeDiff();
+	if (newTimeDiff != timeDiff || serverClock.getSampleCount() == 1) {
+	  timeDiff = newTimeDiff;
+	  // Make sure the log formatter uses the server time instead of
+	  // local time
+	  logFormatter.setTimeDiff(timeDiff);
+	  TimeDispatcher.getDefault().setTimeDiff(timeDiff);
+	}
+	if (log.isLoggable(Level.FINE)) {
+	  log.fine("Setting server time diff to " + timeDiff + " ms (+/- "
+		   + serverClock.getError() + " ms, rtt "
+		   + msg.getResponseTime() + " ms, drift "
+		   + (long) (serverClock.getDrift() * 1000000) + " ppm)");
+	}
+	scheduleServerTime();
+      }
+    }
+  }
+
+  // Schedules the next server time sample. The first samples are
+  // taken directly after login to quickly narrow the estimate.
+  private void scheduleServerTime() {
+    long delay = serverClock.getSampleCount() < CLOCK_INITIAL_SAMPLES
+      ? 0 : CLOCK_SYNC_PERIOD;
+    long time = serverClock.getNextSampleTime(getServerTime() + delay);
+    TimeDispatcher d = TimeDispatcher.getDefault();
+    d.cancelTask("serverTime", gameTask);
+    d.addTask(time, "serverTime", connection, gameTask);
+  }
+
+  private long getNextHotelCloseTime(long serverTime) {
+    if (playingGame < 0 || serverTime < startTime) {
+      return -1L;
+    }
+    long minutes = (serverTime - startTime) / HOTEL_CLOSE_PERIOD + 1;
+    long closeTime = startTime + minutes * HOTEL_CLOSE_PERIOD;
+    return closeTime < startTime + gameLength ? closeTime : -1L;
+  }
+
+  // Schedules the final bids for the first predicted hotel close that
+  // is more than the lead time after the specified time
+  private void scheduleFinalBids(long serverTime) {
+    long leadTime;
+    synchronized (gameTask) {
+      if (finalBidCallback == null) {
+	return;
+      }
+      leadTime = finalBidLeadTime;
+    }
+    long closeTime = getNextHotelCloseTime(serverTime + leadTime);
+    if (closeTime > 0) {
+      TimeDispatcher.getDefault().addTask(closeTime - leadTime, "finalBids",
+					  Long.valueOf(closeTime), gameTask);
+    }
+  }
+
+  private void performFinalBids(long closeTime) {
+    FinalBidCallback callback = finalBidCallback;
+    if (callback == null || !isGameStarted) {
+      return;
+    }
+    long latency = getBidLatency();
+    finalBidDeadline = closeTime;
+    finalBidStart = getServerTime();
+    for (int i = MIN_HOTEL; i <= MAX_HOTEL; i++) {
+      Quote quote = quotes[i];
+      if (!quote.isAuctionClosed()) {
+	long serverTime = getServerTime();
+	long budget = closeTime - serverTime - latency;
+	// The quote is from before the last close if the server has not
+	// yet sent the updated quote
+	boolean isStale = quote.getNextQuoteTime() <= serverTime;
+	if (isStale) {
+	  requestQuote(quote, connection, false);
+	}
+	if (budget <= 0) {
+	  finalBidMisses++;
+	  log.warning("no time left for final bid in auction " + i + " ("
+		      + getAuctionTypeAsString(i) + ')');
+	} else {
+	  try {
+	    callbacks.finalBid(callback, quote, isStale, budget);
+	  } catch (Exception e) {
+	    log.log(Level.SEVERE, "agent could not handle finalBid for "
+		    + quote, e);
+	  }
+	}
+      }
+    }
+  }
+
+  // Returns the estimated time in milliseconds for a bid to reach the
+  // server, including the server clock error
+  private long getBidLatency() {
+    long rtt = 0L;
+    LatencyHistogram h = LatencyStats.getHistogram("replaceBid");
+    if (h.getCount() > 0) {
+      rtt = h.getPercentile(0.9) / 1000;
+    }
+    h = LatencyStats.getHistogram("submitBid");
+    if (h.getCount() > 0 && h.getPercentile(0.9) / 1000 > rtt) {
+      rtt = h.getPercentile(0.9) / 1000;
+    }
+    if (rtt == 0L) {
+      rtt = serverClock.getRoundTripTime();
+    }
+    long error = serverClock.getError();
+    return (rtt > 0 ? rtt / 2 : 0)
+      + (error != Long.MAX_VALUE ? error : 0);
+  }
+
+  // Counts hotel bids sent during the final bids that did not reach
+  // the server before the predicted close
+  private void checkFinalBid(TACMessage msg, Bid bid, int status) {
+    long deadline = finalBidDeadline;
+    if (deadline > 0 && getAuctionCategory(bid.getAuction()) == CAT_HOTEL) {
+      long sent = msg.getTimeSent() - timeDiff;
+      if (sent >= finalBidStart && sent <= deadline) {
+	long arrival = sent + msg.getResponseTime() / 2;
+	if (status == AUCTION_CLOSED || arrival > deadline) {
+	  finalBidMisses++;
+	  log.warning("final bid in auction " + bid.getAuction()
+		      + " reached the server " + (arrival - deadline)
+		      + " ms after the predicted close");
+	}
       }
     }
   }
@@ -2029,6 +2946,28 @@ public class TACAgent implements Task, TACMessageReceiver {
   //
   // -------------------------------------------------------------------
 
+  private static class TransactionRound {
+    public final int[] actions;
+    public final int count;
+    public long sentTime;
+    public boolean idsReceived = false;
+    public int requiredInfos;
+    // Futures completed with the round (or null)
+    public ArrayList futures;
+
+    public TransactionRound(int[] actions, int count) {
+      this.actions = actions;
+      this.count = count;
+    }
+
+    public void addFuture(TACFuture future) {
+      if (futures == null) {
+	futures = new ArrayList();
+      }
+      futures.add(future);
+    }
+  }
+
   private class AgentTableModel extends AbstractTableModel {
 
     private final String[] columnName = new String[] {
@@ -2061,12 +3000,12 @@ public class TACAgent implements Task, TACMessageReceiver {
       case 4:
 	return quotes[row].getAuctionStatusAsString();
       case 5:
-	Bid bd = bids[row];
+	Bid bd = bids.get(row);
 	return (bd != null)
 	  ? bd.getProcessingStateAsString()
 	  : "no bid";
       case 6:
-	Bid bid = bids[row];
+	Bid bid = bids.get(row);
 	if (bid != null) {
 	  return bid.getBidString();
 	}
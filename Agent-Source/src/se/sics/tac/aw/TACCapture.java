@@ -0,0 +1,138 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TACCapture
+ *
+ * Purpose :
+ *   Records all messages sent and received by a connection to an
+ *   append-only binary capture file (see TACReplayConnection).
+ *
+ *   The file starts with the 8 byte header "TACCAP1\n" followed by
+ *   records of the form
+ *
+ *     byte  kind      (START, SENT or RECEIVED)
+ *     int   sequence  (pairs a received message with its request)
+ *     long  time      (nanoseconds since START or, for START, the
+ *                      local time in milliseconds)
+ *     int   length    (number of bytes in the message)
+ *     byte* message   (UTF-8 without the terminating '\0')
+ *
+ *   Each connection starts a new session with a START record.
+ */
+
+package se.sics.tac.aw;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+final class TACCapture {
+
+  private static final Logger log =
+    Logger.getLogger(TACCapture.class.getName());
+
+  static final byte[] HEADER = {
+    'T', 'A', 'C', 'C', 'A', 'P', '1', '\n'
+  };
+
+  static final int START = 0;
+  static final int SENT = 1;
+  static final int RECEIVED = 2;
+
+  /** Maximal time between flushes of the capture file (milliseconds) */
+  private static final long FLUSH_INTERVAL = 1000;
+
+  private final String fileName;
+  private DataOutputStream out;
+  private final long startTime;
+  private int nextSequence = 1;
+  private long lastFlush;
+
+  TACCapture(String fileName) throws IOException {
+    File file = new File(fileName);
+    boolean isNew = !file.exists() || file.length() == 0;
+    this.fileName = fileName;
+    this.out = new DataOutputStream
+      (new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+    if (isNew) {
+      out.write(HEADER);
+    }
+    this.startTime = System.nanoTime();
+    this.lastFlush = System.currentTimeMillis();
+    write(START, 0, lastFlush, null);
+    out.flush();
+  }
+
+  synchronized void sent(TACMessage msg) {
+    if (out != null) {
+      int sequence = nextSequence++;
+      msg.setSequence(sequence);
+      write(SENT, sequence, System.nanoTime() - startTime,
+	    msg.getSentMessage());
+    }
+  }
+
+  synchronized void received(TACMessage msg) {
+    if (out != null) {
+      write(RECEIVED, msg.getSequence(), System.nanoTime() - startTime,
+	    msg.getReceivedMessage());
+    }
+  }
+
+  synchronized void close() {
+    if (out != null) {
+      try {
+	out.close();
+      } catch (IOException e) {
+	log.log(Level.WARNING, "could not close capture file " + fileName, e);
+      } finally {
+	out = null;
+      }
+    }
+  }
+
+  private void write(int kind, int sequence, long time, String message) {
+    try {
+      byte[] data = message == null ? null : message.getBytes("UTF-8");
+      out.writeByte(kind);
+      out.writeInt(sequence);
+      out.writeLong(time);
+      if (data == null) {
+	out.writeInt(0);
+      } else {
+	out.writeInt(data.length);
+	out.write(data);
+      }
+
+      long now = System.currentTimeMillis();
+      if (now - lastFlush > FLUSH_INTERVAL) {
+	lastFlush = now;
+	out.flush();
+      }
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "could not write to capture file " + fileName
+	      + " (capture stopped)", e);
+      close();
+    }
+  }
+
+} // TACCapture
@@ -25,13 +25,49 @@
 
 package se.sics.tac.aw;
 import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public abstract class TACConnection {
 
+  private static final Logger log =
+    Logger.getLogger(TACConnection.class.getName());
+
+  private static final int DEFAULT_MAX_PENDING = 8;
+
   protected TACAgent agent;
 
+  /**
+   * The maximal number of requests waiting for replies before quote
+   * and bid info requests are held back in the connection. Requests
+   * that are held back can be overtaken by more urgent messages such
+   * as bids. Set by "maxPendingRequests" in the configuration file.
+   */
+  protected int maxPendingRequests = DEFAULT_MAX_PENDING;
+
+  // Records all messages when "captureFile" is set in the configuration
+  private TACCapture capture;
+
+  // The thread currently batching messages and its nesting depth
+  private Thread batchThread;
+  private int batchDepth = 0;
+
   final void init(TACAgent agent) {
     this.agent = agent;
+    this.maxPendingRequests =
+      agent.getConnectionConfig("maxPendingRequests", DEFAULT_MAX_PENDING);
+    if (maxPendingRequests < 1) {
+      maxPendingRequests = 1;
+    }
+    String captureFile = agent.getConnectionConfig("captureFile", null);
+    if (captureFile != null) {
+      try {
+	capture = new TACCapture(captureFile);
+	log.fine("Capturing messages to " + captureFile);
+      } catch (IOException e) {
+	log.log(Level.SEVERE, "could not open capture file " + captureFile, e);
+      }
+    }
     init();
   }
 
@@ -45,4 +81,96 @@ public abstract class TACConnection {
     msg.setMessageReceiver(rcv);
     sendMessage(msg);
   }
+
+  /**
+   * Starts a batch of messages. Messages sent by the calling thread
+   * are buffered until the matching call to endBatch() and then
+   * written to the server at once. Messages sent by other threads are
+   * never delayed (they will flush any buffered messages). Batches
+   * can be nested.
+   */
+  public synchronized void beginBatch() {
+    Thread thread = Thread.currentThread();
+    if (batchDepth == 0) {
+      batchThread = thread;
+      batchDepth = 1;
+    } else if (batchThread == thread) {
+      batchDepth++;
+    }
+  }
+
+  public void endBatch() {
+    synchronized (this) {
+      if (batchDepth == 0 || batchThread != Thread.currentThread()
+	  || --batchDepth > 0) {
+	return;
+      }
+      batchThread = null;
+    }
+    try {
+      flushBatch();
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "could not send batched messages", e);
+      agent.reset(0, this);
+    }
+  }
+
+  /**
+   * Returns <code>true</code> if messages sent by the calling thread
+   * should be buffered until the end of the current batch.
+   */
+  protected synchronized boolean isBatching() {
+    return batchDepth > 0 && batchThread == Thread.currentThread();
+  }
+
+  /**
+   * Records a message that has been written to the server. Should be
+   * called by the connection handlers in the order the messages are
+   * sent.
+   */
+  protected final void captureSent(TACMessage msg) {
+    TACCapture capture = this.capture;
+    if (capture != null) {
+      capture.sent(msg);
+    }
+  }
+
+  /**
+   * Records the reply to a message. Should be called by the connection
+   * handlers directly when the reply has been received.
+   */
+  protected final void captureReceived(TACMessage msg) {
+    TACCapture capture = this.capture;
+    if (capture != null) {
+      capture.received(msg);
+    }
+  }
+
+  /**
+   * Delivers a received reply to its receiver, either directly in the
+   * calling thread or through the event loop of the agent if the
+   * agent uses one. Should be called by the connection handlers
+   * instead of TACMessage.deliverMessage().
+   */
+  protected final void deliverMessage(TACMessage msg) {
+    agent.deliverMessage(msg);
+  }
+
+  /**
+   * Closes the capture file. Should be called when disconnecting.
+   */
+  protected final void closeCapture() {
+    TACCapture capture = this.capture;
+    if (capture != null) {
+      this.capture = null;
+      capture.close();
+    }
+  }
+
+  /**
+   * Called at the end of a batch to write any buffered messages. The
+   * default implementation does nothing.
+   */
+  protected void flushBatch() throws IOException {
+  }
 }
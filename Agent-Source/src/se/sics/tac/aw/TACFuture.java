@@ -0,0 +1,205 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TACFuture
+ *
+ * Purpose :
+ *   The result of an asynchronous request to the server (see for
+ *   example TACAgent.submitBidAsync()). The future is completed by
+ *   the thread handling the replies when the reply has arrived, or
+ *   fails with a TimeoutException if no reply has arrived before the
+ *   request timeout. Several futures can be awaited with a common
+ *   deadline using awaitAll().
+ */
+
+package se.sics.tac.aw;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TACFuture implements Future {
+
+  private final String name;
+  private boolean isDone = false;
+  private boolean isCancelled = false;
+  private Object value;
+  private Throwable failure;
+  // The task failing the future at the request timeout (scheduled with
+  // the future as key) or null
+  private Task timeoutTask;
+
+  TACFuture(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Completes the future with the specified value. Returns
+   * <code>false</code> if the future already was done.
+   */
+  boolean complete(Object value) {
+    Task task;
+    synchronized (this) {
+      if (isDone) {
+	return false;
+      }
+      this.value = value;
+      this.isDone = true;
+      notifyAll();
+      task = timeoutTask;
+      timeoutTask = null;
+    }
+    cancelTimeout(task);
+    return true;
+  }
+
+  /**
+   * Completes the future with the specified failure. Returns
+   * <code>false</code> if the future already was done.
+   */
+  boolean fail(Throwable failure) {
+    Task task;
+    synchronized (this) {
+      if (isDone) {
+	return false;
+      }
+      this.failure = failure;
+      this.isDone = true;
+      notifyAll();
+      task = timeoutTask;
+      timeoutTask = null;
+    }
+    cancelTimeout(task);
+    return true;
+  }
+
+  /**
+   * Sets the task that fails the future at the request timeout. The
+   * task must be scheduled with the future as key and is cancelled
+   * when the future is done.
+   */
+  synchronized void setTimeoutTask(Task task) {
+    this.timeoutTask = isDone ? null : task;
+  }
+
+  private void cancelTimeout(Task task) {
+    if (task != null) {
+      TimeDispatcher.getDefault().cancelTask(this, task);
+    }
+  }
+
+  /**
+   * Cancels the wait for the reply. The request itself has already
+   * been sent to the server and can not be cancelled.
+   */
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    Task task;
+    synchronized (this) {
+      if (isDone) {
+	return false;
+      }
+      isCancelled = true;
+      isDone = true;
+      notifyAll();
+      task = timeoutTask;
+      timeoutTask = null;
+    }
+    cancelTimeout(task);
+    return true;
+  }
+
+  public synchronized boolean isCancelled() {
+    return isCancelled;
+  }
+
+  public synchronized boolean isDone() {
+    return isDone;
+  }
+
+  /**
+   * Returns <code>true</code> if the future is done because the reply
+   * arrived (and not because it failed or was cancelled).
+   */
+  public synchronized boolean isCompleted() {
+    return isDone && !isCancelled && failure == null;
+  }
+
+  public synchronized Object get()
+    throws InterruptedException, ExecutionException {
+    while (!isDone) {
+      wait();
+    }
+    return getValue();
+  }
+
+  public synchronized Object get(long timeout, TimeUnit unit)
+    throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!isDone) {
+      long delay = deadline - System.nanoTime();
+      if (delay <= 0) {
+	throw new TimeoutException(name);
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, delay);
+    }
+    return getValue();
+  }
+
+  private Object getValue() throws ExecutionException {
+    if (isCancelled) {
+      throw new CancellationException(name);
+    }
+    if (failure != null) {
+      throw new ExecutionException(name, failure);
+    }
+    return value;
+  }
+
+  public String toString() {
+    return "TACFuture[" + name + ','
+      + (isDone ? (isCancelled ? "cancelled" : "done") : "pending") + ']';
+  }
+
+  /**
+   * Waits until all the specified futures are done or the timeout has
+   * passed. Returns <code>true</code> if all futures are done.
+   *
+   * @param futures the futures to wait for
+   * @param timeout the maximal time to wait in milliseconds
+   */
+  public static boolean awaitAll(TACFuture[] futures, long timeout)
+    throws InterruptedException {
+    long deadline = System.nanoTime() + timeout * 1000000L;
+    for (int i = 0, n = futures.length; i < n; i++) {
+      TACFuture future = futures[i];
+      synchronized (future) {
+	while (!future.isDone) {
+	  long delay = deadline - System.nanoTime();
+	  if (delay <= 0) {
+	    return false;
+	  }
+	  TimeUnit.NANOSECONDS.timedWait(future, delay);
+	}
+      }
+    }
+    return true;
+  }
+
+} // TACFuture
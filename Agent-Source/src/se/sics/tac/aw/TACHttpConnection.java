@@ -26,29 +26,73 @@
  *
  * TACHttpConnection
  * A connection class for connections to the server via HTTP
+ *
+ * Messages are posted over persistent (keep-alive) HTTP connections by
+ * a number of sender threads, allowing several requests to be in
+ * flight at the same time. The number of senders is set by
+ * "httpRequests" in the configuration file (default 4). Waiting
+ * requests are sent most urgent first (see TACMessage.getPriority())
+ * and one sender is kept free from quote and bid info requests so
+ * that bids never wait behind them. Replies are delivered to the agent
+ * by a separate dispatcher thread in the same order as the messages
+ * were sent.
  */
 
 package se.sics.tac.aw;
-import java.io.*;
-import java.net.*;
-import java.util.ArrayList;
-import java.util.logging.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.botbox.util.ArrayQueue;
 
 public class TACHttpConnection extends TACConnection implements Runnable {
 
   private static final Logger log =
     Logger.getLogger(TACHttpConnection.class.getName());
 
-  private URL url;
-  private ArrayList queue = new ArrayList();
+  private static final int DEFAULT_REQUESTS = 4;
+  private static final int BUFFER_SIZE = 8192;
+
+  private String host;
+  private int port;
+  private byte[] requestHeader;
+
+  // Requests waiting to be sent
+  private TACMessageQueue queue = new TACMessageQueue();
+  // Requests waiting to be delivered (in the order they were sent)
+  private ArrayQueue deliveryQueue = new ArrayQueue();
+  private int senders;
+  private int activeSenders = 0;
   private boolean disconnected = false;
 
   protected void init() {
     try {
-      url = new URL("http://" + agent.getHost() + ':' + agent.getPort() +
-		    '/' + agent.getUser() + '/' + agent.getPassword());
-      log.fine("Using HTTP TAC server at " + url);
-      new Thread(this).start();
+      host = agent.getHost();
+      port = agent.getPort();
+      requestHeader = ("POST /" + agent.getUser() + '/' + agent.getPassword()
+		       + " HTTP/1.1\r\n"
+		       + "Host: " + host + ':' + port + "\r\n"
+		       + "Connection: keep-alive\r\n"
+		       + "Content-Length: ").getBytes("US-ASCII");
+      int requests = agent.getConnectionConfig("httpRequests",
+					       DEFAULT_REQUESTS);
+      if (requests < 1) {
+	requests = 1;
+      }
+      senders = requests;
+      log.fine("Using HTTP TAC server at http://" + host + ':' + port
+	       + " with " + requests + " concurrent requests");
+      for (int i = 0; i < requests; i++) {
+	new Thread(new HttpSender(), "http-sender-" + i).start();
+      }
+      new Thread(this, "http-dispatcher").start();
 
       TACMessage msg = new TACMessage("auth");
       msg.setParameter("userName", agent.getUser());
@@ -64,93 +108,307 @@ public class TACHttpConnection extends TACConnection implements Runnable {
     return !disconnected;
   }
 
-  public void disconnect() {
+  public synchronized void disconnect() {
     disconnected = true;
+    closeCapture();
+    notifyAll();
   }
 
+  // The dispatcher: delivers the replies in the order the messages
+  // were sent so that slow agent callbacks never block the senders
   public void run() {
-    while (true) {
-      TACMessage msg = getMessage();
-      boolean sent;
-      for (int errors = 0; !(sent = sendMsg(msg)) && errors < 3; errors++) {
-	log.warning("failed to send message " + msg.getType()
-		    + " (retry " + (errors + 1) + ')');
-	try {
-	  Thread.sleep(1000);
-	} catch (Exception e) {
-	  e.printStackTrace();
-	}
-      }
-      if (!sent) {
-	agent.fatalError("could not send message " + msg.getType()
+    Request request;
+    while ((request = nextDelivery()) != null) {
+      if (request.isFailed) {
+	agent.fatalError("could not send message " + request.msg.getType()
 			 + " to server");
+      } else {
+	deliverMessage(request.msg);
       }
     }
   }
 
-  private synchronized TACMessage getMessage() {
-    while (queue.isEmpty()) {
+  private synchronized Request nextDelivery() {
+    while (!disconnected) {
+      if (!deliveryQueue.isEmpty()
+	  && ((Request) deliveryQueue.get(0)).isDone) {
+	return (Request) deliveryQueue.remove(0);
+      }
       try {
 	wait();
-      } catch (Exception e) {
+      } catch (InterruptedException e) {
+	e.printStackTrace();
+      }
+    }
+    return null;
+  }
+
+  private synchronized Request getRequest() {
+    while (!disconnected) {
+      int priority = queue.getNextPriority();
+      if (priority >= 0
+	  && (priority < TACMessage.PRIORITY_QUOTE
+	      || activeSenders < senders - 1 || senders == 1)) {
+	Request request = (Request) queue.remove();
+	deliveryQueue.add(request);
+	activeSenders++;
+	return request;
+      }
+      try {
+	wait();
+      } catch (InterruptedException e) {
 	e.printStackTrace();
       }
     }
-    return (TACMessage) queue.remove(0);
+    return null;
   }
 
-  private synchronized void addMessage(TACMessage msg) {
-    queue.add(msg);
-    notify();
+  private synchronized void requestDone(Request request, boolean sent) {
+    request.isDone = true;
+    request.isFailed = !sent;
+    activeSenders--;
+    notifyAll();
   }
 
-  public void sendMessage(TACMessage msg) throws IOException {
+  public synchronized void sendMessage(TACMessage msg) throws IOException {
     if (disconnected) {
       throw new IOException("Disconnected from server");
     }
-    addMessage(msg);
+    queue.add(new Request(msg), msg.getPriority());
+    notifyAll();
   }
 
-  private boolean sendMsg(TACMessage msg) {
-    try {
-      String msgStr = msg.getMessageString();
-      URLConnection conn = url.openConnection();
-      conn.setRequestProperty("Content-Length", "" + msgStr.length());
-      conn.setDoOutput(true);
-      OutputStream output = conn.getOutputStream();
-      output.write(msgStr.getBytes());
-      output.flush();
-
-      InputStream input = conn.getInputStream();
-      int len = conn.getContentLength();
+
+  // -------------------------------------------------------------------
+  // Request handling
+  // -------------------------------------------------------------------
+
+  private static class Request {
+    public final TACMessage msg;
+    public boolean isDone = false;
+    public boolean isFailed = false;
+
+    public Request(TACMessage msg) {
+      this.msg = msg;
+    }
+  }
+
+  // Sends requests over a persistent HTTP/1.1 connection
+  private class HttpSender implements Runnable {
+
+    private Socket socket;
+    private InputStream input;
+    private OutputStream output;
+    private byte[] content = new byte[BUFFER_SIZE];
+    private ByteBuffer body = ByteBuffer.allocate(1024);
+    private StringBuffer line = new StringBuffer();
+    // True if the last message was sent on a kept-alive connection
+    private boolean isReused;
+
+    public void run() {
+      Request request;
+      while ((request = getRequest()) != null) {
+	TACMessage msg = request.msg;
+	boolean sent;
+	for (int errors = 0; !(sent = sendMsg(msg)) && errors < 3; errors++) {
+	  log.warning("failed to send message " + msg.getType()
+		      + " (retry " + (errors + 1) + ')');
+	  // A kept-alive connection might have been closed by the server
+	  // and is retried at once on a new connection
+	  if (!isReused) {
+	    try {
+	      Thread.sleep(1000);
+	    } catch (Exception e) {
+	      e.printStackTrace();
+	    }
+	  }
+	}
+	requestDone(request, sent);
+      }
+      close();
+    }
+
+    private boolean sendMsg(TACMessage msg) {
+      isReused = socket != null;
+      try {
+	if (socket == null) {
+	  socket = new Socket(host, port);
+	  socket.setTcpNoDelay(true);
+	  input = new BufferedInputStream(socket.getInputStream());
+	  output = new BufferedOutputStream(socket.getOutputStream());
+	}
+
+	ByteBuffer body = this.body;
+	body.clear();
+	while (true) {
+	  try {
+	    msg.writeMessage(body);
+	    break;
+	  } catch (BufferOverflowException e) {
+	    this.body = body = ByteBuffer.allocate(body.capacity() * 2);
+	  }
+	}
+	output.write(requestHeader);
+	writeASCII(Integer.toString(body.position()));
+	writeASCII("\r\n\r\n");
+	output.write(body.array(), 0, body.position());
+	output.flush();
+	captureSent(msg);
+
+	int len = readResponse(msg);
+	if (len < 0) {
+	  close();
+	  return false;
+	}
+	msg.setReceivedMessage(content, 0, len);
+	captureReceived(msg);
+	return true;
+      } catch (Exception e) {
+	log.log(Level.SEVERE, "could not send message", e);
+	close();
+	return false;
+      }
+    }
+
+    // Reads the response into the content buffer and returns its
+    // length or -1 if the response could not be read
+    private int readResponse(TACMessage msg) throws IOException {
+      String status = readLine();
+      if (status == null || !status.startsWith("HTTP/")) {
+	log.severe("malformed response for " + msg.getType() + ": "
+		   + status);
+	return -1;
+      }
+      int code = status.indexOf(' ');
+      if (code < 0 || !status.startsWith("200", code + 1)) {
+	log.severe("server returned '" + status + "' for " + msg.getType());
+	return -1;
+      }
+
+      int contentLength = -1;
+      boolean isChunked = false;
+      boolean isClosing = status.startsWith("HTTP/1.0");
+      String header;
+      while ((header = readLine()) != null && header.length() > 0) {
+	int index = header.indexOf(':');
+	if (index > 0) {
+	  String name = header.substring(0, index).trim();
+	  String value = header.substring(index + 1).trim();
+	  if ("Content-Length".equalsIgnoreCase(name)) {
+	    contentLength = Integer.parseInt(value);
+	  } else if ("Transfer-Encoding".equalsIgnoreCase(name)) {
+	    isChunked = "chunked".equalsIgnoreCase(value);
+	  } else if ("Connection".equalsIgnoreCase(name)) {
+	    isClosing = "close".equalsIgnoreCase(value);
+	  }
+	}
+      }
+
+      int len;
+      if (isChunked) {
+	len = 0;
+	int chunkLength;
+	while ((chunkLength = readChunkLength()) != 0) {
+	  // No chunk length means the connection was closed
+	  if (chunkLength < 0 || !readContent(len, chunkLength)) {
+	    return truncated(msg);
+	  }
+	  len += chunkLength;
+	  readLine();
+	}
+	// Skip trailers
+	while ((header = readLine()) != null && header.length() > 0);
+      } else if (contentLength >= 0) {
+	if (!readContent(0, contentLength)) {
+	  return truncated(msg);
+	}
+	len = contentLength;
+      } else {
+	// Content ends when the server closes the connection
+	len = 0;
+	int read;
+	do {
+	  ensureCapacity(len + BUFFER_SIZE);
+	  read = input.read(content, len, content.length - len);
+	  if (read > 0) {
+	    len += read;
+	  }
+	} while (read >= 0);
+	isClosing = true;
+      }
+      if (isClosing) {
+	close();
+      }
+      return len;
+    }
+
+    private int truncated(TACMessage msg) {
+      // Connection closed from other end
+      log.severe("truncated message response for " + msg.getType());
+      return -1;
+    }
+
+    private boolean readContent(int offset, int length) throws IOException {
+      ensureCapacity(offset + length);
       int totalRead = 0;
       int read;
-      byte[] content = new byte[len];
-      while ((len > totalRead)
-	     && (read = input.read(content, totalRead, len - totalRead)) > 0) {
+      while ((length > totalRead)
+	     && (read = input.read(content, offset + totalRead,
+				   length - totalRead)) > 0) {
 	totalRead += read;
       }
-      output.close();
-      input.close();
+      return totalRead == length;
+    }
 
-      if (len < totalRead) {
-	// Connection closed from other end
-	log.severe("truncated message response for " + msg.getType());
-	return false;
+    private int readChunkLength() throws IOException {
+      String size = readLine();
+      if (size == null) {
+	return -1;
+      }
+      int index = size.indexOf(';');
+      return Integer.parseInt((index >= 0 ? size.substring(0, index) : size)
+			      .trim(), 16);
+    }
 
-      } else {
-	msgStr = new String(content);
-	msg.setReceivedMessage(msgStr);
+    private void ensureCapacity(int capacity) {
+      if (content.length < capacity) {
+	byte[] tmp = new byte[capacity + BUFFER_SIZE];
+	System.arraycopy(content, 0, tmp, 0, content.length);
+	content = tmp;
+      }
+    }
 
-	// Should be delivered by a dispatcher!!!
+    private String readLine() throws IOException {
+      line.setLength(0);
+      int c;
+      while ((c = input.read()) >= 0 && c != '\n') {
+	if (c != '\r') {
+	  line.append((char) c);
+	}
+      }
+      return (c < 0 && line.length() == 0) ? null : line.toString();
+    }
 
-	msg.deliverMessage();
+    private void writeASCII(String text) throws IOException {
+      for (int i = 0, n = text.length(); i < n; i++) {
+	output.write(text.charAt(i));
       }
-      return true;
-    } catch (Exception e) {
-      log.log(Level.SEVERE, "could not send message", e);
-      return false;
     }
-  }
+
+    private void close() {
+      if (socket != null) {
+	try {
+	  socket.close();
+	} catch (Exception e) {
+	  log.log(Level.WARNING, "could not close HTTP connection", e);
+	} finally {
+	  socket = null;
+	  input = null;
+	  output = null;
+	}
+      }
+    }
+
+  } // HttpSender
 
 } // TACHttpConnection
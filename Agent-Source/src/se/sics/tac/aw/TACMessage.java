@@ -24,6 +24,9 @@
  */
 
 package se.sics.tac.aw;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -33,27 +36,208 @@ public class TACMessage {
   private static final Logger log =
     Logger.getLogger(TACMessage.class.getName());
 
-  private static long msgCount = 0;
-  private static long totalResponseTime = 0;
+  /** The TAC protocol is plain ASCII. ISO-8859-1 maps each byte to one
+   * char and is decoded without a charset lookup or error handling. */
+  private static final Charset PROTOCOL_CHARSET = StandardCharsets.ISO_8859_1;
+
+  /** Priority classes for outgoing messages (lower is more urgent) */
+  public final static int PRIORITY_BID = 0;
+  public final static int PRIORITY_TRANSACTION = 1;
+  public final static int PRIORITY_CONTROL = 2;
+  public final static int PRIORITY_QUOTE = 3;
+  public final static int PRIORITY_BID_INFO = 4;
+  public final static int PRIORITY_LEVELS = 5;
+
+  /** Ids for the tags used by the TAC server (see getTagID()) */
+  public final static int TAG_UNKNOWN = 0;
+  public final static int TAG_AUTH = 1;
+  public final static int TAG_USER_ID = 2;
+  public final static int TAG_COMMAND_STATUS = 3;
+  public final static int TAG_TACERROR = 4;
+  public final static int TAG_QUIT = 5;
+  public final static int TAG_SERVER_TIME = 6;
+  public final static int TAG_TIME = 7;
+  public final static int TAG_NEXT_GAME = 8;
+  public final static int TAG_GAME_ID = 9;
+  public final static int TAG_START_TIME = 10;
+  public final static int TAG_GET_GAME_PARAMS = 11;
+  public final static int TAG_CLIENT_PREFERENCES = 12;
+  public final static int TAG_CLIENT_PREF_TUPLE = 13;
+  public final static int TAG_CLIENT = 14;
+  public final static int TAG_ARRIVAL = 15;
+  public final static int TAG_DEPARTURE = 16;
+  public final static int TAG_HOTEL = 17;
+  public final static int TAG_TICKET_PREFERENCES = 18;
+  public final static int TAG_TYPE_PRICE_TUPLE = 19;
+  public final static int TAG_TYPE = 20;
+  public final static int TAG_PRICE = 21;
+  public final static int TAG_TICKET_ENDOWMENTS = 22;
+  public final static int TAG_TICKET_ENDOWMENT_TUPLE = 23;
+  public final static int TAG_DAY = 24;
+  public final static int TAG_QUANTITY = 25;
+  public final static int TAG_GET_GAME_AUCTION_IDS = 26;
+  public final static int TAG_AUCTION_IDS = 27;
+  public final static int TAG_TAC_AUCTION_TUPLE = 28;
+  public final static int TAG_CATEGORY = 29;
+  public final static int TAG_ID = 30;
+  public final static int TAG_GET_GAME_CONSTS = 31;
+  public final static int TAG_GAME_LENGTH = 32;
+  public final static int TAG_GAME_TYPE = 33;
+  public final static int TAG_SUBMIT_BID = 34;
+  public final static int TAG_REPLACE_BID = 35;
+  public final static int TAG_BID_ID = 36;
+  public final static int TAG_BID_HASH = 37;
+  public final static int TAG_BID_STRING = 38;
+  public final static int TAG_REJECT_REASON = 39;
+  public final static int TAG_GET_QUOTE = 40;
+  public final static int TAG_LAST_ASK_PRICE = 41;
+  public final static int TAG_LAST_BID_PRICE = 42;
+  public final static int TAG_HQW = 43;
+  public final static int TAG_AUCTION_STATUS = 44;
+  public final static int TAG_NEXT_QUOTE_TIME = 45;
+  public final static int TAG_BID_INFO = 46;
+  public final static int TAG_PROCESSING_STATE = 47;
+  public final static int TAG_TIME_CLOSED = 48;
+  public final static int TAG_TIME_PROCESSED = 49;
+  public final static int TAG_TRANS_IDS = 50;
+  public final static int TAG_TRANS_ID = 51;
+  public final static int TAG_TRANS_INFO = 52;
+  public final static int TAG_AUCTION_ID = 53;
+  public final static int TAG_RECOVER_BID_IDS = 54;
+  public final static int TAG_AUCTION_BID_IDS_TUPLE = 55;
+
+  private final static String[] tagNames = {
+    null,
+    "auth",
+    "userID",
+    "commandStatus",
+    "tacerror",
+    "quit",
+    "serverTime",
+    "time",
+    "nextGame",
+    "gameID",
+    "startTime",
+    "getGameParams",
+    "clientPreferences",
+    "clientPrefTuple",
+    "client",
+    "arrival",
+    "departure",
+    "hotel",
+    "ticketPreferences",
+    "typePriceTuple",
+    "type",
+    "price",
+    "ticketEndowments",
+    "ticketEndowmentTuple",
+    "day",
+    "quantity",
+    "getGameAuctionIDs",
+    "auctionIDs",
+    "TACAuctionTuple",
+    "category",
+    "ID",
+    "getGameConsts",
+    "gameLength",
+    "gameType",
+    "submitBid",
+    "replaceBid",
+    "bidID",
+    "bidHash",
+    "bidString",
+    "rejectReason",
+    "getQuote",
+    "lastAskPrice",
+    "lastBidPrice",
+    "hypotheticalQuantityWon",
+    "auctionStatus",
+    "nextQuoteTime",
+    "bidInfo",
+    "processingState",
+    "timeClosed",
+    "timeProcessed",
+    "transIDs",
+    "transID",
+    "transInfo",
+    "auctionID",
+    "recoverBidIDs",
+    "auctionBidIDsTuple"
+  };
+
+  // Open addressing hash table from tag name to tag id
+  private final static int TAG_MASK = 0xff;
+  private final static int[] tagTable = new int[TAG_MASK + 1];
+
+  static {
+    for (int id = 1, n = tagNames.length; id < n; id++) {
+      int i = tagNames[id].hashCode() & TAG_MASK;
+      while (tagTable[i] != 0) {
+	i = (i + 1) & TAG_MASK;
+      }
+      tagTable[i] = id;
+    }
+  }
+
+  private final static double[] POWERS_OF_TEN = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+    1e13, 1e14, 1e15
+  };
+
+  // Marker for illegal numbers when parsing
+  private final static long NaN = Long.MIN_VALUE;
+
 
   private final String type;
   private ArrayList msg;
 
+  // Parameter values for messages created from templates
+  private final TACMessageTemplate template;
+  private int[] intValues;
+  private String[] stringValues;
+
   private String sentMessage;
   private long timeSent;
+  private long nanoSent;
   private String receivedMessage;
+  // Parser state: start of the current tag name, position of the '>'
+  // ending the tag, position of the '<' ending the value, and the
+  // tag id (-1 if not yet looked up)
   private int pos = 0;
+  private int tagEnd = -1;
+  private int valueEnd = -1;
+  private int tagID = -1;
   private long responseTime;
   private boolean isTACError = false;
 
   private TACMessageReceiver receiver;
   private Object userData;
+  private int priority;
+  // Index of the response time histogram for this message type
+  private final int latencyIndex;
+  // Sequence number in the capture file (if captured)
+  private int sequence;
 
   public TACMessage(String type) {
     this.type = type;
+    this.template = null;
+    this.priority = getDefaultPriority(type);
+    this.latencyIndex = LatencyStats.getIndex(type);
     msg = new ArrayList();
   }
 
+  // Creates a message with the fixed set of parameters specified by
+  // the template. Parameters that have not been set are sent as 0.
+  TACMessage(TACMessageTemplate template) {
+    this.type = template.getType();
+    this.template = template;
+    this.priority = getDefaultPriority(type);
+    this.latencyIndex = LatencyStats.getIndex(type);
+    int n = template.getParameterCount();
+    intValues = new int[n];
+    stringValues = new String[n];
+  }
+
   public String getType() {
     return type;
   }
@@ -62,6 +246,35 @@ public class TACMessage {
     return isTACError;
   }
 
+  /**
+   * Returns the priority class of this message. Connections always
+   * send queued messages with higher priority (lower value) first.
+   */
+  public int getPriority() {
+    return priority;
+  }
+
+  public void setPriority(int priority) {
+    if (priority < 0 || priority >= PRIORITY_LEVELS) {
+      throw new IllegalArgumentException("illegal priority: " + priority);
+    }
+    this.priority = priority;
+  }
+
+  private static int getDefaultPriority(String type) {
+    if ("submitBid".equals(type) || "replaceBid".equals(type)) {
+      return PRIORITY_BID;
+    } else if ("transIDs".equals(type) || "transInfo".equals(type)) {
+      return PRIORITY_TRANSACTION;
+    } else if ("getQuote".equals(type)) {
+      return PRIORITY_QUOTE;
+    } else if ("bidInfo".equals(type)) {
+      return PRIORITY_BID_INFO;
+    } else {
+      return PRIORITY_CONTROL;
+    }
+  }
+
   void setUserData(Object obj) {
     userData = obj;
   }
@@ -93,6 +306,35 @@ public class TACMessage {
     return responseTime;
   }
 
+  // Returns the local time when this message was sent or 0 if it has
+  // not been sent
+  public long getTimeSent() {
+    return timeSent;
+  }
+
+  // Used by connections that find message frames directly in their
+  // (reused) read buffers. The frame is decoded once into a string
+  // instead of being parsed in place: the read buffer is overwritten
+  // by the next frame while the reply is still waiting to be handled
+  // by the agent thread, and the reply text is also kept for
+  // getReceivedMessage(), capture and logging. The parser reads the tag
+  // values from that string without copying the whole frame again.
+  void setReceivedMessage(byte[] buffer, int offset, int length) {
+    setReceivedMessage(new String(buffer, offset, length, PROTOCOL_CHARSET));
+  }
+
+  int getSequence() {
+    return sequence;
+  }
+
+  void setSequence(int sequence) {
+    this.sequence = sequence;
+  }
+
+  String getReceivedMessage() {
+    return receivedMessage;
+  }
+
   void setReceivedMessage(String receivedMessage) {
     if (this.receivedMessage != null) {
       throw new IllegalStateException("Message alredy received: " +
@@ -100,10 +342,10 @@ public class TACMessage {
     }
     if (timeSent > 0) {
       responseTime = System.currentTimeMillis() - timeSent;
+      LatencyStats.record(latencyIndex,
+			  (System.nanoTime() - nanoSent) / 1000);
     }
     this.receivedMessage = receivedMessage;
-    totalResponseTime += responseTime;
-    msgCount++;
 
     // Check if extra information should be displayed
     if ("getQuote".equals(type)) {
@@ -128,16 +370,18 @@ public class TACMessage {
       }
     }
 
-    log.finest("XML out: '" + sentMessage + '\'');
-    log.finest("XML in: '" + receivedMessage + "' responseTime: " +
-	       getResponseTime() + " avg: " +
-	       getAverageResponseTime() + " count: " +
-	       getMessageCount());
+    if (log.isLoggable(Level.FINEST)) {
+      log.finest("XML out: '" + getSentMessage() + '\'');
+      log.finest("XML in: '" + receivedMessage + "' responseTime: " +
+		 getResponseTime() + " avg: " +
+		 getAverageResponseTime() + " count: " +
+		 getMessageCount());
+    }
 
-    pos = 0;
+    resetParser();
     if (nextTag() && (!isDeclaration() || nextTag())) {
       if (isTag(type)) {
-	pos = 0;
+	resetParser();
       } else if (isTag("tacerror")) {
 	isTACError = true;
       } else {
@@ -151,24 +395,60 @@ public class TACMessage {
   }
 
   public void setParameter(String name, String value) {
-    msg.add(name);
-    msg.add(value);
-    sentMessage = null;
+    if (template != null) {
+      setParameter(getParameterIndex(name), value);
+    } else {
+      msg.add(name);
+      msg.add(value);
+      sentMessage = null;
+    }
   }
 
   public void setParameter(String name, int value) {
-    msg.add(name);
-    msg.add(Integer.toString(value));
-    sentMessage = null;
+    if (template != null) {
+      setParameter(getParameterIndex(name), value);
+    } else {
+      msg.add(name);
+      msg.add(Integer.toString(value));
+      sentMessage = null;
+    }
   }
 
   public void setParameter(String name, float value) {
-    msg.add(name);
-    msg.add(Float.toString(value));
+    setParameter(name, Float.toString(value));
+  }
+
+  // Sets the parameter with the specified index in the template
+  void setParameter(int index, String value) {
+    stringValues[index] = value;
+    sentMessage = null;
+  }
+
+  // Sets the parameter with the specified index in the template
+  void setParameter(int index, int value) {
+    intValues[index] = value;
+    stringValues[index] = null;
     sentMessage = null;
   }
 
+  private int getParameterIndex(String name) {
+    int index = template.indexOf(name);
+    if (index < 0) {
+      throw new IllegalArgumentException("no parameter " + name
+					 + " in message " + type);
+    }
+    return index;
+  }
+
   public String getParameter(String name) {
+    if (template != null) {
+      int index = template.indexOf(name);
+      if (index < 0) {
+	return null;
+      }
+      String value = stringValues[index];
+      return value != null ? value : Integer.toString(intValues[index]);
+    }
     for (int i = 0, n = msg.size(); i < n; i += 2) {
       if (msg.get(i).equals(name))
 	return (String) msg.get(i + 1);
@@ -177,19 +457,64 @@ public class TACMessage {
   }
 
   public boolean nextTag() {
-    if (pos < receivedMessage.length()) {
-      int nextPos = receivedMessage.indexOf('<', pos);
-      if (nextPos >= 0) {
-	pos = nextPos + 1;
-	return true;
-      }
+    String text = receivedMessage;
+    int nextPos = tagEnd >= 0 ? valueEnd : text.indexOf('<', pos);
+    if (nextPos >= 0) {
+      pos = nextPos + 1;
+      tagEnd = text.indexOf('>', pos);
+      valueEnd = tagEnd >= 0 ? text.indexOf('<', tagEnd) : -1;
+      tagID = -1;
+      return true;
     }
     return false;
   }
 
+  /**
+   * Returns the id of the current tag (one of the TAG_* constants) or
+   * TAG_UNKNOWN if the tag name is not known.  End tags have the same
+   * id as their start tags.
+   */
+  public int getTagID() {
+    int id = tagID;
+    if (id < 0) {
+      tagID = id = lookupTag(receivedMessage, pos, getTagEnd());
+    }
+    return id;
+  }
+
+  public boolean isEndTag() {
+    return pos < receivedMessage.length()
+      && receivedMessage.charAt(pos) == '/';
+  }
+
+  public boolean isEndTag(int tagID) {
+    return isEndTag() && getTagID() == tagID;
+  }
+
+  // Returns the position of the '>' ending the current tag or -1
+  private int getTagEnd() {
+    return tagEnd >= 0 ? tagEnd : receivedMessage.indexOf('>', pos);
+  }
+
+  // Returns the position of the '<' ending the value of the tag
+  // ending at the specified position
+  private int getValueEnd(int tagEnd) {
+    if (this.tagEnd >= 0) {
+      return valueEnd;
+    }
+    return tagEnd >= 0 ? receivedMessage.indexOf('<', tagEnd) : -1;
+  }
+
+  private void resetParser() {
+    pos = 0;
+    tagEnd = -1;
+    valueEnd = -1;
+    tagID = -1;
+  }
+
   public String getValue() {
-    int start = receivedMessage.indexOf('>', pos);
-    int end = receivedMessage.indexOf('<', start);
+    int start = getTagEnd();
+    int end = getValueEnd(start);
     if (start > 0 && end > 0) {
       return receivedMessage.substring(start + 1, end);
     }
@@ -197,40 +522,41 @@ public class TACMessage {
   }
 
   public int getValueAsInt(int def) {
-    String val = getValue();
-    if (val != null) {
-      try {
-	return Integer.parseInt(val);
-      } catch (Exception e) {
+    int start = getTagEnd();
+    int end = getValueEnd(start);
+    if (start > 0 && end > 0) {
+      long value = parseLong(receivedMessage, start + 1, end, NaN);
+      if (value != NaN
+	  && value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+	return (int) value;
       }
     }
     return def;
   }
 
   public long getValueAsLong(long def) {
-    String val = getValue();
-    if (val != null) {
-      try {
-	return Long.parseLong(val);
-      } catch (Exception e) {
+    int start = getTagEnd();
+    int end = getValueEnd(start);
+    if (start > 0 && end > 0) {
+      long value = parseLong(receivedMessage, start + 1, end, NaN);
+      if (value != NaN) {
+	return value;
       }
     }
     return def;
   }
 
   public float getValueAsFloat(float def) {
-    String val = getValue();
-    if (val != null) {
-      try {
-	return Float.parseFloat(val);
-      } catch (Exception e) {
-      }
+    int start = getTagEnd();
+    int end = getValueEnd(start);
+    if (start > 0 && end > 0) {
+      return parseFloat(receivedMessage, start + 1, end, def);
     }
     return def;
   }
 
   public String getTag() {
-    int end = receivedMessage.indexOf('>', pos);
+    int end = getTagEnd();
     if (end > 0) {
       return receivedMessage.substring(pos, end);
     }
@@ -243,17 +569,155 @@ public class TACMessage {
   }
 
   public boolean isTag(String name) {
-    name = name + '>';
     int len = name.length();
-    return receivedMessage.regionMatches(pos, name, 0, len);
+    int end = pos + len;
+    return end < receivedMessage.length()
+      && receivedMessage.charAt(end) == '>'
+      && receivedMessage.regionMatches(pos, name, 0, len);
+  }
+
+  // Parses a decimal integer directly from the text without creating
+  // a substring. Returns the default value if the text is not a legal
+  // integer.
+  private static long parseLong(String text, int start, int end, long def) {
+    boolean negative = false;
+    if (start < end) {
+      char c = text.charAt(start);
+      if (c == '-') {
+	negative = true;
+	start++;
+      } else if (c == '+') {
+	start++;
+      }
+    }
+    int len = end - start;
+    if (len <= 0) {
+      return def;
+    }
+    if (len > 18) {
+      // Might overflow => let Java handle it
+      try {
+	return Long.parseLong(text.substring(negative ? start - 1 : start,
+					     end));
+      } catch (Exception e) {
+	return def;
+      }
+    }
+    long value = 0L;
+    for (int i = start; i < end; i++) {
+      int digit = text.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+	return def;
+      }
+      value = value * 10 + digit;
+    }
+    return negative ? -value : value;
+  }
+
+  // Parses a decimal number of the form [-]digits[.digits] directly
+  // from the text. Other formats are handled by Float.parseFloat().
+  private static float parseFloat(String text, int start, int end,
+				  float def) {
+    int i = start;
+    boolean negative = false;
+    if (i < end) {
+      char c = text.charAt(i);
+      if (c == '-') {
+	negative = true;
+	i++;
+      } else if (c == '+') {
+	i++;
+      }
+    }
+    long mantissa = 0L;
+    int digits = 0;
+    int decimals = -1;
+    for (; i < end; i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+	mantissa = mantissa * 10 + (c - '0');
+	digits++;
+	if (decimals >= 0) {
+	  decimals++;
+	}
+      } else if (c == '.' && decimals < 0) {
+	decimals = 0;
+      } else {
+	break;
+      }
+    }
+    if (i < end || digits > 15) {
+      // Exponent or other unusual format
+      try {
+	return Float.parseFloat(text.substring(start, end));
+      } catch (Exception e) {
+	return def;
+      }
+    }
+    if (digits == 0) {
+      return def;
+    }
+    double value = decimals > 0
+      ? mantissa / POWERS_OF_TEN[decimals]
+      : (double) mantissa;
+    return (float) (negative ? -value : value);
+  }
+
+  private static int lookupTag(String text, int start, int end) {
+    if (end < 0) {
+      return TAG_UNKNOWN;
+    }
+    if (start < end && text.charAt(start) == '/') {
+      start++;
+    }
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + text.charAt(i);
+    }
+    int len = end - start;
+    for (int i = hash & TAG_MASK, id; (id = tagTable[i]) != 0;
+	 i = (i + 1) & TAG_MASK) {
+      String name = tagNames[id];
+      if (name.length() == len && text.regionMatches(start, name, 0, len)) {
+	return id;
+      }
+    }
+    return TAG_UNKNOWN;
   }
 
 //   public void reset() {
 //     pos = 0;
 //   }
 
-  public String getMessageString() {
+  /**
+   * Writes this message, including the terminating '\0', to the buffer.
+   * A BufferOverflowException is thrown if the buffer does not have
+   * room for the message in which case the buffer position is
+   * undefined.
+   */
+  void writeMessage(ByteBuffer buffer) {
+    if (template != null) {
+      template.write(buffer, intValues, stringValues);
+      // Timestamp the generation of this message (when it was sent)
+      this.timeSent = System.currentTimeMillis();
+      this.nanoSent = System.nanoTime();
+    } else {
+      buffer.put(getMessageString().getBytes());
+    }
+  }
+
+  // Returns the message text as sent (without the terminating '\0')
+  // or null if the message has not been sent
+  String getSentMessage() {
     String message = this.sentMessage;
+    if (message == null && template != null) {
+      this.sentMessage = message = template.toString(intValues, stringValues);
+    }
+    return message;
+  }
+
+  public String getMessageString() {
+    String message = getSentMessage();
     if (message == null) {
       StringBuffer sb = new StringBuffer();
       sb.append('<').append(type).append('>');
@@ -267,27 +731,26 @@ public class TACMessage {
       this.sentMessage = sb.toString();
       // Timestamp the generation of this message (when it was sent)
       this.timeSent = System.currentTimeMillis();
+      this.nanoSent = System.nanoTime();
       return sb.append('\0').toString();
     } else {
       // Timestamp the generation of this message (when it was sent)
       this.timeSent = System.currentTimeMillis();
+      this.nanoSent = System.nanoTime();
       return message + '\0';
     }
   }
 
   public static long getMessageCount() {
-    return msgCount;
+    return LatencyStats.getTotal().getCount();
   }
 
+  // Returns the average response time in milliseconds
   public static float getAverageResponseTime() {
-    if (msgCount == 0) {
-      return 0f;
-    }
-    return (float) (totalResponseTime / msgCount);
+    return LatencyStats.getTotal().getAverage() / 1000f;
   }
 
   public static void resetResponseTime() {
-    totalResponseTime = 0;
-    msgCount = 0;
+    LatencyStats.reset();
   }
 }
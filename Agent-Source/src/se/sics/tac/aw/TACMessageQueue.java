@@ -0,0 +1,85 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TACMessageQueue
+ *
+ * Purpose :
+ *   Queue of outgoing requests with one FIFO lane per message
+ *   priority class. Elements are always removed from the most urgent
+ *   non-empty lane. Not synchronized.
+ */
+
+package se.sics.tac.aw;
+import com.botbox.util.ArrayQueue;
+
+final class TACMessageQueue {
+
+  private final ArrayQueue[] lanes =
+    new ArrayQueue[TACMessage.PRIORITY_LEVELS];
+  private int size = 0;
+
+  public TACMessageQueue() {
+    for (int i = 0, n = lanes.length; i < n; i++) {
+      lanes[i] = new ArrayQueue();
+    }
+  }
+
+  public void add(Object element, int priority) {
+    lanes[priority].add(element);
+    size++;
+  }
+
+  // Returns the priority of the next element to be removed or -1 if
+  // the queue is empty
+  public int getNextPriority() {
+    if (size > 0) {
+      for (int i = 0, n = lanes.length; i < n; i++) {
+	if (!lanes[i].isEmpty()) {
+	  return i;
+	}
+      }
+    }
+    return -1;
+  }
+
+  public Object remove() {
+    int priority = getNextPriority();
+    if (priority < 0) {
+      return null;
+    }
+    size--;
+    return lanes[priority].remove(0);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    for (int i = 0, n = lanes.length; i < n; i++) {
+      lanes[i].clear();
+    }
+    size = 0;
+  }
+
+} // TACMessageQueue
@@ -0,0 +1,177 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TACMessageTemplate
+ *
+ * Purpose :
+ *   Pre-encoded layout for messages with a fixed set of parameters.
+ *   All tags are encoded once when the template is created and the
+ *   parameter values are written directly into the output buffer
+ *   when a message is sent.
+ */
+
+package se.sics.tac.aw;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+final class TACMessageTemplate {
+
+  private final String type;
+  private final String[] names;
+  // segments[i] is written before parameter i and the last segment
+  // ends the message (including the terminating '\0')
+  private final byte[][] segments;
+
+  public TACMessageTemplate(String type, String[] names) {
+    this(type, names, "");
+  }
+
+  /**
+   * Creates a new template.
+   *
+   * @param type the message type
+   * @param names the names of the parameters in the order they are sent
+   * @param constant constant XML to send after the parameters
+   */
+  public TACMessageTemplate(String type, String[] names, String constant) {
+    this.type = type;
+    this.names = names.clone();
+
+    int n = names.length;
+    String[] text = new String[n + 1];
+    if (n == 0) {
+      text[0] = '<' + type + '>' + constant + "</" + type + ">\0";
+    } else {
+      text[0] = '<' + type + "><" + names[0] + '>';
+      for (int i = 1; i < n; i++) {
+	text[i] = "</" + names[i - 1] + "><" + names[i] + '>';
+      }
+      text[n] = "</" + names[n - 1] + '>' + constant + "</" + type + ">\0";
+    }
+    segments = new byte[n + 1][];
+    for (int i = 0; i <= n; i++) {
+      segments[i] = getASCII(text[i]);
+    }
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public int getParameterCount() {
+    return names.length;
+  }
+
+  public String getParameterName(int index) {
+    return names[index];
+  }
+
+  public int indexOf(String name) {
+    for (int i = 0, n = names.length; i < n; i++) {
+      if (names[i].equals(name)) {
+	return i;
+      }
+    }
+    return -1;
+  }
+
+  // Parameters with a string value use that value, all others are
+  // written as integers
+  void write(ByteBuffer buffer, int[] intValues, String[] stringValues) {
+    byte[][] segments = this.segments;
+    int n = names.length;
+    buffer.put(segments[0]);
+    for (int i = 0; i < n; i++) {
+      String value = stringValues[i];
+      if (value != null) {
+	putString(buffer, value);
+      } else {
+	putInt(buffer, intValues[i]);
+      }
+      buffer.put(segments[i + 1]);
+    }
+  }
+
+  // Returns the message as text (for logging)
+  String toString(int[] intValues, String[] stringValues) {
+    StringBuffer sb = new StringBuffer();
+    int n = names.length;
+    sb.append(new String(segments[0]));
+    for (int i = 0; i < n; i++) {
+      String value = stringValues[i];
+      if (value != null) {
+	sb.append(value);
+      } else {
+	sb.append(intValues[i]);
+      }
+      sb.append(new String(segments[i + 1]));
+    }
+    // Do not include the terminating '\0'
+    sb.setLength(sb.length() - 1);
+    return sb.toString();
+  }
+
+  static void putInt(ByteBuffer buffer, int value) {
+    if (value < 0) {
+      if (value == Integer.MIN_VALUE) {
+	buffer.put(getASCII(Integer.toString(value)));
+	return;
+      }
+      buffer.put((byte) '-');
+      value = -value;
+    }
+    int digits = 1;
+    for (int v = value; v >= 10; v /= 10) {
+      digits++;
+    }
+    int position = buffer.position();
+    if (buffer.remaining() < digits) {
+      throw new BufferOverflowException();
+    }
+    for (int i = position + digits - 1; i >= position; i--) {
+      buffer.put(i, (byte) ('0' + (value % 10)));
+      value /= 10;
+    }
+    buffer.position(position + digits);
+  }
+
+  static void putString(ByteBuffer buffer, String value) {
+    int n = value.length();
+    for (int i = 0; i < n; i++) {
+      if (value.charAt(i) >= 0x80) {
+	// Not plain ASCII
+	buffer.put(value.getBytes());
+	return;
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      buffer.put((byte) value.charAt(i));
+    }
+  }
+
+  private static byte[] getASCII(String text) {
+    int n = text.length();
+    byte[] data = new byte[n];
+    for (int i = 0; i < n; i++) {
+      data[i] = (byte) text.charAt(i);
+    }
+    return data;
+  }
+
+} // TACMessageTemplate
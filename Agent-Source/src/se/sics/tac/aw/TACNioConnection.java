@@ -0,0 +1,290 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TACNioConnection
+ *
+ * Purpose :
+ *   A connection class for socket connections to the server using a
+ *   NIO selector and reusable direct buffers. Message boundaries are
+ *   found directly in the read buffer and each complete frame is
+ *   handed to its TACMessage without intermediate string buffers.
+ *
+ *   Use by setting "connection=se.sics.tac.aw.TACNioConnection" in
+ *   the configuration file.
+ */
+
+package se.sics.tac.aw;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.botbox.util.ArrayQueue;
+
+public class TACNioConnection extends TACConnection implements Runnable {
+
+  private static final Logger log =
+    Logger.getLogger(TACNioConnection.class.getName());
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private SocketChannel channel;
+  private Selector selector;
+  private SelectionKey key;
+
+  private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private byte[] frame = new byte[BUFFER_SIZE];
+  // Number of bytes in the read buffer already scanned for '\0'
+  private int scanned = 0;
+
+  private boolean isWritePending = false;
+
+  // Messages waiting for replies (in the order they were written)
+  private ArrayQueue queue = new ArrayQueue();
+  // Messages not yet written to the server
+  private TACMessageQueue outQueue = new TACMessageQueue();
+  private boolean disconnected = true;
+
+  protected void init() {
+    doConnect();
+  }
+
+  public boolean isConnected() {
+    return !disconnected;
+  }
+
+  public void disconnect() {
+    disconnected = true;
+    closeCapture();
+    if (channel != null) {
+      try {
+	selector.wakeup();
+	channel.close();
+	selector.close();
+      } catch (Exception e) {
+	log.log(Level.SEVERE, "could not close connection:", e);
+      } finally {
+	channel = null;
+      }
+    }
+  }
+
+  public synchronized void sendMessage(TACMessage msg) throws IOException {
+    if (disconnected) {
+      throw new IOException("Disconnected from server");
+    }
+
+    outQueue.add(msg, msg.getPriority());
+    if (!isBatching()) {
+      writeMessages();
+      flush();
+    }
+  }
+
+  protected synchronized void flushBatch() throws IOException {
+    if (!disconnected) {
+      writeMessages();
+      flush();
+    }
+  }
+
+  // Called when a reply has been received to write any messages that
+  // were held back
+  private synchronized void writeHeldMessages() throws IOException {
+    if (!disconnected && !outQueue.isEmpty()) {
+      writeMessages();
+      flush();
+    }
+  }
+
+  // Moves the queued messages to the write buffer, most urgent
+  // first. Quote and bid info requests are held back while too many
+  // requests are waiting for replies so that they can be overtaken by
+  // more urgent messages.
+  private void writeMessages() {
+    int priority;
+    while ((priority = outQueue.getNextPriority()) >= 0
+	   && (priority < TACMessage.PRIORITY_QUOTE
+	       || queue.size() < maxPendingRequests)) {
+      TACMessage msg = (TACMessage) outQueue.remove();
+      int position = writeBuffer.position();
+      while (true) {
+	try {
+	  msg.writeMessage(writeBuffer);
+	  break;
+	} catch (BufferOverflowException e) {
+	  writeBuffer.position(position);
+	  writeBuffer = grow(writeBuffer);
+	}
+      }
+      addMessage(msg);
+      captureSent(msg);
+    }
+  }
+
+  // Writes as much as possible of the write buffer without blocking
+  // and leaves the rest to the selector thread
+  private synchronized void flush() throws IOException {
+    writeBuffer.flip();
+    try {
+      channel.write(writeBuffer);
+    } finally {
+      writeBuffer.compact();
+    }
+    boolean isPending = writeBuffer.position() > 0;
+    if (isPending != isWritePending) {
+      isWritePending = isPending;
+      selector.wakeup();
+    }
+  }
+
+  private synchronized int getInterestOps() {
+    return isWritePending
+      ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+      : SelectionKey.OP_READ;
+  }
+
+  public void run() {
+    try {
+      while (!disconnected) {
+	key.interestOps(getInterestOps());
+	selector.select();
+	if (key.isValid() && key.isWritable()) {
+	  flush();
+	}
+	if (key.isValid() && key.isReadable()) {
+	  if (channel.read(readBuffer) < 0) {
+	    break;
+	  }
+	  readFrames();
+	}
+	selector.selectedKeys().clear();
+      }
+    } catch (Throwable e) {
+      if (!disconnected) {
+	log.log(Level.SEVERE, "could not read:", e);
+      }
+    } finally {
+      agent.reset(0, this);
+    }
+  }
+
+  private void readFrames() throws IOException {
+    ByteBuffer buffer = readBuffer;
+    int end = buffer.position();
+    int start = 0;
+    for (int i = scanned; i < end; i++) {
+      if (buffer.get(i) == 0) {
+	handleMessage(buffer, start, i - start);
+	start = i + 1;
+      }
+    }
+
+    if (start > 0) {
+      // Move the beginning of the next message to the buffer start
+      buffer.flip();
+      buffer.position(start);
+      buffer.compact();
+    } else if (!buffer.hasRemaining()) {
+      // The current message does not fit in the buffer
+      readBuffer = buffer = grow(buffer);
+    }
+    scanned = buffer.position();
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer) {
+    ByteBuffer newBuffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+    buffer.flip();
+    newBuffer.put(buffer);
+    return newBuffer;
+  }
+
+  // Synchronized to ensure that no one else sends a message before
+  // authentication of this connection!
+  private synchronized void doConnect() {
+    try {
+      String host = agent.getHost();
+      int port = agent.getPort();
+      log.fine("Connecting to server " + host + ':' + port);
+      channel = SocketChannel.open(new InetSocketAddress(host, port));
+      channel.socket().setTcpNoDelay(true);
+      channel.configureBlocking(false);
+      selector = Selector.open();
+      key = channel.register(selector, SelectionKey.OP_READ);
+      disconnected = false;
+      new Thread(this, "nio-reader").start();
+
+      // Automatically login! -> give an auth to the agent...
+      TACMessage msg = new TACMessage("auth");
+      msg.setParameter("userName", agent.getUser());
+      msg.setParameter("userPW", agent.getPassword());
+      msg.setMessageReceiver(agent);
+      sendMessage(msg);
+
+    } catch (Exception e) {
+      disconnected = true;
+      log.log(Level.SEVERE, "connection to server failed:", e);
+      channel = null;
+    }
+  }
+
+  private synchronized void addMessage(TACMessage msg) {
+    queue.add(msg);
+  }
+
+  private synchronized TACMessage getMessage() {
+    if (queue.isEmpty()) {
+      return null;
+    }
+    return (TACMessage) queue.remove(0);
+  }
+
+  private void handleMessage(ByteBuffer buffer, int offset, int length)
+    throws IOException {
+    TACMessage tacMsg = getMessage();
+    writeHeldMessages();
+    if (length > frame.length) {
+      frame = new byte[length + BUFFER_SIZE];
+    }
+    int position = buffer.position();
+    int limit = buffer.limit();
+    buffer.position(offset);
+    buffer.limit(offset + length);
+    buffer.get(frame, 0, length);
+    buffer.limit(limit);
+    buffer.position(position);
+
+    if (tacMsg == null) {
+      ///??? ILLEGAL STATE!!!
+      throw new IllegalStateException("received unexpected message: "
+				      + new String(frame, 0, length));
+    }
+    if (!disconnected) {
+      tacMsg.setReceivedMessage(frame, 0, length);
+      captureReceived(tacMsg);
+      deliverMessage(tacMsg);
+    }
+  }
+}
@@ -24,10 +24,13 @@
  */
 
 package se.sics.tac.aw;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -39,10 +42,14 @@ public class TACReader extends TACConnection implements Runnable {
     Logger.getLogger(TACReader.class.getName());
 
   private InputStream input;
-  private OutputStreamWriter output;
+  private OutputStream output;
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
   private Socket socket;
 
+  // Messages waiting for replies (in the order they were written)
   private ArrayQueue queue = new ArrayQueue();
+  // Messages not yet written to the server
+  private TACMessageQueue outQueue = new TACMessageQueue();
   private boolean disconnected = true;
 
   protected void init() {
@@ -55,6 +62,7 @@ public class TACReader extends TACConnection implements Runnable {
 
   public void disconnect() {
     disconnected = true;
+    closeCapture();
     if (socket != null) {
       try {
 	output.close();
@@ -73,10 +81,52 @@ public class TACReader extends TACConnection implements Runnable {
       throw new IOException("Disconnected from server");
     }
 
-    String msgStr = msg.getMessageString();
-    addMessage(msg);
-    output.write(msgStr);
-    output.flush();
+    outQueue.add(msg, msg.getPriority());
+    if (!isBatching()) {
+      writeMessages();
+      output.flush();
+    }
+  }
+
+  protected synchronized void flushBatch() throws IOException {
+    if (!disconnected) {
+      writeMessages();
+      output.flush();
+    }
+  }
+
+  // Called when a reply has been received to write any messages that
+  // were held back
+  private synchronized void writeHeldMessages() throws IOException {
+    if (!disconnected && !outQueue.isEmpty()) {
+      writeMessages();
+      output.flush();
+    }
+  }
+
+  // Writes the queued messages, most urgent first. Quote and bid info
+  // requests are held back while too many requests are waiting for
+  // replies so that they can be overtaken by more urgent messages.
+  private void writeMessages() throws IOException {
+    int priority;
+    while ((priority = outQueue.getNextPriority()) >= 0
+	   && (priority < TACMessage.PRIORITY_QUOTE
+	       || queue.size() < maxPendingRequests)) {
+      TACMessage msg = (TACMessage) outQueue.remove();
+      ByteBuffer buffer = writeBuffer;
+      buffer.clear();
+      while (true) {
+	try {
+	  msg.writeMessage(buffer);
+	  break;
+	} catch (BufferOverflowException e) {
+	  writeBuffer = buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+	}
+      }
+      addMessage(msg);
+      output.write(buffer.array(), 0, buffer.position());
+      captureSent(msg);
+    }
   }
 
   public void run() {
@@ -122,8 +172,11 @@ public class TACReader extends TACConnection implements Runnable {
       int port = agent.getPort();
       log.fine("Connecting to server " + host + ':' + port);
       socket = new Socket(host, port);
+      // Messages are flushed explicitly (and batched when requested)
+      // so there is no need to wait for more data before sending
+      socket.setTcpNoDelay(true);
       input = socket.getInputStream();
-      output = new OutputStreamWriter(socket.getOutputStream());
+      output = new BufferedOutputStream(socket.getOutputStream(), 8192);
       disconnected = false;
       new Thread(this).start();
 
@@ -152,8 +205,9 @@ public class TACReader extends TACConnection implements Runnable {
     return (TACMessage) queue.remove(0);
   }
 
-  private void handleMessage(String msg) {
+  private void handleMessage(String msg) throws IOException {
     TACMessage tacMsg = getMessage();
+    writeHeldMessages();
     if (tacMsg == null) {
       ///??? ILLEGAL STATE!!!
       throw new IllegalStateException("received unexpected message: "
@@ -161,7 +215,8 @@ public class TACReader extends TACConnection implements Runnable {
     }
     if (!disconnected) {
       tacMsg.setReceivedMessage(msg);
-      tacMsg.deliverMessage();
+      captureReceived(tacMsg);
+      deliverMessage(tacMsg);
     }
   }
 }
@@ -0,0 +1,374 @@
+/**
+ * TAC AgentWare
+ * http://www.sics.se/tac        tac-dev@sics.se
+ *
+ * Copyright (c) 2001-2005 SICS AB. All rights reserved.
+ *
+ * SICS grants you the right to use, modify, and redistribute this
+ * software for noncommercial purposes, on the conditions that you:
+ * (1) retain the original headers, including the copyright notice and
+ * this text, (2) clearly document the difference between any derived
+ * software and the original, and (3) acknowledge your use of this
+ * software in pertaining publications and reports.  SICS provides
+ * this software "as is", without any warranty of any kind.  IN NO
+ * EVENT SHALL SICS BE LIABLE FOR ANY DIRECT, SPECIAL OR INDIRECT,
+ * PUNITIVE, INCIDENTAL OR CONSEQUENTIAL LOSSES OR DAMAGES ARISING OUT
+ * OF THE USE OF THE SOFTWARE.
+ *
+ * -----------------------------------------------------------------
+ *
+ * TACReplayConnection
+ *
+ * Purpose :
+ *   A connection class that replays a session recorded in a capture
+ *   file (see TACCapture) instead of connecting to a server.
+ *
+ *   The session is replayed in real time: the timers of the agent
+ *   and its server clock (synchronized from the recorded server time
+ *   replies) run in real time, so a faster replay would make the agent
+ *   see the recorded server times drift away from its own clock.
+ *
+ *   Each message sent by the agent is answered with the recorded
+ *   reply of the unused recorded request with the same text that was
+ *   sent closest to the same time in the recorded session or, if no
+ *   such request exists, the closest one with the same message type.
+ *   Matching by the recorded time instead of by the order of the
+ *   requests keeps a request that the agent skipped or added from
+ *   shifting the replies of all later requests. The reply is
+ *   delivered when it was received in the recorded session (relative
+ *   to the start of the session) but never faster than the recorded
+ *   response time. Each new connection replays the next session in
+ *   the capture file and the agent is stopped when all sessions have
+ *   been replayed.
+ *
+ *   Use by setting "connection=se.sics.tac.aw.TACReplayConnection"
+ *   and "replayFile=<capture file>" in the configuration file.
+ */
+
+package se.sics.tac.aw;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.botbox.util.ArrayQueue;
+
+public class TACReplayConnection extends TACConnection implements Runnable {
+
+  private static final Logger log =
+    Logger.getLogger(TACReplayConnection.class.getName());
+
+  // The next session to replay (each connection replays one session)
+  private static int nextSession = 0;
+
+  private ArrayList recorded;
+  private int firstUnused = 0;
+  private long startTime;
+  private long lastDelivery;
+
+  private ByteBuffer writeBuffer = ByteBuffer.allocate(1024);
+  // Replies waiting to be delivered (in the order of the requests)
+  private ArrayQueue queue = new ArrayQueue();
+  private boolean disconnected = true;
+
+  private int matched = 0;
+  private int unmatched = 0;
+
+  protected void init() {
+    String file = agent.getConnectionConfig("replayFile", null);
+    if (file == null) {
+      log.severe("no replay file specified (set replayFile)");
+      return;
+    }
+    if (agent.getConnectionConfig("replaySpeed", null) != null) {
+      log.warning("replaySpeed is not supported: replaying in real time");
+    }
+
+    int session;
+    synchronized (TACReplayConnection.class) {
+      session = nextSession++;
+    }
+    try {
+      recorded = readSession(file, session);
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "could not read replay file " + file, e);
+      return;
+    }
+    if (recorded == null) {
+      closeCapture();
+      agent.stop("all " + session + " sessions in " + file
+		 + " have been replayed");
+      return;
+    }
+    log.fine("Replaying session " + (session + 1) + " from " + file + " ("
+	     + recorded.size() + " messages)");
+
+    startTime = lastDelivery = System.nanoTime();
+    disconnected = false;
+    new Thread(this, "replay").start();
+
+    try {
+      TACMessage msg = new TACMessage("auth");
+      msg.setParameter("userName", agent.getUser());
+      msg.setParameter("userPW", agent.getPassword());
+      msg.setMessageReceiver(agent);
+      sendMessage(msg);
+    } catch (IOException e) {
+      log.log(Level.SEVERE, "could not replay login", e);
+      disconnect();
+    }
+  }
+
+  public boolean isConnected() {
+    return !disconnected;
+  }
+
+  public synchronized void disconnect() {
+    if (!disconnected) {
+      disconnected = true;
+      log.fine("Replay: " + matched + " messages matched, " + unmatched
+	       + " without recorded reply");
+      closeCapture();
+      notifyAll();
+    }
+  }
+
+  public synchronized void sendMessage(TACMessage msg) throws IOException {
+    if (disconnected) {
+      throw new IOException("Disconnected from replay");
+    }
+
+    // Encode the message as it would have been sent to the server
+    ByteBuffer buffer = writeBuffer;
+    buffer.clear();
+    while (true) {
+      try {
+	msg.writeMessage(buffer);
+	break;
+      } catch (BufferOverflowException e) {
+	writeBuffer = buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+      }
+    }
+
+    long now = System.nanoTime();
+    Exchange exchange =
+      findExchange(msg.getSentMessage(), msg.getType(), now - startTime);
+    String reply;
+    long time;
+    if (exchange == null) {
+      unmatched++;
+      reply = "<tacerror>no recorded reply for " + msg.getType()
+	+ "</tacerror>";
+      time = now;
+    } else {
+      matched++;
+      reply = exchange.reply;
+      time = startTime + exchange.receivedTime;
+      if (time < now + exchange.receivedTime - exchange.sentTime) {
+	time = now + exchange.receivedTime - exchange.sentTime;
+      }
+    }
+    // Replies are delivered in the order of the requests
+    if (time < lastDelivery) {
+      time = lastDelivery;
+    }
+    lastDelivery = time;
+    queue.add(new Reply(msg, reply, time));
+    notifyAll();
+  }
+
+  // Returns the unused exchange with the same request that was sent
+  // closest to the specified time (in nanoseconds since the start of
+  // the session) or, if there is none, the closest one with the same
+  // message type
+  private Exchange findExchange(String request, String type, long time) {
+    ArrayList recorded = this.recorded;
+    int n = recorded.size();
+    while (firstUnused < n && ((Exchange) recorded.get(firstUnused)).isUsed) {
+      firstUnused++;
+    }
+    Exchange same = null;
+    Exchange sameType = null;
+    long sameDistance = Long.MAX_VALUE;
+    long typeDistance = Long.MAX_VALUE;
+    for (int i = firstUnused; i < n; i++) {
+      Exchange exchange = (Exchange) recorded.get(i);
+      long distance = Math.abs(exchange.sentTime - time);
+      if (exchange.sentTime > time && distance >= sameDistance) {
+	// The exchanges are in the order they were sent
+	break;
+      }
+      if (!exchange.isUsed) {
+	if (exchange.request.equals(request)) {
+	  if (distance < sameDistance) {
+	    same = exchange;
+	    sameDistance = distance;
+	  }
+	} else if (distance < typeDistance && exchange.type.equals(type)) {
+	  sameType = exchange;
+	  typeDistance = distance;
+	}
+      }
+    }
+    if (same == null) {
+      same = sameType;
+    }
+    if (same != null) {
+      same.isUsed = true;
+    }
+    return same;
+  }
+
+  public void run() {
+    Reply reply;
+    while ((reply = nextReply()) != null) {
+      reply.msg.setReceivedMessage(reply.reply);
+      deliverMessage(reply.msg);
+    }
+  }
+
+  private synchronized Reply nextReply() {
+    while (!disconnected) {
+      if (!queue.isEmpty()) {
+	Reply reply = (Reply) queue.get(0);
+	long delay = reply.time - System.nanoTime();
+	if (delay <= 0) {
+	  return (Reply) queue.remove(0);
+	}
+	try {
+	  wait(delay / 1000000, (int) (delay % 1000000));
+	} catch (InterruptedException e) {
+	  e.printStackTrace();
+	}
+      } else {
+	try {
+	  wait();
+	} catch (InterruptedException e) {
+	  e.printStackTrace();
+	}
+      }
+    }
+    return null;
+  }
+
+
+  // -------------------------------------------------------------------
+  // Capture file reading
+  // -------------------------------------------------------------------
+
+  // Returns the request/reply pairs of the specified session in the
+  // order they were sent or null if the session does not exist
+  private static ArrayList readSession(String file, int session)
+    throws IOException {
+    DataInputStream in = new DataInputStream
+      (new BufferedInputStream(new FileInputStream(file), 65536));
+    try {
+      byte[] header = new byte[TACCapture.HEADER.length];
+      in.readFully(header);
+      for (int i = 0; i < header.length; i++) {
+	if (header[i] != TACCapture.HEADER[i]) {
+	  throw new IOException("not a capture file");
+	}
+      }
+
+      int currentSession = -1;
+      HashMap exchanges = null;
+      ArrayList list = null;
+      byte[] data = new byte[1024];
+      while (true) {
+	int kind;
+	try {
+	  kind = in.readByte();
+	} catch (EOFException e) {
+	  break;
+	}
+	int sequence = in.readInt();
+	long time = in.readLong();
+	int length = in.readInt();
+	if (length > data.length) {
+	  data = new byte[length + 1024];
+	}
+	try {
+	  in.readFully(data, 0, length);
+	} catch (EOFException e) {
+	  // The last record is incomplete (capture was interrupted)
+	  break;
+	}
+
+	if (kind == TACCapture.START) {
+	  if (++currentSession > session) {
+	    break;
+	  }
+	  if (currentSession == session) {
+	    exchanges = new HashMap();
+	    list = new ArrayList();
+	  }
+	} else if (currentSession == session) {
+	  Integer key = Integer.valueOf(sequence);
+	  String message = new String(data, 0, length, "UTF-8");
+	  if (kind == TACCapture.SENT) {
+	    Exchange exchange = new Exchange(message, time);
+	    exchanges.put(key, exchange);
+	    list.add(exchange);
+	  } else if (kind == TACCapture.RECEIVED) {
+	    Exchange exchange = (Exchange) exchanges.get(key);
+	    if (exchange != null) {
+	      exchange.reply = message;
+	      exchange.receivedTime = time;
+	    }
+	  }
+	}
+      }
+
+      if (list != null) {
+	// Ignore requests that never got a reply
+	for (int i = list.size() - 1; i >= 0; i--) {
+	  if (((Exchange) list.get(i)).reply == null) {
+	    list.remove(i);
+	  }
+	}
+      }
+      return list;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class Exchange {
+    public final String request;
+    public final String type;
+    public final long sentTime;
+    public String reply;
+    public long receivedTime;
+    public boolean isUsed = false;
+
+    public Exchange(String request, long sentTime) {
+      this.request = request;
+      this.sentTime = sentTime;
+      int end = request.indexOf('>');
+      this.type = request.startsWith("<") && end > 0
+	? request.substring(1, end)
+	: "";
+    }
+  }
+
+  private static class Reply {
+    public final TACMessage msg;
+    public final String reply;
+    public final long time;
+
+    public Reply(TACMessage msg, String reply, long time) {
+      this.msg = msg;
+      this.reply = reply;
+      this.time = time;
+    }
+  }
+
+} // TACReplayConnection
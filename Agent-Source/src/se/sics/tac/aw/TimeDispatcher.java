@@ -28,13 +28,43 @@
  *
  *   A TimeDispatcher object is obtained by calling
  *   TimeDispatcher.getDefault().
+ *
+ *   Scheduled tasks are kept in a heap ordered by time (tasks with
+ *   the same time are performed in the order they were added) and the
+ *   timer thread sleeps until the first task is due. Tasks are also
+ *   indexed by key and task so that they can be cancelled without
+ *   searching all scheduled tasks. How late each task was performed
+ *   is recorded in a histogram (see getLateness()).
+ *
+ *   By default the tasks are performed by the timer thread itself. If
+ *   a number of workers has been set (see setWorkers()) the timer
+ *   thread only fires the tasks and they are performed by a fixed
+ *   pool of worker threads. Tasks for the same Task object are still
+ *   performed one at a time in the order they were fired. The time
+ *   each task waited for a worker and its execution time are measured
+ *   for each task key.
  */
 
 package se.sics.tac.aw;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.botbox.util.ArrayQueue;
 
 public class TimeDispatcher extends Thread {
 
+  private static final Logger log =
+    Logger.getLogger(TimeDispatcher.class.getName());
+
+  /** Tasks performed later than this (in milliseconds) are logged */
+  private final static long LATE_WARNING = 100;
+
   private static TimeDispatcher dispatcher;
 
   public static TimeDispatcher getDefault() {
@@ -48,48 +78,187 @@ public class TimeDispatcher extends Thread {
     return dispatcher;
   }
 
-  private ArrayList list = new ArrayList();
+  // Binary heap of the scheduled tasks (ordered by time)
+  private TaskHolder[] heap = new TaskHolder[64];
+  private int size = 0;
+  // The scheduled tasks for each key and task (IndexKey -> ArrayList)
+  private HashMap index = new HashMap();
+  private final IndexKey lookupKey = new IndexKey(null, null);
+  private long nextSequence = 0;
   private long timeDiff;
 
+  private final LatencyHistogram lateness =
+    new LatencyHistogram("timer lateness");
+
+  // Worker pool (null when the tasks are performed by the timer thread)
+  private ExecutorService workers;
+  // The fired tasks for each Task object (Task -> TaskLane)
+  private final IdentityHashMap lanes = new IdentityHashMap();
+  // Queue delay and execution time for each key name
+  // (String -> LatencyHistogram[2])
+  private final HashMap keyStats = new HashMap();
+
   private TimeDispatcher() {
     super("timer");
     start();
   }
 
-  public void setTimeDiff(long timeDiff) {
+  public synchronized void setTimeDiff(long timeDiff) {
     this.timeDiff = timeDiff;
+    // The first task might be due at another local time now
+    notify();
+  }
+
+  /**
+   * Returns the histogram of how late the tasks have been performed
+   * compared to their scheduled times.
+   */
+  public LatencyHistogram getLateness() {
+    return lateness;
+  }
+
+  /**
+   * Sets the number of worker threads used to perform the tasks. With
+   * zero workers (the default) the tasks are performed by the timer
+   * thread. The number of workers can only be set once.
+   */
+  public synchronized void setWorkers(int count) {
+    if (workers != null) {
+      throw new IllegalStateException("workers already set");
+    }
+    if (count > 0) {
+      log.fine("Using " + count + " timer workers");
+      workers = Executors.newFixedThreadPool(count, new ThreadFactory() {
+	  private int next = 0;
+	  public synchronized Thread newThread(Runnable r) {
+	    return new Thread(r, "timer-worker-" + (next++));
+	  }
+	});
+    }
+  }
+
+  /**
+   * Returns the histogram of how long tasks with the specified key
+   * waited for a worker after being fired, or null if no such task
+   * has been performed. Task keys that are not strings are grouped by
+   * their class name.
+   */
+  public LatencyHistogram getQueueDelay(String keyName) {
+    LatencyHistogram[] stats = getKeyStats(keyName, false);
+    return stats == null ? null : stats[0];
+  }
+
+  /**
+   * Returns the histogram of the execution time of tasks with the
+   * specified key, or null if no such task has been performed.
+   */
+  public LatencyHistogram getExecutionTime(String keyName) {
+    LatencyHistogram[] stats = getKeyStats(keyName, false);
+    return stats == null ? null : stats[1];
+  }
+
+  public void resetStats() {
+    lateness.reset();
+    synchronized (keyStats) {
+      Iterator iterator = keyStats.values().iterator();
+      while (iterator.hasNext()) {
+	LatencyHistogram[] stats = (LatencyHistogram[]) iterator.next();
+	stats[0].reset();
+	stats[1].reset();
+      }
+    }
+  }
+
+  public String getReport() {
+    StringBuffer sb = new StringBuffer();
+    sb.append(lateness);
+    synchronized (keyStats) {
+      Iterator iterator = keyStats.values().iterator();
+      while (iterator.hasNext()) {
+	LatencyHistogram[] stats = (LatencyHistogram[]) iterator.next();
+	if (stats[1].getCount() > 0) {
+	  if (workers != null) {
+	    sb.append("\n  ").append(stats[0]);
+	  }
+	  sb.append("\n  ").append(stats[1]);
+	}
+      }
+    }
+    return sb.toString();
+  }
+
+  private LatencyHistogram[] getKeyStats(String keyName, boolean create) {
+    synchronized (keyStats) {
+      LatencyHistogram[] stats = (LatencyHistogram[]) keyStats.get(keyName);
+      if (stats == null && create) {
+	stats = new LatencyHistogram[] {
+	  new LatencyHistogram(keyName + " queue delay"),
+	  new LatencyHistogram(keyName + " execution")
+	};
+	keyStats.put(keyName, stats);
+      }
+      return stats;
+    }
   }
 
   public synchronized
     void addTask(long time, Object key, Object value, Task task) {
-    list.add(new TaskHolder(time, key, value, task));
-    notify();
+    TaskHolder h = new TaskHolder(time, nextSequence++, key, value, task);
+    h.added = System.currentTimeMillis() - timeDiff;
+    IndexKey indexKey = new IndexKey(key, task);
+    ArrayList tasks = (ArrayList) index.get(indexKey);
+    if (tasks == null) {
+      tasks = new ArrayList(2);
+      index.put(indexKey, tasks);
+    }
+    tasks.add(h);
+
+    if (size == heap.length) {
+      TaskHolder[] tmp = new TaskHolder[size * 2];
+      System.arraycopy(heap, 0, tmp, 0, size);
+      heap = tmp;
+    }
+    heap[size] = h;
+    h.heapIndex = size++;
+    siftUp(h.heapIndex);
+    if (h.heapIndex == 0) {
+      // New first task: recompute the wake up time
+      notify();
+    }
   }
 
   public synchronized void cancelTask(Object key, Task task) {
-    for (int i = 0, n = list.size(); i < n; i++) {
-      TaskHolder h = (TaskHolder) list.get(i);
-      if (h.key == key && h.task == task) {
-	list.remove(i);
-	i--; n--;
+    lookupKey.set(key, task);
+    ArrayList tasks = (ArrayList) index.remove(lookupKey);
+    lookupKey.set(null, null);
+    if (tasks != null) {
+      for (int i = 0, n = tasks.size(); i < n; i++) {
+	removeFromHeap((TaskHolder) tasks.get(i));
       }
     }
   }
 
   private synchronized TaskHolder nextTask() {
     do {
-      long currentTime = System.currentTimeMillis() - timeDiff;
-      for (int i = 0, n = list.size(); i < n; i++) {
-	TaskHolder h = (TaskHolder) list.get(i);
-	if (h.time <= currentTime) {
-	  list.remove(i);
+      if (size > 0) {
+	TaskHolder h = heap[0];
+	long delay = h.time - (System.currentTimeMillis() - timeDiff);
+	if (delay <= 0) {
+	  removeFromHeap(h);
+	  removeFromIndex(h);
 	  return h;
 	}
-      }
-      try {
-	wait(1000);
-      } catch (Exception e) {
-	e.printStackTrace();
+	try {
+	  wait(delay);
+	} catch (Exception e) {
+	  e.printStackTrace();
+	}
+      } else {
+	try {
+	  wait();
+	} catch (Exception e) {
+	  e.printStackTrace();
+	}
       }
     } while (true);
   }
@@ -97,27 +266,201 @@ public class TimeDispatcher extends Thread {
   public void run() {
     do {
       TaskHolder h = nextTask();
-      try {
-	h.task.performWork(h.time, h.key, h.value);
-      } catch (Exception e) {
-	e.printStackTrace();
+      // Tasks added after their time are measured from when they were
+      // added
+      long late = System.currentTimeMillis() - timeDiff
+	- (h.time > h.added ? h.time : h.added);
+      lateness.record(late * 1000);
+      if (late > LATE_WARNING) {
+	log.warning("task " + h.key + " performed " + late + " ms late");
+      }
+      h.fired = System.nanoTime();
+
+      ExecutorService workers = this.workers;
+      if (workers == null) {
+	perform(h);
+      } else {
+	TaskLane lane;
+	boolean isIdle;
+	synchronized (lanes) {
+	  lane = (TaskLane) lanes.get(h.task);
+	  if (lane == null) {
+	    lane = new TaskLane();
+	    lanes.put(h.task, lane);
+	  }
+	  lane.queue.add(h);
+	  isIdle = !lane.isRunning;
+	  lane.isRunning = true;
+	}
+	if (isIdle) {
+	  workers.execute(lane);
+	}
       }
     } while (true);
   }
 
+  private void perform(TaskHolder h) {
+    LatencyHistogram[] stats = h.stats;
+    if (stats == null) {
+      Object key = h.key;
+      String keyName = key instanceof String
+	? (String) key
+	: (key == null ? "null" : key.getClass().getName());
+      h.stats = stats = getKeyStats(keyName, true);
+    }
+    long start = System.nanoTime();
+    stats[0].record((start - h.fired) / 1000);
+    try {
+      h.task.performWork(h.time, h.key, h.value);
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+    stats[1].record((System.nanoTime() - start) / 1000);
+  }
+
+  // Performs the fired tasks for one Task object in order
+  private class TaskLane implements Runnable {
+    private final ArrayQueue queue = new ArrayQueue();
+    private boolean isRunning = false;
+
+    public void run() {
+      while (true) {
+	TaskHolder h;
+	synchronized (lanes) {
+	  if (queue.isEmpty()) {
+	    isRunning = false;
+	    return;
+	  }
+	  h = (TaskHolder) queue.remove(0);
+	}
+	perform(h);
+      }
+    }
+  }
+
+
+  // -------------------------------------------------------------------
+  // Heap and index handling
+  // -------------------------------------------------------------------
+
+  private void removeFromIndex(TaskHolder h) {
+    lookupKey.set(h.key, h.task);
+    ArrayList tasks = (ArrayList) index.get(lookupKey);
+    if (tasks != null) {
+      tasks.remove(h);
+      if (tasks.isEmpty()) {
+	index.remove(lookupKey);
+      }
+    }
+    lookupKey.set(null, null);
+  }
+
+  private void removeFromHeap(TaskHolder h) {
+    int i = h.heapIndex;
+    if (i < 0) {
+      return;
+    }
+    h.heapIndex = -1;
+    TaskHolder last = heap[--size];
+    heap[size] = null;
+    if (i < size) {
+      heap[i] = last;
+      last.heapIndex = i;
+      siftUp(i);
+      siftDown(last.heapIndex);
+    }
+  }
+
+  private void siftUp(int i) {
+    TaskHolder h = heap[i];
+    while (i > 0) {
+      int parent = (i - 1) >> 1;
+      TaskHolder p = heap[parent];
+      if (!h.isBefore(p)) {
+	break;
+      }
+      heap[i] = p;
+      p.heapIndex = i;
+      i = parent;
+    }
+    heap[i] = h;
+    h.heapIndex = i;
+  }
+
+  private void siftDown(int i) {
+    TaskHolder h = heap[i];
+    int half = size >> 1;
+    while (i < half) {
+      int child = (i << 1) + 1;
+      TaskHolder c = heap[child];
+      int right = child + 1;
+      if (right < size && heap[right].isBefore(c)) {
+	c = heap[child = right];
+      }
+      if (!c.isBefore(h)) {
+	break;
+      }
+      heap[i] = c;
+      c.heapIndex = i;
+      i = child;
+    }
+    heap[i] = h;
+    h.heapIndex = i;
+  }
+
 
   private static class TaskHolder {
     public long time;
+    public long sequence;
+    public long added;
+    public long fired;
+    public LatencyHistogram[] stats;
     public Object key;
     public Object value;
     public Task task;
+    public int heapIndex = -1;
 
-    public TaskHolder(long time, Object key, Object value, Task task) {
+    public TaskHolder(long time, long sequence, Object key, Object value,
+		      Task task) {
       this.time = time;
+      this.sequence = sequence;
       this.key = key;
       this.value = value;
       this.task = task;
     }
+
+    public boolean isBefore(TaskHolder h) {
+      return time < h.time || (time == h.time && sequence < h.sequence);
+    }
+  }
+
+  // Keys and tasks are compared by identity (as when cancelling)
+  private static class IndexKey {
+    private Object key;
+    private Task task;
+
+    public IndexKey(Object key, Task task) {
+      this.key = key;
+      this.task = task;
+    }
+
+    public void set(Object key, Task task) {
+      this.key = key;
+      this.task = task;
+    }
+
+    public int hashCode() {
+      return System.identityHashCode(key) * 31
+	+ System.identityHashCode(task);
+    }
+
+    public boolean equals(Object o) {
+      if (o instanceof IndexKey) {
+	IndexKey k = (IndexKey) o;
+	return k.key == key && k.task == task;
+      }
+      return false;
+    }
   }
 
 } // TimeDispatcher